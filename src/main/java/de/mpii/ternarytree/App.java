@@ -1,11 +1,9 @@
 package de.mpii.ternarytree;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.zip.GZIPOutputStream;
+import java.util.Arrays;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -15,41 +13,121 @@ import org.apache.commons.cli.PosixParser;
 
 /**
  * Main App!
- * 
+ * Builds a serialized trie from a dictionary file, mapping each name to
+ * the id in its second column. Sub-commands:
+ * "analyze" reports on a serialized trie, see {@link TrieAnalyzer},
+ * "serve" serves lookups over HTTP, see {@link TrieServer},
+ * "loadtest" measures a server, see {@link TrieLoadClient},
+ * "bench" measures getAllMatches on a text, see {@link MatchBenchmark}, and
+ * "merge" merges trie files, see {@link TrieMerger}.
  */
 public class App {
-    public static void main(String[] args) throws ParseException {
+    public static void main(String[] args) throws ParseException, IOException {
+        if (args.length > 0 && args[0].equals("analyze")) {
+            TrieAnalyzer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("serve")) {
+            TrieServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("loadtest")) {
+            try {
+                TrieLoadClient.main(Arrays.copyOfRange(args, 1, args.length));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench")) {
+            MatchBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("merge")) {
+            TrieMerger.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         Options options = new Options();
         options.addOption("i", "input", true, "UTF-8 file with one 'name<TAB>id' pair per line");
         options.addOption("o", "output", true, "Path to output serialized trie");
         options.addOption("t", "threshold", true, "Threshold to use for truncating tokens to prefix");
+        options.addOption("c", "codec", true, "Compression of the output: snappy (default), gzip or none");
+        options.addOption("m", "minimize", false, "Share identical subtrees, making the trie read-only");
+        options.addOption("f", "filter", false, "Store a filter of key starts for faster getAllMatches");
+        options.addOption("s", "partitions", true, "Write a file of this many partitions, see PartitionedTrie");
+        options.addOption("u", "hits", true,
+                "Hit counts written by HitCounter, to insert the most often matched keys first");
+        options.addOption("z", "drop-unhit", false, "Drop the keys that the hit counts show were never matched");
+        options.addOption("p", "parsers", true, "Number of threads parsing the input");
+        options.addOption("x", "external", true,
+                "Build in external memory, using at most this many MB of heap for entries");
         CommandLineParser parser = new PosixParser();
         CommandLine cmd = parser.parse(options, args);
         String inputPath = cmd.getOptionValue("i");
         String outputPath = cmd.getOptionValue("o");
         Double threshold = Double.parseDouble(cmd.getOptionValue("t", "1.0"));
-        TernaryTriePrimitive t = new TernaryTriePrimitive(threshold);
-        try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(
-                    Files.newInputStream(Paths
-                            .get(inputPath))));
-            String line = null;
-            int lineNumber = 0;
-            while ((line = reader.readLine()) != null) {
-                String key = line.split("\t")[0];
-                t.put(key, lineNumber++);
+        TrieCodec codec = TrieCodec.valueOf(cmd.getOptionValue("c", "snappy").toUpperCase());
+        int parsers = Integer.parseInt(cmd.getOptionValue("p",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        DictionaryReader dictionary = new DictionaryReader(parsers);
+        if (cmd.hasOption("x")) {
+            if (cmd.hasOption("m") || cmd.hasOption("f") || cmd.hasOption("s") || cmd.hasOption("u")) {
+                throw new ParseException(
+                        "A trie built in external memory cannot be minimized, filtered, partitioned or reordered");
             }
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            long budget = Long.parseLong(cmd.getOptionValue("x")) << 20;
+            final ExternalTrieBuilder builder = new ExternalTrieBuilder(threshold, ' ', budget, null);
+            dictionary.read(Paths.get(inputPath), new DictionaryReader.Sink() {
+                @Override
+                public void put(String name, int id) throws IOException {
+                    builder.put(name, id);
+                }
+            });
+            printReadStats(dictionary);
+            builder.build(new File(outputPath), codec);
+            return;
+        }
+        if (cmd.hasOption("z") && !cmd.hasOption("u")) {
+            throw new ParseException("Dropping unmatched keys needs hit counts");
+        }
+        final TernaryTriePrimitive read = new TernaryTriePrimitive(threshold);
+        dictionary.read(Paths.get(inputPath), new DictionaryReader.Sink() {
+            @Override
+            public void put(String name, int id) {
+                read.put(name, id);
+            }
+        });
+        printReadStats(dictionary);
+        TernaryTriePrimitive t = read;
+        if (cmd.hasOption("u")) {
+            t = HitCounter.reorder(read, HitCounter.readCounts(new File(cmd.getOptionValue("u"))),
+                    cmd.hasOption("z") ? 1 : 0);
+            System.err.println("Kept " + t.getTotalNodes() + " of " + read.getTotalNodes() + " nodes");
+        }
+        if (cmd.hasOption("m")) {
+            int nodes = t.getTotalNodes();
+            int saved = t.minimize();
+            System.err.println("Minimized " + nodes + " to " + (nodes - saved) + " nodes");
+        }
+        if (cmd.hasOption("f")) {
+            t.buildStartFilter();
+        }
+        if (cmd.hasOption("s")) {
+            PartitionedTrie.write(t, new File(outputPath), Integer.parseInt(cmd.getOptionValue("s")), codec);
+            return;
         }
         try {
-            t.serialize(new GZIPOutputStream(Files.newOutputStream(Paths
-                    .get(outputPath))));
+            new TrieBuilder().write(t, new File(outputPath), codec);
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
         }
 
     }
+
+    private static void printReadStats(DictionaryReader dictionary) {
+        System.err.printf("Read %d lines in %.1f s (%.0f lines/s), parsing took %.1f s of thread time%n",
+                dictionary.getLines(), dictionary.getTotalNanos() / 1e9, dictionary.getLinesPerSecond(),
+                dictionary.getParseNanos() / 1e9);
+    }
 }
@@ -0,0 +1,136 @@
+package de.mpii.ternarytree;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Reads a stream written by {@link BlockOutputStream}. Blocks are read
+ * ahead and decompressed and checked in parallel, while the caller
+ * consumes the blocks before them.
+ */
+class BlockInputStream extends InputStream {
+
+  private DataInputStream in;
+  private TrieCodec codec;
+  private int blockSize;
+  private ExecutorService pool;
+  private int readAhead;
+  private boolean verifyChecksums;
+  private boolean lastBlockRead;
+  private Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+  private byte[] block = new byte[0];
+  private int position;
+
+  /**
+   * @param blockSize Block size the stream was written with, which bounds
+   *                  the sizes of the blocks before they are allocated.
+   * @param readAhead Number of blocks decompressed at the same time.
+   */
+  public BlockInputStream(InputStream in, TrieCodec codec, int blockSize, ExecutorService pool, int readAhead,
+      boolean verifyChecksums) {
+    this.in = new DataInputStream(in);
+    this.codec = codec;
+    this.blockSize = blockSize;
+    this.pool = pool;
+    this.readAhead = readAhead;
+    this.verifyChecksums = verifyChecksums;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (position == block.length && !nextBlock()) {
+      return -1;
+    }
+    return block[position++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (position == block.length && !nextBlock()) {
+      return -1;
+    }
+    int n = Math.min(len, block.length - position);
+    System.arraycopy(block, position, b, off, n);
+    position += n;
+    return n;
+  }
+
+  @Override
+  public int available() {
+    return block.length - position;
+  }
+
+  private boolean nextBlock() throws IOException {
+    do {
+      while (!lastBlockRead && pending.size() < readAhead) {
+        readBlock();
+      }
+      if (pending.isEmpty()) {
+        return false;
+      }
+      try {
+        block = pending.remove().get();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while decompressing");
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException("Decompressing block failed", e.getCause());
+      }
+      position = 0;
+    } while (block.length == 0);
+    return true;
+  }
+
+  private void readBlock() throws IOException {
+    final int rawLength = in.readInt();
+    final int length = in.readInt();
+    final int checksum = in.readInt();
+    if (rawLength == 0) {
+      lastBlockRead = true;
+      return;
+    }
+    if (rawLength < 0 || rawLength > blockSize || length < 0 || length > codec.maxCompressedLength(rawLength)) {
+      throw new IOException("Corrupt block header");
+    }
+    final byte[] compressed = new byte[length];
+    in.readFully(compressed);
+    pending.add(pool.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        byte[] raw = new byte[rawLength];
+        codec.decompressBlock(compressed, length, raw, 0, rawLength);
+        if (verifyChecksums) {
+          CRC32 crc = new CRC32();
+          crc.update(raw, 0, rawLength);
+          if ((int) crc.getValue() != checksum) {
+            throw new IOException("Checksum mismatch in compressed block");
+          }
+        }
+        return raw;
+      }
+    }));
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Future<byte[]> future : pending) {
+      future.cancel(true);
+    }
+    pending.clear();
+    in.close();
+  }
+}
@@ -0,0 +1,130 @@
+package de.mpii.ternarytree;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Splits a stream into blocks that are compressed independently and in
+ * parallel. Each block is written as its raw length, compressed length,
+ * CRC32 of the raw bytes and the compressed bytes, and an empty block
+ * ends the stream. Read with {@link BlockInputStream}.
+ */
+class BlockOutputStream extends OutputStream {
+
+  private DataOutputStream out;
+  private TrieCodec codec;
+  private ExecutorService pool;
+  private int maxPending;
+  private byte[] block;
+  private int length;
+  private Deque<Future<byte[][]>> pending = new ArrayDeque<Future<byte[][]>>();
+
+  /**
+   * @param maxPending  Number of blocks compressed at the same time.
+   */
+  public BlockOutputStream(OutputStream out, TrieCodec codec, int blockSize, ExecutorService pool,
+      int maxPending) {
+    this.out = new DataOutputStream(out);
+    this.codec = codec;
+    this.pool = pool;
+    this.maxPending = maxPending;
+    this.block = new byte[blockSize];
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (length == block.length) {
+      submitBlock();
+    }
+    block[length++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (length == block.length) {
+        submitBlock();
+      }
+      int n = Math.min(len, block.length - length);
+      System.arraycopy(b, off, block, length, n);
+      length += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    final byte[] raw = block;
+    final int rawLength = length;
+    pending.add(pool.submit(new Callable<byte[][]>() {
+      @Override
+      public byte[][] call() {
+        CRC32 crc = new CRC32();
+        crc.update(raw, 0, rawLength);
+        byte[] header = new byte[12];
+        writeInt(header, 0, rawLength);
+        writeInt(header, 8, (int) crc.getValue());
+        byte[] compressed = codec.compressBlock(raw, rawLength);
+        writeInt(header, 4, compressed.length);
+        return new byte[][] { header, compressed };
+      }
+    }));
+    block = new byte[block.length];
+    length = 0;
+    while (pending.size() > maxPending) {
+      writePending();
+    }
+  }
+
+  private void writePending() throws IOException {
+    try {
+      byte[][] compressed = pending.remove().get();
+      out.write(compressed[0]);
+      out.write(compressed[1]);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while compressing");
+    } catch (ExecutionException e) {
+      throw new IOException("Compressing block failed", e.getCause());
+    }
+  }
+
+  private static void writeInt(byte[] b, int off, int v) {
+    b[off] = (byte) (v >>> 24);
+    b[off + 1] = (byte) (v >>> 16);
+    b[off + 2] = (byte) (v >>> 8);
+    b[off + 3] = (byte) v;
+  }
+
+  /**
+   * Writes all complete blocks. The last, partial block is written on
+   * close only, so that all blocks but the last are of equal size.
+   */
+  @Override
+  public void flush() throws IOException {
+    while (!pending.isEmpty()) {
+      writePending();
+    }
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (length > 0) {
+      submitBlock();
+    }
+    flush();
+    out.writeInt(0);
+    out.writeInt(0);
+    out.writeInt(0);
+    out.close();
+  }
+}
@@ -0,0 +1,120 @@
+package de.mpii.ternarytree;
+
+import java.util.Arrays;
+
+/**
+ * The char counterpart of {@link ChunkedIntList}: a growable list of
+ * chars in chunks that forks share until they are written to.
+ */
+final class ChunkedCharList {
+
+    static final int CHUNK_BITS = ChunkedIntList.CHUNK_BITS;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private char[][] chunks;
+    private boolean[] shared;
+    private int size;
+
+    ChunkedCharList() {
+        this(0);
+    }
+
+    /**
+     * Creates a list of size zero chars.
+     */
+    ChunkedCharList(int size) {
+        int count = (size + CHUNK_MASK) >>> CHUNK_BITS;
+        chunks = new char[Math.max(count, 1)][];
+        shared = new boolean[chunks.length];
+        for (int c = 0; c < count; c++) {
+            chunks[c] = new char[CHUNK_SIZE];
+        }
+        this.size = size;
+    }
+
+    private ChunkedCharList(char[][] chunks, boolean[] shared, int size) {
+        this.chunks = chunks;
+        this.shared = shared;
+        this.size = size;
+    }
+
+    /**
+     * Returns a list with the same elements that shares the chunks of this
+     * one until either is written to.
+     */
+    ChunkedCharList fork() {
+        // Chunks past the size may hold elements that were removed, and
+        // are shared all the same.
+        Arrays.fill(shared, true);
+        return new ChunkedCharList(chunks.clone(), shared.clone(), size);
+    }
+
+    int size() {
+        return size;
+    }
+
+    char get(int index) {
+        if (index >= size) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    void set(int index, char value) {
+        if (index >= size) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        writableChunk(index >>> CHUNK_BITS)[index & CHUNK_MASK] = value;
+    }
+
+    void add(char value) {
+        int c = size >>> CHUNK_BITS;
+        if (c == chunks.length) {
+            chunks = Arrays.copyOf(chunks, 2 * c);
+            shared = Arrays.copyOf(shared, 2 * c);
+        }
+        if (chunks[c] == null) {
+            chunks[c] = new char[CHUNK_SIZE];
+            shared[c] = false;
+        }
+        writableChunk(c)[size & CHUNK_MASK] = value;
+        size++;
+    }
+
+    void clear() {
+        chunks = new char[1][];
+        shared = new boolean[1];
+        size = 0;
+    }
+
+    /**
+     * Returns the number of elements the allocated chunks hold, including
+     * chunks shared with forks.
+     */
+    int getCapacity() {
+        int count = 0;
+        for (int c = 0; c < chunks.length; c++) {
+            if (chunks[c] != null) {
+                count++;
+            }
+        }
+        return count * CHUNK_SIZE;
+    }
+
+    /**
+     * Returns the chunks, of which the first (size + CHUNK_SIZE - 1) /
+     * CHUNK_SIZE hold the elements, for reading them in bulk.
+     */
+    char[][] getChunks() {
+        return chunks;
+    }
+
+    private char[] writableChunk(int c) {
+        if (shared[c]) {
+            chunks[c] = chunks[c].clone();
+            shared[c] = false;
+        }
+        return chunks[c];
+    }
+}
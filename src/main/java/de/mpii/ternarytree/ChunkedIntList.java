@@ -0,0 +1,154 @@
+package de.mpii.ternarytree;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of ints stored in chunks of CHUNK_SIZE, which forks
+ * share until they are written to. Forking copies only the table of
+ * chunks. The first write to a shared chunk copies it, so each fork only
+ * allocates the chunks it changes.
+ *
+ * A chunk stays marked as shared in all lists that had it when forked,
+ * so a list may copy a chunk that the others no longer use. Lists must
+ * not be forked or written concurrently with other access to the same
+ * list, but a list and its forks can be used by different threads.
+ */
+final class ChunkedIntList {
+
+    static final int CHUNK_BITS = 12;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private int[][] chunks;
+    private boolean[] shared;
+    private int size;
+
+    ChunkedIntList() {
+        this(0);
+    }
+
+    /**
+     * Creates a list of size zeros.
+     */
+    ChunkedIntList(int size) {
+        int count = (size + CHUNK_MASK) >>> CHUNK_BITS;
+        chunks = new int[Math.max(count, 1)][];
+        shared = new boolean[chunks.length];
+        for (int c = 0; c < count; c++) {
+            chunks[c] = new int[CHUNK_SIZE];
+        }
+        this.size = size;
+    }
+
+    private ChunkedIntList(int[][] chunks, boolean[] shared, int size) {
+        this.chunks = chunks;
+        this.shared = shared;
+        this.size = size;
+    }
+
+    /**
+     * Returns a list with the same elements that shares the chunks of this
+     * one until either is written to.
+     */
+    ChunkedIntList fork() {
+        // Chunks past the size may hold elements that were removed, and
+        // are shared all the same.
+        Arrays.fill(shared, true);
+        return new ChunkedIntList(chunks.clone(), shared.clone(), size);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int get(int index) {
+        if (index >= size) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    void set(int index, int value) {
+        if (index >= size) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        writableChunk(index >>> CHUNK_BITS)[index & CHUNK_MASK] = value;
+    }
+
+    void add(int value) {
+        int c = size >>> CHUNK_BITS;
+        if (c == chunks.length) {
+            chunks = Arrays.copyOf(chunks, 2 * c);
+            shared = Arrays.copyOf(shared, 2 * c);
+        }
+        if (chunks[c] == null) {
+            chunks[c] = new int[CHUNK_SIZE];
+            shared[c] = false;
+        }
+        writableChunk(c)[size & CHUNK_MASK] = value;
+        size++;
+    }
+
+    /**
+     * Removes and returns the last element.
+     */
+    int removeLast() {
+        int value = get(size - 1);
+        size--;
+        return value;
+    }
+
+    void clear() {
+        chunks = new int[1][];
+        shared = new boolean[1];
+        size = 0;
+    }
+
+    /**
+     * Returns the number of elements the allocated chunks hold, including
+     * chunks shared with forks.
+     */
+    int getCapacity() {
+        int count = 0;
+        for (int c = 0; c < chunks.length; c++) {
+            if (chunks[c] != null) {
+                count++;
+            }
+        }
+        return count * CHUNK_SIZE;
+    }
+
+    /**
+     * Returns the chunks, of which the first (size + CHUNK_SIZE - 1) /
+     * CHUNK_SIZE hold the elements, for reading them in bulk.
+     */
+    int[][] getChunks() {
+        return chunks;
+    }
+
+    /**
+     * Returns the number of chunks that this list shares with a list it
+     * was forked from or into, as far as it knows.
+     */
+    int getSharedChunkCount() {
+        int count = 0;
+        for (int c = 0; c < chunks.length; c++) {
+            if (shared[c] && chunks[c] != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int[] writableChunk(int c) {
+        if (shared[c]) {
+            chunks[c] = chunks[c].clone();
+            shared[c] = false;
+        }
+        return chunks[c];
+    }
+}
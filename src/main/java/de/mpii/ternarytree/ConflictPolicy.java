@@ -0,0 +1,47 @@
+package de.mpii.ternarytree;
+
+/**
+ * Decides the value of a key that several merged tries hold, see
+ * {@link TrieMerger}.
+ */
+public enum ConflictPolicy {
+    /**
+     * The value of the first trie holding the key.
+     */
+    FIRST,
+    /**
+     * The value of the last trie holding the key.
+     */
+    LAST,
+    MIN,
+    MAX,
+    /**
+     * Different values are an error.
+     */
+    FAIL;
+
+    /**
+     * Returns the value of a key that maps to previous in earlier tries
+     * and to value in the next one.
+     *
+     * @throws IllegalStateException If the policy is FAIL and the values
+     *         differ.
+     */
+    int resolve(int previous, int value) {
+        switch (this) {
+        case FIRST:
+            return previous;
+        case LAST:
+            return value;
+        case MIN:
+            return Math.min(previous, value);
+        case MAX:
+            return Math.max(previous, value);
+        default:
+            if (previous != value) {
+                throw new IllegalStateException("Conflicting values " + previous + " and " + value);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package de.mpii.ternarytree;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads a UTF-8 dictionary with one "name&lt;TAB&gt;id" entry per line in
+ * a pipeline of three stages: a thread reads the file in large blocks
+ * that end at line breaks, a pool parses the blocks in parallel, and the
+ * calling thread hands the entries to a sink in the order of the file.
+ * Further columns after the id are ignored, as are empty lines.
+ */
+public class DictionaryReader {
+
+    private static final int BLOCK_BYTES = 4 << 20;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the entries of a dictionary.
+     */
+    public interface Sink {
+        void put(String name, int id) throws IOException;
+    }
+
+    private int threads;
+    private long lines;
+    private long bytes;
+    private AtomicLong parseNanos = new AtomicLong();
+    private long totalNanos;
+
+    /**
+     * @param threads Number of threads parsing blocks.
+     */
+    public DictionaryReader(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Reads all entries of the file into the sink.
+     *
+     * @throws IOException If the file cannot be read or a line has no
+     *         valid id, or passed on from the sink.
+     */
+    public void read(final Path file, Sink sink) throws IOException {
+        long startTime = System.nanoTime();
+        lines = bytes = 0;
+        parseNanos.set(0);
+        final BlockingQueue<Future<Block>> parsed = new ArrayBlockingQueue<Future<Block>>(2 * threads);
+        final ExecutorService parsers = Executors.newFixedThreadPool(threads);
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        reader.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                Callable<Block> end;
+                try {
+                    readBlocks(file, parsers, parsed);
+                    end = new Callable<Block>() {
+                        @Override
+                        public Block call() {
+                            return null;
+                        }
+                    };
+                } catch (final IOException e) {
+                    end = new Callable<Block>() {
+                        @Override
+                        public Block call() throws IOException {
+                            throw e;
+                        }
+                    };
+                }
+                // Ends the stream of blocks, with the failure if any.
+                parsed.put(parsers.submit(end));
+                return null;
+            }
+        });
+        try {
+            Block block;
+            while ((block = parsed.take().get()) != null) {
+                for (int i = 0; i < block.size; i++) {
+                    sink.put(block.names[i], block.ids[i]);
+                }
+                lines += block.size;
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while reading " + file);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            reader.shutdownNow();
+            parsers.shutdownNow();
+        }
+        totalNanos = System.nanoTime() - startTime;
+    }
+
+    /**
+     * Returns the number of entries read by the last call to read.
+     */
+    public long getLines() {
+        return lines;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the time spent parsing, summed over the parsing threads.
+     */
+    public long getParseNanos() {
+        return parseNanos.get();
+    }
+
+    /**
+     * Returns the time the last call to read took, including the sink.
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public double getLinesPerSecond() {
+        return totalNanos == 0 ? 0.0 : lines * 1e9 / totalNanos;
+    }
+
+    private void readBlocks(Path file, ExecutorService parsers, BlockingQueue<Future<Block>> parsed)
+            throws IOException, InterruptedException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_BYTES);
+            boolean eof = false;
+            while (!eof) {
+                while (buffer.hasRemaining() && !eof) {
+                    eof = channel.read(buffer) < 0;
+                }
+                int end = buffer.position();
+                if (!eof) {
+                    while (end > 0 && buffer.get(end - 1) != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        // A line longer than the buffer.
+                        buffer = ByteBuffer.allocate(2 * buffer.capacity()).put((ByteBuffer) buffer.flip());
+                        continue;
+                    }
+                }
+                final byte[] block = Arrays.copyOf(buffer.array(), end);
+                bytes += end;
+                parsed.put(parsers.submit(new Callable<Block>() {
+                    @Override
+                    public Block call() throws IOException {
+                        long startTime = System.nanoTime();
+                        Block result = parse(block);
+                        parseNanos.addAndGet(System.nanoTime() - startTime);
+                        return result;
+                    }
+                }));
+                // Keep the partial line after end.
+                buffer.flip();
+                buffer.position(end);
+                buffer.compact();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Splits a block of complete lines into names and ids.
+     */
+    static Block parse(byte[] bytes) throws IOException {
+        String text = new String(bytes, UTF8);
+        Block block = new Block();
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            if (end < 0) {
+                end = text.length();
+            }
+            int lineEnd = end > start && text.charAt(end - 1) == '\r' ? end - 1 : end;
+            if (lineEnd > start) {
+                int tab = text.indexOf('\t', start);
+                if (tab < 0 || tab >= lineEnd) {
+                    throw new IOException("Missing id in line: " + text.substring(start, lineEnd));
+                }
+                int idEnd = text.indexOf('\t', tab + 1);
+                if (idEnd < 0 || idEnd > lineEnd) {
+                    idEnd = lineEnd;
+                }
+                block.add(text.substring(start, tab), parseId(text, tab + 1, idEnd));
+            }
+            start = end + 1;
+        }
+        return block;
+    }
+
+    private static int parseId(String text, int start, int end) throws IOException {
+        long id = 0;
+        if (start == end || end - start > 10) {
+            throw new IOException("Invalid id: " + text.substring(start, end));
+        }
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IOException("Invalid id: " + text.substring(start, end));
+            }
+            id = 10 * id + (c - '0');
+        }
+        if (id > Integer.MAX_VALUE) {
+            throw new IOException("Invalid id: " + text.substring(start, end));
+        }
+        return (int) id;
+    }
+
+    /**
+     * The entries of a block, in order.
+     */
+    static class Block {
+        String[] names = new String[256];
+        int[] ids = new int[256];
+        int size;
+
+        void add(String name, int id) {
+            if (size == names.length) {
+                names = Arrays.copyOf(names, 2 * size);
+                ids = Arrays.copyOf(ids, 2 * size);
+            }
+            names[size] = name;
+            ids[size] = id;
+            size++;
+        }
+    }
+}
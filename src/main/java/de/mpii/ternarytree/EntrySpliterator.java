@@ -0,0 +1,140 @@
+package de.mpii.ternarytree;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Traverses the entries of a {@link TernaryTriePrimitive} in sorted order,
+ * see {@link TernaryTriePrimitive#entries()}.
+ *
+ * The remaining work is a sequence of parts, each either a single entry or
+ * the subtree of a node below a prefix. A subtree is expanded into the
+ * subtree of its less child, its own entry, the subtree of its equal child
+ * and the subtree of its greater child, and splitting hands the first half
+ * of the parts to a new spliterator. Whole subtrees are traversed
+ * recursively by forEachRemaining.
+ */
+final class EntrySpliterator implements Spliterator<TrieEntry> {
+
+    private final TernaryTriePrimitive trie;
+    private final Deque<Part> parts;
+    private long estimatedSize;
+
+    EntrySpliterator(TernaryTriePrimitive trie, int root, long estimatedSize) {
+        this(trie, new ArrayDeque<Part>(), estimatedSize);
+        if (root != -1) {
+            parts.add(new Part(root, 0, "", null));
+        }
+    }
+
+    private EntrySpliterator(TernaryTriePrimitive trie, Deque<Part> parts, long estimatedSize) {
+        this.trie = trie;
+        this.parts = parts;
+        this.estimatedSize = estimatedSize;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super TrieEntry> action) {
+        while (!parts.isEmpty()) {
+            Part part = parts.pollFirst();
+            if (part.entry != null) {
+                action.accept(part.entry);
+                return true;
+            }
+            expand(part);
+        }
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super TrieEntry> action) {
+        Part part;
+        while ((part = parts.pollFirst()) != null) {
+            if (part.entry != null) {
+                action.accept(part.entry);
+            } else {
+                traverse(part.node, part.rank, new StringBuilder(part.prefix), action);
+            }
+        }
+    }
+
+    @Override
+    public Spliterator<TrieEntry> trySplit() {
+        while (parts.size() == 1 && parts.peekFirst().entry == null) {
+            expand(parts.pollFirst());
+        }
+        if (parts.size() < 2) {
+            return null;
+        }
+        Deque<Part> prefix = new ArrayDeque<Part>();
+        for (int i = parts.size() / 2; i > 0; i--) {
+            prefix.addLast(parts.pollFirst());
+        }
+        estimatedSize /= 2;
+        return new EntrySpliterator(trie, prefix, estimatedSize);
+    }
+
+    @Override
+    public long estimateSize() {
+        return estimatedSize;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | DISTINCT | NONNULL;
+    }
+
+    /**
+     * Replaces the subtree of a part by its parts, at the front.
+     */
+    private void expand(Part part) {
+        int node = part.node;
+        int rank = part.rank;
+        String prefix = part.prefix;
+        String key = prefix + trie.getNodeKey(node);
+        if (trie.getGreatChild(node) != -1) {
+            parts.addFirst(new Part(trie.getGreatChild(node), trie.getGreatRank(node, rank), prefix, null));
+        }
+        if (trie.getEqualChild(node) != -1) {
+            parts.addFirst(new Part(trie.getEqualChild(node), trie.getEqualRank(node, rank), key, null));
+        }
+        int value = trie.getNodeValue(node, rank);
+        if (value != -1) {
+            parts.addFirst(new Part(-1, 0, null, new TrieEntry(key, value)));
+        }
+        if (trie.getLessChild(node) != -1) {
+            parts.addFirst(new Part(trie.getLessChild(node), rank, prefix, null));
+        }
+    }
+
+    private void traverse(int node, int rank, StringBuilder prefix, Consumer<? super TrieEntry> action) {
+        if (node != -1) {
+            traverse(trie.getLessChild(node), rank, prefix, action);
+            prefix.append(trie.getNodeKey(node));
+            int value = trie.getNodeValue(node, rank);
+            if (value != -1) {
+                action.accept(new TrieEntry(prefix.toString(), value));
+            }
+            traverse(trie.getEqualChild(node), trie.getEqualRank(node, rank), prefix, action);
+            prefix.setLength(prefix.length() - 1);
+            traverse(trie.getGreatChild(node), trie.getGreatRank(node, rank), prefix, action);
+        }
+    }
+
+    private static class Part {
+        private final int node;
+        // Rank of node, see TernaryTriePrimitive.getNodeValue(int, int).
+        private final int rank;
+        private final String prefix;
+        private final TrieEntry entry;
+
+        public Part(int node, int rank, String prefix, TrieEntry entry) {
+            this.node = node;
+            this.rank = rank;
+            this.prefix = prefix;
+            this.entry = entry;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package de.mpii.ternarytree;
+
+/**
+ * Interface for visiting each key of a trie together with its value.
+ */
+public interface EntryVisitor {
+  public void visit(String key, int value);
+}
@@ -0,0 +1,331 @@
+package de.mpii.ternarytree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Builds a trie file for more entries than fit into the heap. Entries are
+ * buffered up to a memory budget, sorted and spilled to run files, which
+ * are then merged, if necessary in several passes. The merged keys are
+ * turned into the node sections by a {@link SortedTrieWriter}, and the
+ * file is written as by {@link TrieBuilder}, so it is loaded the usual
+ * way.
+ *
+ * As with put, an entry replaces an earlier one with the same stored key.
+ * The nodes differ from a trie filled by put in that every set of siblings
+ * is a balanced binary search tree.
+ */
+public class ExternalTrieBuilder {
+
+    private static final int RUN_BUFFER_BYTES = 1 << 16;
+
+    /**
+     * Estimated heap bytes of a buffered entry besides its characters.
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    private double threshold;
+    private char delimiter;
+    private long memoryBudget;
+    private File tempDir;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private String[] keys = new String[1024];
+    private int[] values = new int[1024];
+    private int size;
+    private long bufferedBytes;
+    private List<File> runs = new ArrayList<File>();
+    private int spilledRuns;
+
+    /**
+     * @param memoryBudget Bytes of heap to use for buffering entries and
+     *                     merging runs.
+     * @param tempDir      Directory for the run files, or null for the
+     *                     default temporary directory.
+     */
+    public ExternalTrieBuilder(double threshold, char delimiter, long memoryBudget, File tempDir) {
+        this.threshold = threshold;
+        this.delimiter = delimiter;
+        this.memoryBudget = memoryBudget;
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Sets the number of threads compressing the output.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void put(String key, int value) throws IOException {
+        String stored = getStoredKey(key);
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, 2 * size);
+            values = Arrays.copyOf(values, 2 * size);
+        }
+        keys[size] = stored;
+        values[size] = value;
+        size++;
+        bufferedBytes += 2L * stored.length() + ENTRY_OVERHEAD_BYTES;
+        if (bufferedBytes >= memoryBudget) {
+            spill();
+        }
+    }
+
+    /**
+     * Merges all entries into a trie file and deletes the run files.
+     */
+    public void build(File file, TrieCodec codec) throws IOException {
+        try {
+            spill();
+            mergeRuns();
+            final RunMerger merger = new RunMerger(runs);
+            try {
+                SortedTrieWriter.writeFile(new SortedTrieWriter.Source() {
+                    @Override
+                    public boolean next() throws IOException {
+                        return merger.next();
+                    }
+
+                    @Override
+                    public CharSequence getKey() {
+                        return merger.key;
+                    }
+
+                    @Override
+                    public int getValue() {
+                        return merger.value;
+                    }
+                }, threshold, delimiter, file, codec, threads, tempDir);
+            } finally {
+                merger.close();
+            }
+        } finally {
+            for (File run : runs) {
+                run.delete();
+            }
+            runs.clear();
+        }
+    }
+
+    /**
+     * Returns the number of runs spilled so far, including merged ones.
+     */
+    int getSpilledRuns() {
+        return spilledRuns;
+    }
+
+    /**
+     * Returns the key as stored by put: the tokens truncated by the
+     * threshold and joined by the delimiter. A trailing empty token is
+     * stored as the delimiter.
+     */
+    String getStoredKey(String key) {
+        String[] tokens = key.split(String.valueOf(delimiter));
+        StringBuilder stored = new StringBuilder(key.length() + 1);
+        for (int i = 0; i < tokens.length; i++) {
+            if (i > 0) {
+                stored.append(delimiter);
+            }
+            stored.append(tokens[i], 0, (int) Math.ceil(tokens[i].length() * threshold));
+        }
+        if (stored.length() == 0 || tokens[tokens.length - 1].isEmpty()) {
+            stored.append(delimiter);
+        }
+        return stored.toString();
+    }
+
+    /**
+     * Sorts the buffered entries and writes them to a new run, keeping only
+     * the last entry of each key.
+     */
+    private void spill() throws IOException {
+        if (size == 0) {
+            return;
+        }
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        final String[] unsorted = keys;
+        // Stable, so that the last entry of a key comes last.
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return unsorted[a].compareTo(unsorted[b]);
+            }
+        });
+        File run = newRun();
+        runs.add(run);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(run), RUN_BUFFER_BYTES));
+        try {
+            for (int i = 0; i < size; i++) {
+                if (i + 1 < size && keys[order[i]].equals(keys[order[i + 1]])) {
+                    continue;
+                }
+                writeEntry(out, keys[order[i]], values[order[i]]);
+            }
+        } finally {
+            out.close();
+        }
+        Arrays.fill(keys, 0, size, null);
+        size = 0;
+        bufferedBytes = 0;
+    }
+
+    /**
+     * Merges runs until few enough are left for the buffers of the final
+     * merge to fit into the memory budget. Consecutive runs are merged, so
+     * that the order of the runs still reflects the order of the entries.
+     */
+    private void mergeRuns() throws IOException {
+        int fanIn = (int) Math.max(2, Math.min(Integer.MAX_VALUE, memoryBudget / RUN_BUFFER_BYTES / 2));
+        while (runs.size() > fanIn) {
+            List<File> merged = new ArrayList<File>();
+            for (int from = 0; from < runs.size(); from += fanIn) {
+                List<File> group = runs.subList(from, Math.min(runs.size(), from + fanIn));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                File run = newRun();
+                merged.add(run);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(run), RUN_BUFFER_BYTES));
+                RunMerger merger = new RunMerger(group);
+                try {
+                    while (merger.next()) {
+                        writeEntry(out, merger.key, merger.value);
+                    }
+                } finally {
+                    merger.close();
+                    out.close();
+                }
+                for (File f : group) {
+                    f.delete();
+                }
+            }
+            runs = merged;
+        }
+    }
+
+    private File newRun() throws IOException {
+        File run = File.createTempFile("trie-run", ".tmp", tempDir);
+        spilledRuns++;
+        return run;
+    }
+
+    private static void writeEntry(DataOutputStream out, String key, int value) throws IOException {
+        out.writeInt(key.length());
+        out.writeChars(key);
+        out.writeInt(value);
+    }
+
+    /**
+     * Reads the entries of a run in order.
+     */
+    private static class RunCursor {
+        private DataInputStream in;
+        private int run;
+        private String key;
+        private int value;
+        private char[] chars = new char[64];
+
+        public RunCursor(File file, int run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), RUN_BUFFER_BYTES));
+            this.run = run;
+        }
+
+        public boolean next() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            if (length > chars.length) {
+                chars = new char[Math.max(length, 2 * chars.length)];
+            }
+            for (int i = 0; i < length; i++) {
+                chars[i] = in.readChar();
+            }
+            key = new String(chars, 0, length);
+            value = in.readInt();
+            return true;
+        }
+    }
+
+    /**
+     * Merges runs into one sequence of distinct keys. Of the entries with
+     * the same key, the one from the latest run is taken.
+     */
+    private static class RunMerger {
+        private PriorityQueue<RunCursor> queue;
+        private List<RunCursor> cursors = new ArrayList<RunCursor>();
+        private String key;
+        private int value;
+
+        public RunMerger(List<File> runs) throws IOException {
+            queue = new PriorityQueue<RunCursor>(Math.max(1, runs.size()), new Comparator<RunCursor>() {
+                @Override
+                public int compare(RunCursor a, RunCursor b) {
+                    int c = a.key.compareTo(b.key);
+                    return c != 0 ? c : Integer.compare(a.run, b.run);
+                }
+            });
+            try {
+                for (int i = 0; i < runs.size(); i++) {
+                    RunCursor cursor = new RunCursor(runs.get(i), i);
+                    cursors.add(cursor);
+                    if (cursor.next()) {
+                        queue.add(cursor);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        public boolean next() throws IOException {
+            RunCursor cursor = queue.poll();
+            if (cursor == null) {
+                return false;
+            }
+            key = cursor.key;
+            value = cursor.value;
+            advance(cursor);
+            while (!queue.isEmpty() && queue.peek().key.equals(key)) {
+                cursor = queue.poll();
+                value = cursor.value;
+                advance(cursor);
+            }
+            return true;
+        }
+
+        private void advance(RunCursor cursor) throws IOException {
+            if (cursor.next()) {
+                queue.add(cursor);
+            }
+        }
+
+        public void close() throws IOException {
+            for (RunCursor cursor : cursors) {
+                cursor.in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package de.mpii.ternarytree;
+
+import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.list.array.TCharArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A read-only trie with the keys and match semantics of a
+ * {@link TernaryTriePrimitive}, in which each set of siblings is stored as
+ * a group of one of three kinds, chosen by its size and density, in the
+ * style of adaptive radix trees:
+ *
+ * TST groups of up to TST_MAX_SIZE siblings are kept as binary search
+ * trees of less and greater links, like the siblings of a
+ * TernaryTriePrimitive, but balanced. SORTED groups keep their labels in a sorted array
+ * that is searched by a branch-free binary search. DIRECT groups whose
+ * labels span at most 256 chars, at least a quarter of which occur, map
+ * each char of the span to its entry with a table.
+ *
+ * The entries of a group are contiguous and sorted by label. Each has a
+ * value and the group of its equal child. Groups of a minimized trie that
+ * are reached from several entries are stored once, as long as the keys
+ * through them have the same values.
+ *
+ * A frozen trie is immutable and can be shared by threads without
+ * synchronization. Build one from a TernaryTriePrimitive with freeze or,
+ * faster, with a {@link FrozenTrieBuilder}.
+ */
+public final class FrozenTrie implements Trie {
+
+    public static final byte TST = 0;
+    public static final byte SORTED = 1;
+    public static final byte DIRECT = 2;
+
+    static final int TST_MAX_SIZE = 8;
+    static final int DIRECT_MAX_SPAN = 256;
+
+    private final double threshold;
+    private final char delimiter;
+    private final int root;
+
+    // Per group: kind, first entry, number of entries, offset of the links
+    // (TST) or table (DIRECT), and root entry (TST) or first char (DIRECT).
+    private final byte[] kinds;
+    private final int[] starts;
+    private final int[] sizes;
+    private final int[] offsets;
+    private final int[] params;
+
+    // Per entry.
+    private final char[] labels;
+    private final int[] values;
+    private final int[] children;
+
+    // Less and greater entry of each entry of a TST group, relative to the
+    // first entry of the group, and the tables of DIRECT groups.
+    private final int[] links;
+    private final int[] tables;
+
+    /**
+     * Takes over the groups of an assembly, as exactly sized arrays.
+     */
+    FrozenTrie(double threshold, char delimiter, Assembly a, int root) {
+        this.threshold = threshold;
+        this.delimiter = delimiter;
+        this.root = root;
+        kinds = a.kinds.toArray();
+        starts = a.starts.toArray();
+        sizes = a.sizes.toArray();
+        offsets = a.offsets.toArray();
+        params = a.params.toArray();
+        labels = a.labels.toArray();
+        values = a.values.toArray();
+        children = a.children.toArray();
+        links = a.links.toArray();
+        tables = a.tables.toArray();
+    }
+
+    /**
+     * Returns a frozen copy of the trie.
+     */
+    public static FrozenTrie freeze(TernaryTriePrimitive trie) {
+        Assembly assembly = new Assembly();
+        TIntIntHashMap groups = new TIntIntHashMap(16, 0.5f, -1, -1);
+        TIntIntHashMap ranks = new TIntIntHashMap(16, 0.5f, -1, -1);
+        int root = freeze(trie, trie.getRoot(), 0, assembly, groups, ranks);
+        return new FrozenTrie(trie.getThreshold(), trie.getDelimiter(), assembly, root);
+    }
+
+    /**
+     * Adds the group of the siblings at node, reached with the given rank,
+     * see TernaryTriePrimitive.getNodeValue(int, int), and of their
+     * descendants, and returns it. The group first added for node is
+     * reused if its keys have the same values.
+     */
+    private static int freeze(TernaryTriePrimitive trie, int node, int rank, Assembly assembly,
+            TIntIntHashMap groups, TIntIntHashMap ranks) {
+        if (node == -1) {
+            return -1;
+        }
+        int group = groups.get(node);
+        if (group != -1 && trie.hasSameValues(node, ranks.get(node), rank)) {
+            return group;
+        }
+        boolean first = group == -1;
+        // Gather the siblings in order, iteratively as the binary search
+        // tree can be degenerate.
+        TIntArrayList siblings = new TIntArrayList();
+        TIntArrayList siblingRanks = new TIntArrayList();
+        TIntArrayList stack = new TIntArrayList();
+        TIntArrayList rankStack = new TIntArrayList();
+        int current = node;
+        int currentRank = rank;
+        while (current != -1 || !stack.isEmpty()) {
+            while (current != -1) {
+                stack.add(current);
+                rankStack.add(currentRank);
+                current = trie.getLessChild(current);
+            }
+            current = stack.removeAt(stack.size() - 1);
+            currentRank = rankStack.removeAt(rankStack.size() - 1);
+            siblings.add(current);
+            siblingRanks.add(currentRank);
+            currentRank = trie.getGreatRank(current, currentRank);
+            current = trie.getGreatChild(current);
+        }
+        int size = siblings.size();
+        char[] groupLabels = new char[size];
+        int[] groupValues = new int[size];
+        for (int i = 0; i < size; i++) {
+            groupLabels[i] = trie.getNodeKey(siblings.get(i));
+            groupValues[i] = trie.getNodeValue(siblings.get(i), siblingRanks.get(i));
+        }
+        group = assembly.addGroup(groupLabels, groupValues, size);
+        if (first) {
+            groups.put(node, group);
+            ranks.put(node, rank);
+        }
+        int start = assembly.getStart(group);
+        for (int i = 0; i < size; i++) {
+            int sibling = siblings.get(i);
+            assembly.setChild(start + i, freeze(trie, trie.getEqualChild(sibling),
+                    trie.getEqualRank(sibling, siblingRanks.get(i)), assembly, groups, ranks));
+        }
+        return group;
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    public char getDelimiter() {
+        return delimiter;
+    }
+
+    /**
+     * Returns the entry labeled c in the group, or -1.
+     */
+    private int find(int group, char c) {
+        int start = starts[group];
+        switch (kinds[group]) {
+        case TST: {
+            int offset = offsets[group];
+            int i = params[group];
+            while (i != -1) {
+                char label = labels[start + i];
+                if (c == label) {
+                    return start + i;
+                }
+                i = links[offset + 2 * i + (c < label ? 0 : 1)];
+            }
+            return -1;
+        }
+        case DIRECT: {
+            int index = c - params[group];
+            int span = labels[start + sizes[group] - 1] - params[group] + 1;
+            if (index < 0 || index >= span) {
+                return -1;
+            }
+            int i = tables[offsets[group] + index];
+            return i == -1 ? -1 : start + i;
+        }
+        default: {
+            int lo = start;
+            int n = sizes[group];
+            while (n > 1) {
+                int half = n >>> 1;
+                lo = labels[lo + half] <= c ? lo + half : lo;
+                n -= half;
+            }
+            return labels[lo] == c ? lo : -1;
+        }
+        }
+    }
+
+    public int get(String key) {
+        return get(key.split(String.valueOf(delimiter)));
+    }
+
+    public int get(String[] tokens) {
+        Match match = getLongestMatch(tokens, 0);
+        return match.getTokenCount() == tokens.length ? match.getValue() : -1;
+    }
+
+    /**
+     * Unsupported, the trie is read-only.
+     */
+    @Override
+    public void put(String key, int value) {
+        throw new UnsupportedOperationException("A frozen trie cannot be modified");
+    }
+
+    /**
+     * Same as {@link TernaryTriePrimitive#getLongestMatch(String[], int)}.
+     */
+    public Match getLongestMatch(String[] tokens, int start) {
+        int group = root;
+        int matchValue = -1;
+        int matchToken = start - 1;
+        for (int iToken = start; iToken < tokens.length && group != -1; iToken++) {
+            String token = tokens[iToken];
+            int relevantLength = (int) Math.ceil(token.length() * threshold);
+            for (int pos = 0; pos <= relevantLength && group != -1; pos++) {
+                int entry = find(group, pos < relevantLength ? token.charAt(pos) : delimiter);
+                if (entry == -1) {
+                    group = -1;
+                    break;
+                }
+                if (pos == relevantLength - 1 && values[entry] != -1) {
+                    matchValue = values[entry];
+                    matchToken = iToken;
+                }
+                group = children[entry];
+            }
+        }
+        return new Match(start, matchToken - start + 1, matchValue);
+    }
+
+    /**
+     * Same as {@link TernaryTriePrimitive#getAllMatches(String[])}.
+     */
+    public List<Match> getAllMatches(String[] tokens) {
+        List<Match> matchedSpots = new ArrayList<Match>();
+        int i = 0;
+        while (i < tokens.length) {
+            Match m = getLongestMatch(tokens, i);
+            if (m.getTokenCount() > 0) {
+                matchedSpots.add(m);
+                // Jump after longest match.
+                i += m.getTokenCount();
+            } else {
+                i++;
+            }
+        }
+        return matchedSpots;
+    }
+
+    /**
+     * Visits all keys in sorted order together with their values, as
+     * stored, see {@link TernaryTriePrimitive#visitEntries(EntryVisitor)}.
+     */
+    public void visitEntries(EntryVisitor visitor) {
+        if (root != -1) {
+            visitEntries(visitor, root, new StringBuilder());
+        }
+    }
+
+    private void visitEntries(EntryVisitor visitor, int group, StringBuilder prefix) {
+        for (int entry = starts[group]; entry < starts[group] + sizes[group]; entry++) {
+            prefix.append(labels[entry]);
+            if (values[entry] != -1) {
+                visitor.visit(prefix.toString(), values[entry]);
+            }
+            if (children[entry] != -1) {
+                visitEntries(visitor, children[entry], prefix);
+            }
+            prefix.setLength(prefix.length() - 1);
+        }
+    }
+
+    /**
+     * Returns the keys and values as lines of the form "key&lt;tab&gt;value",
+     * in sorted order.
+     */
+    @Override
+    public String getContent() {
+        final StringBuilder content = new StringBuilder();
+        visitEntries(new EntryVisitor() {
+            @Override
+            public void visit(String key, int value) {
+                content.append(key).append('\t').append(value).append('\n');
+            }
+        });
+        return content.toString();
+    }
+
+    public int getGroupCount(byte kind) {
+        int count = 0;
+        for (byte k : kinds) {
+            if (k == kind) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getEntryCount() {
+        return labels.length;
+    }
+
+    /**
+     * Returns the memory taken by the arrays of the trie.
+     */
+    public long getBytes() {
+        return 17L * kinds.length + 10L * labels.length + 4L * (links.length + tables.length);
+    }
+
+    /**
+     * Collects the groups of a trie being frozen. Groups are added parent
+     * first, and their children set once added.
+     */
+    static final class Assembly {
+        private final TByteArrayList kinds = new TByteArrayList();
+        private final TIntArrayList starts = new TIntArrayList();
+        private final TIntArrayList sizes = new TIntArrayList();
+        private final TIntArrayList offsets = new TIntArrayList();
+        private final TIntArrayList params = new TIntArrayList();
+        private final TCharArrayList labels = new TCharArrayList();
+        private final TIntArrayList values = new TIntArrayList();
+        private final TIntArrayList children = new TIntArrayList();
+        private final TIntArrayList links = new TIntArrayList();
+        private final TIntArrayList tables = new TIntArrayList();
+
+        /**
+         * Adds a group of entries with the given labels, in ascending
+         * order, and values, and without children, and returns it.
+         */
+        int addGroup(char[] groupLabels, int[] groupValues, int size) {
+            int group = kinds.size();
+            int start = labels.size();
+            for (int i = 0; i < size; i++) {
+                labels.add(groupLabels[i]);
+                values.add(groupValues[i]);
+                children.add(-1);
+            }
+            int span = size == 0 ? 0 : groupLabels[size - 1] - groupLabels[0] + 1;
+            starts.add(start);
+            sizes.add(size);
+            if (size <= TST_MAX_SIZE) {
+                kinds.add(TST);
+                int base = links.size();
+                offsets.add(base);
+                links.fill(base, base + 2 * size, -1);
+                params.add(link(base, 0, size - 1));
+            } else if (span <= DIRECT_MAX_SPAN && 4 * size >= span) {
+                kinds.add(DIRECT);
+                int table = tables.size();
+                offsets.add(table);
+                params.add(groupLabels[0]);
+                tables.fill(table, table + span, -1);
+                for (int i = 0; i < size; i++) {
+                    tables.set(table + groupLabels[i] - groupLabels[0], i);
+                }
+            } else {
+                kinds.add(SORTED);
+                offsets.add(-1);
+                params.add(-1);
+            }
+            return group;
+        }
+
+        /**
+         * Links the entries from to to of a TST group, whose links start at
+         * base, into a balanced binary search tree and returns its root.
+         */
+        private int link(int base, int from, int to) {
+            if (from > to) {
+                return -1;
+            }
+            int mid = (from + to) >>> 1;
+            links.set(base + 2 * mid, link(base, from, mid - 1));
+            links.set(base + 2 * mid + 1, link(base, mid + 1, to));
+            return mid;
+        }
+
+        int getStart(int group) {
+            return starts.get(group);
+        }
+
+        void setChild(int entry, int group) {
+            children.set(entry, group);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package de.mpii.ternarytree;
+
+import java.util.Arrays;
+
+/**
+ * Collects keys for a {@link FrozenTrie}. Unlike a TernaryTriePrimitive,
+ * which keeps its nodes in the layout that lookups read, the builder keeps
+ * each set of siblings as a sorted array of labels with values and child
+ * sets, so that an insert takes one binary search per character and no
+ * rebalancing, and freeze packs the sets into groups.
+ *
+ * Keys are truncated and stored as by a TernaryTriePrimitive of the same
+ * threshold and delimiter, so both answer the same lookups. The builder
+ * is not thread-safe.
+ */
+public class FrozenTrieBuilder {
+
+    private final double threshold;
+    private final char delimiter;
+    private final Siblings root = new Siblings();
+    private int keys;
+    private char[] key = new char[64];
+
+    public FrozenTrieBuilder(double threshold, char delimiter) {
+        this.threshold = threshold;
+        this.delimiter = delimiter;
+    }
+
+    public void put(String key, int value) {
+        put(key.split(String.valueOf(delimiter)), value);
+    }
+
+    /**
+     * Maps the key to the value, replacing any previous value.
+     */
+    public void put(String[] tokens, int value) {
+        if (tokens.length == 0) {
+            throw new IllegalArgumentException("A key needs at least one token");
+        }
+        int length = 0;
+        for (int i = 0; i < tokens.length; i++) {
+            int relevantLength = (int) Math.ceil(tokens[i].length() * threshold);
+            if (length + relevantLength + 1 > key.length) {
+                key = Arrays.copyOf(key, 2 * (length + relevantLength + 1));
+            }
+            tokens[i].getChars(0, relevantLength, key, length);
+            length += relevantLength;
+            // Tokens but the last are followed by the delimiter, and an
+            // empty last token is stored as one.
+            if (i < tokens.length - 1 || relevantLength == 0) {
+                key[length++] = delimiter;
+            }
+        }
+        Siblings siblings = root;
+        for (int pos = 0; ; pos++) {
+            int entry = siblings.findOrAdd(key[pos]);
+            if (pos == length - 1) {
+                if (siblings.values[entry] == -1) {
+                    keys++;
+                }
+                siblings.values[entry] = value;
+                return;
+            }
+            if (siblings.children[entry] == null) {
+                siblings.children[entry] = new Siblings();
+            }
+            siblings = siblings.children[entry];
+        }
+    }
+
+    /**
+     * Returns the number of keys with a value.
+     */
+    public int size() {
+        return keys;
+    }
+
+    /**
+     * Returns a frozen trie of the keys added so far. The builder can be
+     * used further.
+     */
+    public FrozenTrie freeze() {
+        FrozenTrie.Assembly assembly = new FrozenTrie.Assembly();
+        int rootGroup = root.size == 0 ? -1 : freeze(root, assembly);
+        return new FrozenTrie(threshold, delimiter, assembly, rootGroup);
+    }
+
+    private static int freeze(Siblings siblings, FrozenTrie.Assembly assembly) {
+        int group = assembly.addGroup(siblings.labels, siblings.values, siblings.size);
+        int start = assembly.getStart(group);
+        for (int i = 0; i < siblings.size; i++) {
+            if (siblings.children[i] != null) {
+                assembly.setChild(start + i, freeze(siblings.children[i], assembly));
+            }
+        }
+        return group;
+    }
+
+    /**
+     * A set of siblings, sorted by label.
+     */
+    private static final class Siblings {
+        private char[] labels = new char[2];
+        private int[] values = new int[2];
+        private Siblings[] children = new Siblings[2];
+        private int size;
+
+        /**
+         * Returns the index of the sibling labeled c, adding it if needed.
+         */
+        int findOrAdd(char c) {
+            int index = Arrays.binarySearch(labels, 0, size, c);
+            if (index >= 0) {
+                return index;
+            }
+            index = -index - 1;
+            if (size == labels.length) {
+                labels = Arrays.copyOf(labels, 2 * size);
+                values = Arrays.copyOf(values, 2 * size);
+                children = Arrays.copyOf(children, 2 * size);
+            }
+            System.arraycopy(labels, index, labels, index + 1, size - index);
+            System.arraycopy(values, index, values, index + 1, size - index);
+            System.arraycopy(children, index, children, index + 1, size - index);
+            labels[index] = c;
+            values[index] = -1;
+            children[index] = null;
+            size++;
+            return index;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package de.mpii.ternarytree;
+
+import gnu.trove.map.TObjectLongMap;
+import gnu.trove.map.hash.TObjectLongHashMap;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Counts how often each key of a {@link TernaryTriePrimitive} is matched,
+ * by the node its key ends at, or by its index in the value table of a
+ * minimized trie, whose keys share nodes. Attach an instance with
+ * {@link TernaryTriePrimitive#setHitCounter(HitCounter)}; every longest
+ * match walk that finds a key then records it, including the walks of
+ * the batch lookups.
+ *
+ * Counting is safe under concurrent matching. Each node has its own
+ * atomic counter, so threads only contend when they match the same key,
+ * and with a sample rate of n only one in about n hits is recorded, as n
+ * hits, which cuts the contention on hot keys by that factor. Counts are
+ * estimates then, and keys that are rarely hit may show no hits.
+ *
+ * Counts are exported with {@link #write(File)} as lines of the form
+ * "key&lt;tab&gt;count", one per stored key, including keys never hit.
+ * Build steps read them back with {@link #readCounts(File)} and
+ * {@link #reorder(TernaryTriePrimitive, TObjectLongMap, long)} to drop
+ * keys that were never hit and to put hot keys near the root.
+ *
+ * Node ids change when the trie is compacted, minimized or loaded again,
+ * so the counter is only valid for the trie it was created for, and for
+ * keys added since only if it was created with room for them. Tries
+ * minimized without value table, as by earlier versions, cannot be
+ * counted.
+ */
+public class HitCounter {
+
+    private final TernaryTriePrimitive trie;
+    private final AtomicIntegerArray counts;
+    private final int sampleRate;
+
+    public HitCounter(TernaryTriePrimitive trie) {
+        this(trie, 1);
+    }
+
+    /**
+     * @param sampleRate Record one in about this many hits, a power of two.
+     */
+    public HitCounter(TernaryTriePrimitive trie, int sampleRate) {
+        if (sampleRate < 1 || Integer.bitCount(sampleRate) != 1) {
+            throw new IllegalArgumentException("The sample rate must be a power of two: " + sampleRate);
+        }
+        if (trie.isMinimized() && !trie.hasValueTable()) {
+            throw new IllegalArgumentException("Keys of a trie minimized without value table share nodes");
+        }
+        this.trie = trie;
+        this.counts = new AtomicIntegerArray(trie.getKeySlots());
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Records a hit of the key ending at node, reached with rank.
+     */
+    void record(int node, int rank) {
+        if (sampleRate > 1 && (ThreadLocalRandom.current().nextInt() & (sampleRate - 1)) != 0) {
+            return;
+        }
+        int slot = trie.getKeySlot(node, rank);
+        if (slot < counts.length()) {
+            int count = counts.get(slot);
+            // Saturate instead of overflowing.
+            if (count <= Integer.MAX_VALUE - sampleRate) {
+                counts.getAndAdd(slot, sampleRate);
+            }
+        }
+    }
+
+    /**
+     * Returns the estimated hits of a key, or 0 if it does not exist.
+     */
+    public long getCount(String key) {
+        int slot = trie.getKeySlot(key.split(String.valueOf(trie.getDelimiter())));
+        return slot < 0 || slot >= counts.length() ? 0 : counts.get(slot);
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    /**
+     * Writes the counts of all keys, in sorted key order, as UTF-8 lines
+     * of the form "key&lt;tab&gt;count". Keys are written as stored.
+     */
+    public void write(File file) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8")),
+                1 << 16);
+        try {
+            TrieCursor cursor = new TrieCursor(trie);
+            while (cursor.next()) {
+                int slot = trie.getKeySlot(cursor.getNode(), cursor.getRank());
+                out.append(cursor.getKey()).append('\t')
+                        .append(String.valueOf(slot < counts.length() ? counts.get(slot) : 0)).append('\n');
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads counts written by {@link #write(File)}.
+     */
+    public static TObjectLongMap<String> readCounts(File file) throws IOException {
+        TObjectLongMap<String> counts = new TObjectLongHashMap<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                Charset.forName("UTF-8")), 1 << 16);
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.lastIndexOf('\t');
+                if (tab < 0) {
+                    throw new IOException("Malformed hit count line: " + line);
+                }
+                counts.put(line.substring(0, tab), Long.parseLong(line.substring(tab + 1)));
+            }
+        } finally {
+            in.close();
+        }
+        return counts;
+    }
+
+    /**
+     * Returns a copy of the trie without the keys hit fewer than minCount
+     * times, with the hottest keys inserted first. Since the first node
+     * inserted among siblings becomes the root of their binary search
+     * tree, walks to hot keys take fewer hops. Keys with equal counts are
+     * inserted medians first, see
+     * {@link TernaryTriePrimitive#putSorted(String[], int[], int, int)},
+     * which keeps the trees of the many rarely hit keys balanced.
+     *
+     * @param counts Hits by stored key, as read by {@link #readCounts(File)}.
+     *               Keys without count have none.
+     */
+    public static TernaryTriePrimitive reorder(TernaryTriePrimitive trie, final TObjectLongMap<String> counts,
+            long minCount) {
+        final List<String> keys = new ArrayList<String>();
+        final List<Integer> values = new ArrayList<Integer>();
+        trie.visitEntries(new EntryVisitor() {
+            @Override
+            public void visit(String key, int value) {
+                keys.add(key);
+                values.add(value);
+            }
+        });
+        Integer[] order = new Integer[keys.size()];
+        int kept = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            if (counts.get(keys.get(i)) >= minCount) {
+                order[kept++] = i;
+            }
+        }
+        order = Arrays.copyOf(order, kept);
+        // Hottest first, and in key order among equal counts.
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int byCount = Long.compare(counts.get(keys.get(b)), counts.get(keys.get(a)));
+                return byCount != 0 ? byCount : keys.get(a).compareTo(keys.get(b));
+            }
+        });
+        String[] sortedKeys = new String[kept];
+        int[] sortedValues = new int[kept];
+        for (int i = 0; i < kept; i++) {
+            sortedKeys[i] = keys.get(order[i]);
+            sortedValues[i] = values.get(order[i]);
+        }
+        TernaryTriePrimitive exact = new TernaryTriePrimitive(1.0, trie.getDelimiter());
+        int from = 0;
+        while (from < kept) {
+            long count = counts.get(sortedKeys[from]);
+            int to = from + 1;
+            while (to < kept && counts.get(sortedKeys[to]) == count) {
+                to++;
+            }
+            exact.putSorted(sortedKeys, sortedValues, from, to);
+            from = to;
+        }
+        return exact.withThreshold(trie.getThreshold());
+    }
+}
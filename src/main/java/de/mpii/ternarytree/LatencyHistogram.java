@@ -0,0 +1,116 @@
+package de.mpii.ternarytree;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of nanosecond latencies with log-linear buckets in the style
+ * of HdrHistogram. Values below 2^SUB_BUCKET_BITS have a bucket each, and
+ * larger values are bucketed by their top SUB_BUCKET_BITS bits, which bounds
+ * the relative error of percentiles by 2^-(SUB_BUCKET_BITS - 1).
+ *
+ * Like {@link StripedCounter}, the buckets are striped by thread, so that
+ * threads recording similar latencies do not contend on the same cache
+ * lines, and the stripes are summed on read. Each stripe takes about 15 KB.
+ */
+class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+  // Longs per stripe, with a cache line of padding between stripes.
+  private static final int STRIPE_LENGTH = BUCKETS + 8;
+
+  private AtomicLongArray counts;
+  private int mask;
+  private StripedCounter total = new StripedCounter();
+
+  public LatencyHistogram() {
+    int stripes = StripedCounter.stripes();
+    counts = new AtomicLongArray(stripes * STRIPE_LENGTH);
+    mask = stripes - 1;
+  }
+
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts.incrementAndGet(StripedCounter.stripe(mask) * STRIPE_LENGTH + bucket(nanos));
+    total.add(nanos);
+  }
+
+  private static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+    return shift * SUB_BUCKETS + (int) (value >>> shift);
+  }
+
+  /**
+   * Returns the largest value that falls into a bucket.
+   */
+  private static long bucketMax(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS;
+    long subBucket = bucket % SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  /**
+   * Returns the count of each bucket, summed over the stripes.
+   */
+  private long[] sumStripes() {
+    long[] sums = new long[BUCKETS];
+    for (int offset = 0; offset < counts.length(); offset += STRIPE_LENGTH) {
+      for (int i = 0; i < BUCKETS; i++) {
+        sums[i] += counts.get(offset + i);
+      }
+    }
+    return sums;
+  }
+
+  public long getTotalNanos() {
+    return total.sum();
+  }
+
+  /**
+   * Returns an upper bound of the given percentile, e.g. 99.0, in
+   * nanoseconds, or 0 if nothing was recorded.
+   */
+  public long getPercentile(double percentile) {
+    long[] snapshot = sumStripes();
+    long count = 0;
+    for (int i = 0; i < snapshot.length; i++) {
+      count += snapshot[i];
+    }
+    if (count == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(percentile / 100.0 * count);
+    long seen = 0;
+    for (int i = 0; i < snapshot.length; i++) {
+      seen += snapshot[i];
+      if (seen >= rank && snapshot[i] > 0) {
+        return bucketMax(i);
+      }
+    }
+    return bucketMax(snapshot.length - 1);
+  }
+
+  public void reset() {
+    for (int i = 0; i < counts.length(); i++) {
+      counts.set(i, 0);
+    }
+    total.reset();
+  }
+}
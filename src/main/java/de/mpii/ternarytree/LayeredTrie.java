@@ -0,0 +1,315 @@
+package de.mpii.ternarytree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A trie for live dictionary updates. Changes are written to a small mutable
+ * delta trie that sits in front of a large base trie, which is never
+ * modified. Lookups consult the delta first, so that its values take
+ * precedence, and removed keys are marked in the delta by tombstones.
+ *
+ * Once the delta grows beyond a limit, a background task merges it into a
+ * new compacted base. While the merge runs, the old delta is frozen and
+ * consulted between a fresh delta and the old base, and the new base is
+ * swapped in atomically when it is complete. Lookups never wait for a merge.
+ */
+public class LayeredTrie implements Trie {
+
+    /**
+     * Value stored in a delta to mark a key as removed.
+     */
+    static final int TOMBSTONE = Integer.MIN_VALUE;
+
+    private static final int DEFAULT_MAX_DELTA_NODES = 1 << 20;
+
+    private double threshold;
+    private char delimiter;
+    private int maxDeltaNodes;
+    private volatile Layers layers;
+    private ReadWriteLock deltaLock = new ReentrantReadWriteLock();
+    private ExecutorService merger;
+    private Future<?> pendingMerge;
+
+    public LayeredTrie(TernaryTriePrimitive base) {
+        this(base, DEFAULT_MAX_DELTA_NODES);
+    }
+
+    /**
+     * @param base          The initial base trie. It must not be modified
+     *                      after it is handed over.
+     * @param maxDeltaNodes A merge is started in the background when the
+     *                      delta holds more nodes than this.
+     */
+    public LayeredTrie(TernaryTriePrimitive base, int maxDeltaNodes) {
+        this.threshold = base.getThreshold();
+        this.delimiter = base.getDelimiter();
+        this.maxDeltaNodes = maxDeltaNodes;
+        this.layers = new Layers(base, null, newDelta());
+        this.merger = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "layered-trie-merge");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int get(String key) {
+        return get(key.split(String.valueOf(delimiter)));
+    }
+
+    public int get(String[] tokens) {
+        Layers current = layers;
+        int value;
+        deltaLock.readLock().lock();
+        try {
+            value = current.delta.get(tokens);
+        } finally {
+            deltaLock.readLock().unlock();
+        }
+        if (value == -1 && current.frozen != null) {
+            value = current.frozen.get(tokens);
+        }
+        if (value == -1) {
+            value = current.base.get(tokens);
+        }
+        return value == TOMBSTONE ? -1 : value;
+    }
+
+    /**
+     * Puts a (key, value) pair into the delta. Putting -1 removes the key,
+     * as in the other tries.
+     */
+    public void put(String key, int value) {
+        if (value == -1) {
+            remove(key);
+        } else {
+            write(key, value);
+        }
+    }
+
+    /**
+     * Removes a key by writing a tombstone for it into the delta.
+     */
+    public void remove(String key) {
+        write(key, TOMBSTONE);
+    }
+
+    private void write(String key, int value) {
+        int deltaNodes;
+        deltaLock.writeLock().lock();
+        try {
+            layers.delta.put(key, value);
+            deltaNodes = layers.delta.getTotalNodes();
+        } finally {
+            deltaLock.writeLock().unlock();
+        }
+        if (deltaNodes > maxDeltaNodes) {
+            synchronized (this) {
+                if (pendingMerge == null || pendingMerge.isDone()) {
+                    merge();
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as {@link TernaryTriePrimitive#getAllMatches(String[])}, over the
+     * combined layers.
+     */
+    public List<Match> getAllMatches(String[] tokens) {
+        List<Match> matchedSpots = new ArrayList<Match>();
+        int i = 0;
+        while (i < tokens.length) {
+            Match m = getLongestMatch(tokens, i);
+            if (m.getTokenCount() > 0) {
+                matchedSpots.add(m);
+                // Jump after longest match.
+                i += m.getTokenCount();
+            } else {
+                i++;
+            }
+        }
+        return matchedSpots;
+    }
+
+    /**
+     * Returns the longest match starting at start over the combined layers.
+     * The longest match of the layers is taken from the layer of highest
+     * precedence that has it. If that layer marks it as removed, the
+     * search is repeated on the tokens before its last token.
+     */
+    public Match getLongestMatch(String[] tokens, int start) {
+        Layers current = layers;
+        String[] window = tokens;
+        while (true) {
+            Match best;
+            deltaLock.readLock().lock();
+            try {
+                best = current.delta.getLongestMatch(window, start);
+            } finally {
+                deltaLock.readLock().unlock();
+            }
+            if (current.frozen != null) {
+                Match m = current.frozen.getLongestMatch(window, start);
+                if (m.getTokenCount() > best.getTokenCount()) {
+                    best = m;
+                }
+            }
+            Match m = current.base.getLongestMatch(window, start);
+            if (m.getTokenCount() > best.getTokenCount()) {
+                best = m;
+            }
+            if (best.getValue() != TOMBSTONE) {
+                return best;
+            }
+            window = Arrays.copyOfRange(tokens, 0, start + best.getTokenCount() - 1);
+        }
+    }
+
+    public String getContent() {
+        Layers current = layers;
+        final TernaryTriePrimitive merged;
+        deltaLock.readLock().lock();
+        try {
+            merged = merge(current.base, current.frozen, current.delta);
+        } finally {
+            deltaLock.readLock().unlock();
+        }
+        return merged.getContent();
+    }
+
+    /**
+     * Returns the current base trie. After the future returned by
+     * {@link #merge()} completes, it contains all changes made before.
+     */
+    public TernaryTriePrimitive getBase() {
+        return layers.base;
+    }
+
+    /**
+     * Starts merging the delta into a new base in the background.
+     *
+     * @return Future that completes when the new base, containing all
+     *         changes made before this call, is swapped in.
+     */
+    public synchronized Future<?> merge() {
+        pendingMerge = merger.submit(new Runnable() {
+            @Override
+            public void run() {
+                mergeDelta();
+            }
+        });
+        return pendingMerge;
+    }
+
+    /**
+     * Stops the background merger. Pending merges are completed.
+     */
+    public void close() {
+        merger.shutdown();
+    }
+
+    private void mergeDelta() {
+        Layers frozen;
+        deltaLock.writeLock().lock();
+        try {
+            if (layers.delta.getTotalNodes() == 0) {
+                return;
+            }
+            frozen = new Layers(layers.base, layers.delta, newDelta());
+            layers = frozen;
+        } finally {
+            deltaLock.writeLock().unlock();
+        }
+        TernaryTriePrimitive base = merge(frozen.base, frozen.frozen, null);
+        // Only this thread replaces the delta, so the current one is kept.
+        layers = new Layers(base, null, layers.delta);
+    }
+
+    /**
+     * Builds a compacted trie holding the entries of all given layers. The
+     * layers are given in order of increasing precedence; middle and upper
+     * may be null.
+     */
+    private TernaryTriePrimitive merge(TernaryTriePrimitive base, TernaryTriePrimitive middle,
+            TernaryTriePrimitive upper) {
+        final List<String> keys = new ArrayList<String>();
+        final List<Integer> values = new ArrayList<Integer>();
+        // Stored keys are already thresholded, so the layers above are
+        // checked for them under threshold 1.0.
+        final List<TernaryTriePrimitive> above = new ArrayList<TernaryTriePrimitive>();
+        for (TernaryTriePrimitive layer : Arrays.asList(upper, middle, base)) {
+            if (layer == null) {
+                continue;
+            }
+            layer.visitEntries(new EntryVisitor() {
+                @Override
+                public void visit(String key, int value) {
+                    if (value == TOMBSTONE) {
+                        return;
+                    }
+                    for (TernaryTriePrimitive upperLayer : above) {
+                        if (upperLayer.get(key) != -1) {
+                            return;
+                        }
+                    }
+                    keys.add(key);
+                    values.add(value);
+                }
+            });
+            above.add(layer.withThreshold(1.0));
+        }
+        return buildSorted(keys, values);
+    }
+
+    private TernaryTriePrimitive buildSorted(List<String> keys, List<Integer> values) {
+        // Entries arrive sorted per layer only.
+        Integer[] order = new Integer[keys.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final List<String> unsorted = keys;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return unsorted.get(a).compareTo(unsorted.get(b));
+            }
+        });
+        String[] sortedKeys = new String[order.length];
+        int[] sortedValues = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedKeys[i] = keys.get(order[i]);
+            sortedValues[i] = values.get(order[i]);
+        }
+        TernaryTriePrimitive exact = new TernaryTriePrimitive(1.0, delimiter);
+        exact.putSorted(sortedKeys, sortedValues, 0, sortedKeys.length);
+        return exact.withThreshold(threshold);
+    }
+
+    private TernaryTriePrimitive newDelta() {
+        return new TernaryTriePrimitive(threshold, delimiter);
+    }
+
+    private static class Layers {
+        private final TernaryTriePrimitive base;
+        private final TernaryTriePrimitive frozen;
+        private final TernaryTriePrimitive delta;
+
+        public Layers(TernaryTriePrimitive base, TernaryTriePrimitive frozen, TernaryTriePrimitive delta) {
+            this.base = base;
+            this.frozen = frozen;
+            this.delta = delta;
+        }
+    }
+}
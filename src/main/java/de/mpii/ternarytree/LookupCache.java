@@ -0,0 +1,243 @@
+package de.mpii.ternarytree;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, concurrent cache of longest matches, to be put in front of a
+ * {@link TernaryTriePrimitive} with setCache. It pays off when a small set
+ * of names accounts for most lookups.
+ *
+ * A longest match only depends on the tokens the walk read before it ended,
+ * so an entry is keyed by that window of tokens. If the walk ran off the end
+ * of the tokens, the entry only applies to windows at the end of the
+ * tokens. A lookup probes the windows of 1 to MAX_WINDOW tokens, hashing
+ * them incrementally and comparing them against the stored tokens, so that
+ * hits do not allocate.
+ *
+ * The cache is set-associative, and a full set only admits a new entry if
+ * a frequency sketch estimates it to be used more often than the least used
+ * entry of the set, as in TinyLFU. The sketch is halved periodically so
+ * that it follows changes in popularity. Any change to the trie
+ * invalidates all entries.
+ */
+public class LookupCache {
+
+  /**
+   * Longest token window that is cached.
+   */
+  static final int MAX_WINDOW = 4;
+
+  private static final int WAYS = 4;
+
+  private AtomicReferenceArray<Entry> table;
+  private int mask;
+  private FrequencySketch sketch;
+  private volatile int generation;
+  private StripedCounter hits = new StripedCounter();
+  private StripedCounter misses = new StripedCounter();
+
+  /**
+   * @param capacity Maximum number of entries, rounded up to a power of two.
+   */
+  public LookupCache(int capacity) {
+    int size = Math.max(WAYS, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+    table = new AtomicReferenceArray<Entry>(size);
+    mask = size - 1;
+    sketch = new FrequencySketch(size);
+  }
+
+  /**
+   * Returns the cached longest match of the tokens from start on, or null.
+   */
+  Match get(String[] tokens, int start) {
+    int currentGeneration = generation;
+    int hash = 0;
+    int maxWindow = Math.min(MAX_WINDOW, tokens.length - start);
+    for (int window = 1; window <= maxWindow; window++) {
+      hash = 31 * hash + tokens[start + window - 1].hashCode();
+      int spread = spread(hash, window);
+      int set = spread & mask & ~(WAYS - 1);
+      for (int way = 0; way < WAYS; way++) {
+        Entry e = table.get(set + way);
+        if (e != null && e.hash == spread && e.generation == currentGeneration
+            && e.matches(tokens, start, window)) {
+          sketch.increment(spread);
+          hits.increment();
+          return new Match(start, e.tokenCount, e.value);
+        }
+      }
+    }
+    misses.increment();
+    return null;
+  }
+
+  /**
+   * Offers the longest match of a walk that read the tokens from start to
+   * lastRead. The entry is only cached if the window is short enough and
+   * the frequency sketch admits it.
+   *
+   * @param generation The generation when the walk started.
+   * @param atEnd      Whether the walk ran off the end of the tokens.
+   */
+  void put(String[] tokens, int start, int lastRead, boolean atEnd, Match match, int generation) {
+    int window = lastRead - start + 1;
+    if (window < 1 || window > MAX_WINDOW || generation != this.generation) {
+      return;
+    }
+    int hash = 0;
+    for (int i = start; i <= lastRead; i++) {
+      hash = 31 * hash + tokens[i].hashCode();
+    }
+    int spread = spread(hash, window);
+    sketch.increment(spread);
+    int set = spread & mask & ~(WAYS - 1);
+    int victim = -1;
+    int victimFrequency = Integer.MAX_VALUE;
+    for (int way = 0; way < WAYS; way++) {
+      Entry e = table.get(set + way);
+      if (e == null || e.generation != generation) {
+        victim = set + way;
+        victimFrequency = -1;
+        break;
+      }
+      int frequency = sketch.frequency(e.hash);
+      if (frequency < victimFrequency) {
+        victim = set + way;
+        victimFrequency = frequency;
+      }
+    }
+    if (sketch.frequency(spread) > victimFrequency) {
+      String[] key = Arrays.copyOfRange(tokens, start, lastRead + 1);
+      table.set(victim, new Entry(spread, key, atEnd, match.getTokenCount(), match.getValue(), generation));
+    }
+  }
+
+  /**
+   * Returns the generation to pass to put for a walk starting now.
+   */
+  int getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Drops all entries. Called whenever the trie changes.
+   */
+  public synchronized void invalidate() {
+    generation++;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public double getHitRate() {
+    long hits = getHits();
+    long lookups = hits + getMisses();
+    return lookups == 0 ? 0.0 : (double) hits / lookups;
+  }
+
+  private static int spread(int hash, int window) {
+    int h = hash * 0x9E3779B9 + window;
+    return h ^ (h >>> 16);
+  }
+
+  private static class Entry {
+    private final int hash;
+    private final String[] tokens;
+    private final boolean atEnd;
+    private final int tokenCount;
+    private final int value;
+    private final int generation;
+
+    public Entry(int hash, String[] tokens, boolean atEnd, int tokenCount, int value, int generation) {
+      this.hash = hash;
+      this.tokens = tokens;
+      this.atEnd = atEnd;
+      this.tokenCount = tokenCount;
+      this.value = value;
+      this.generation = generation;
+    }
+
+    public boolean matches(String[] text, int start, int window) {
+      if (tokens.length != window || (atEnd && start + window != text.length)) {
+        return false;
+      }
+      for (int i = 0; i < window; i++) {
+        if (!tokens[i].equals(text[start + i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A count-min sketch of 4-bit counters, four per key, that estimates how
+   * often a key was used recently. All counters are halved once the
+   * number of increments reaches ten times the table size. Updates are not
+   * synchronized, as increments lost under contention only make the
+   * estimates a bit less exact.
+   */
+  private static class FrequencySketch {
+    private long[] counters;
+    private int mask;
+    private int sampleSize;
+    private int increments;
+
+    public FrequencySketch(int size) {
+      counters = new long[Math.max(4, size / 4)];
+      mask = counters.length - 1;
+      sampleSize = 10 * size;
+    }
+
+    public void increment(int hash) {
+      boolean added = false;
+      for (int i = 0; i < 4; i++) {
+        added |= incrementAt(index(hash, i), counter(hash, i));
+      }
+      if (added && ++increments >= sampleSize) {
+        halve();
+      }
+    }
+
+    public int frequency(int hash) {
+      int frequency = Integer.MAX_VALUE;
+      for (int i = 0; i < 4; i++) {
+        int count = (int) ((counters[index(hash, i)] >>> (counter(hash, i) << 2)) & 0xf);
+        frequency = Math.min(frequency, count);
+      }
+      return frequency;
+    }
+
+    private int index(int hash, int i) {
+      int h = (hash + i) * 0x27d4eb2d;
+      return (h ^ (h >>> 15)) & mask;
+    }
+
+    private int counter(int hash, int i) {
+      return (hash >>> (i << 2)) & 0xf;
+    }
+
+    private boolean incrementAt(int index, int counter) {
+      int shift = counter << 2;
+      long word = counters[index];
+      if (((word >>> shift) & 0xf) == 0xf) {
+        return false;
+      }
+      counters[index] = word + (1L << shift);
+      return true;
+    }
+
+    private void halve() {
+      for (int i = 0; i < counters.length; i++) {
+        counters[i] = (counters[i] >>> 1) & 0x7777777777777777L;
+      }
+      increments /= 2;
+    }
+  }
+}
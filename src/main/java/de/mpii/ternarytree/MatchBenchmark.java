@@ -0,0 +1,101 @@
+package de.mpii.ternarytree;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+/**
+ * Matches a text file of one document per line against a serialized trie,
+ * once walking at every token offset, once skipping the offsets ruled out
+ * by the start filter and once more also starting the walks at the root
+ * table, and reports the time and the walks per document. The last
+ * variant is run again through getAllMatchesBatch, in batches of -b
+ * documents, to compare the lockstep walks with the serial loop. Run as
+ * "App bench -i &lt;trie file&gt; -d &lt;text file&gt;". Node hops per
+ * document are reported too if run with -Dternarytree.metrics=true, see
+ * {@link TrieMetrics}, except for batches, which are not recorded.
+ */
+public class MatchBenchmark {
+
+    public static void main(String[] args) throws ParseException, IOException {
+        Options options = new Options();
+        options.addOption("i", "input", true, "Serialized trie");
+        options.addOption("d", "documents", true, "UTF-8 file with one document per line");
+        options.addOption("r", "rounds", true, "Number of measured rounds per variant, 3 by default");
+        options.addOption("b", "batch", true, "Number of documents per batch, 64 by default");
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = parser.parse(options, args);
+        TernaryTriePrimitive trie = new TrieBuilder().loadTernaryTriePrimitive(new File(cmd.getOptionValue("i")));
+        String delimiter = String.valueOf(trie.getDelimiter());
+        List<String[]> documents = new ArrayList<String[]>();
+        for (String line : Files.readAllLines(Paths.get(cmd.getOptionValue("d")), Charset.forName("UTF-8"))) {
+            documents.add(line.split(delimiter));
+        }
+        int rounds = Integer.parseInt(cmd.getOptionValue("r", "3"));
+        int batchSize = Integer.parseInt(cmd.getOptionValue("b", "64"));
+        trie.removeStartFilter();
+        System.out.print(run("without filter", trie, documents, rounds, 0));
+        trie.buildStartFilter();
+        System.out.print(run("with filter", trie, documents, rounds, 0));
+        trie.buildRootTable();
+        System.out.print(run("with filter and root table", trie, documents, rounds, 0));
+        System.out.print(run("batched with filter and root table", trie, documents, rounds, batchSize));
+    }
+
+    /**
+     * Returns the report of one variant as lines of the form
+     * "variant name&lt;tab&gt;value", after a warmup round.
+     *
+     * @param batchSize Number of documents matched per call of
+     *                  getAllMatchesBatch, or 0 to match them one by one.
+     */
+    static String run(String variant, TernaryTriePrimitive trie, List<String[]> documents, int rounds,
+            int batchSize) {
+        match(trie, documents, batchSize);
+        TrieMetrics metrics = new TrieMetrics();
+        trie.setMetrics(metrics);
+        long startTime = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            match(trie, documents, batchSize);
+        }
+        long nanos = System.nanoTime() - startTime;
+        trie.setMetrics(null);
+        long processed = Math.max(1, (long) rounds * documents.size());
+        StringBuilder report = new StringBuilder();
+        report.append(variant).append(" documents per second\t")
+                .append((long) (processed / Math.max(nanos / 1e9, 1e-9))).append("\n");
+        if (TrieMetrics.ENABLED && batchSize == 0) {
+            TrieMetrics.Snapshot snapshot = metrics.snapshot();
+            report.append(variant).append(" walks per document\t")
+                    .append(String.format("%.1f", (double) snapshot.getLongestMatchCalls() / processed))
+                    .append("\n");
+            report.append(variant).append(" node hops per document\t")
+                    .append(String.format("%.1f",
+                            snapshot.getAverageNodeHops() * snapshot.getLongestMatchCalls() / processed))
+                    .append("\n");
+        }
+        return report.toString();
+    }
+
+    private static void match(TernaryTriePrimitive trie, List<String[]> documents, int batchSize) {
+        if (batchSize > 0) {
+            for (int from = 0; from < documents.size(); from += batchSize) {
+                trie.getAllMatchesBatch(documents.subList(from, Math.min(documents.size(), from + batchSize)));
+            }
+            return;
+        }
+        for (String[] document : documents) {
+            trie.getAllMatches(document);
+        }
+    }
+}
@@ -0,0 +1,448 @@
+package de.mpii.ternarytree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A read-only trie stored as independent partitions by the first character
+ * of the keys, which are loaded when first needed.
+ *
+ * A partitioned file starts with the magic bytes "TTRP", the format version,
+ * the threshold, the delimiter and a directory of the partitions, each as
+ * its first and last char, offset and length in the file and number of
+ * keys. Each partition is a trie file as written by {@link TrieBuilder}.
+ * Opening a file reads the directory only. A lookup at a token loads, or
+ * waits for, the partition of the first char of the token, so that only
+ * the partitions in use take memory. All partitions can also be loaded in
+ * the background with loadInBackground, in which case lookups wait only for
+ * the partition they need.
+ */
+public class PartitionedTrie implements Trie, Closeable {
+
+    private static final byte[] MAGIC = { 'T', 'T', 'R', 'P' };
+    private static final int FORMAT_VERSION = 1;
+
+    private double threshold;
+    private char delimiter;
+    private char[] firstChars;
+    private char[] lastChars;
+    private long[] offsets;
+    private long[] lengths;
+    private int[] keys;
+    private List<FutureTask<TernaryTriePrimitive>> partitions;
+    private RandomAccessFile file;
+    private boolean verifyChecksums = true;
+    private ExecutorService loader;
+    // Decompresses the blocks of all partitions, created on first load.
+    private ExecutorService decompressor;
+    private final TrieBuilder builder = new TrieBuilder();
+
+    /**
+     * Opens a partitioned file, reading its directory.
+     *
+     * @throws IOException If the file is no partitioned trie file.
+     */
+    public PartitionedTrie(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(file.getChannel())));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a partitioned trie file");
+            }
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported partitioned trie format version " + version);
+            }
+            threshold = in.readDouble();
+            delimiter = in.readChar();
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("Corrupt partition directory");
+            }
+            firstChars = new char[count];
+            lastChars = new char[count];
+            offsets = new long[count];
+            lengths = new long[count];
+            keys = new int[count];
+            partitions = new ArrayList<FutureTask<TernaryTriePrimitive>>(count);
+            for (int i = 0; i < count; i++) {
+                firstChars[i] = in.readChar();
+                lastChars[i] = in.readChar();
+                offsets[i] = in.readLong();
+                lengths[i] = in.readLong();
+                keys[i] = in.readInt();
+                if (lastChars[i] < firstChars[i] || (i > 0 && firstChars[i] <= lastChars[i - 1])
+                        || offsets[i] < 0 || lengths[i] < 0 || offsets[i] + lengths[i] > file.length()) {
+                    throw new IOException("Corrupt partition directory");
+                }
+                final int partition = i;
+                partitions.add(new FutureTask<TernaryTriePrimitive>(new Callable<TernaryTriePrimitive>() {
+                    @Override
+                    public TernaryTriePrimitive call() throws IOException {
+                        return load(partition);
+                    }
+                }));
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the keys of a trie as a partitioned file of at most the given
+     * number of partitions, which hold about the same number of keys. The
+     * partitions are neither minimized nor carry indexes or filters. Keys
+     * are streamed from the trie twice, once to count them by first char
+     * and once to write them, and each partition is written to the file
+     * when done, so only the sections of one partition are buffered.
+     */
+    public static void write(TernaryTriePrimitive trie, File path, int partitionCount, TrieCodec codec)
+            throws IOException {
+        int[] counts = new int[Character.MAX_VALUE + 1];
+        long keyCount = 0;
+        TrieCursor cursor = new TrieCursor(trie);
+        while (cursor.next()) {
+            counts[cursor.getKey().charAt(0)]++;
+            keyCount++;
+        }
+        // Cut the sorted keys into ranges of first chars of about equal size.
+        List<char[]> ranges = new ArrayList<char[]>();
+        long perPartition = Math.max(1, (keyCount + partitionCount - 1) / Math.max(1, partitionCount));
+        long inRange = 0;
+        int first = -1;
+        for (int c = 0; c < counts.length; c++) {
+            if (counts[c] == 0) {
+                continue;
+            }
+            if (first == -1) {
+                first = c;
+            }
+            inRange += counts[c];
+            if (inRange >= perPartition) {
+                ranges.add(new char[] { (char) first, (char) c });
+                first = -1;
+                inRange = 0;
+            }
+        }
+        if (first != -1) {
+            ranges.add(new char[] { (char) first, (char) (counts.length - 1) });
+        }
+
+        long[] rangeOffsets = new long[ranges.size()];
+        long[] rangeLengths = new long[ranges.size()];
+        int[] rangeKeys = new int[ranges.size()];
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            file.setLength(0);
+            // The partitions follow the directory, which is written last.
+            long offset = MAGIC.length + 4 + 8 + 2 + 4 + ranges.size() * (2 + 2 + 8 + 8 + 4);
+            file.seek(offset);
+            OutputStream partitionOut = new UnclosableOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(file.getChannel()), 1 << 16));
+            TrieBuilder builder = new TrieBuilder();
+            cursor = new TrieCursor(trie);
+            boolean more = cursor.next();
+            for (int r = 0; r < ranges.size(); r++) {
+                ByteArrayOutputStream nodes = new ByteArrayOutputStream();
+                ByteArrayOutputStream labels = new ByteArrayOutputStream();
+                SortedTrieWriter writer = new SortedTrieWriter(nodes, labels);
+                while (more && cursor.getKey().charAt(0) <= ranges.get(r)[1]) {
+                    writer.add(cursor.getKey(), cursor.getValue());
+                    rangeKeys[r]++;
+                    more = cursor.next();
+                }
+                int root = writer.finish();
+                DataOutputStream out = new DataOutputStream(builder.create(partitionOut, codec, pool));
+                TernaryTriePrimitive.writeHeader(out, trie.getThreshold(), trie.getDelimiter(), 0, root,
+                        writer.getNodeCount(), writer.getNodesChecksum(), writer.getLabelsChecksum());
+                nodes.writeTo(out);
+                labels.writeTo(out);
+                out.close();
+                rangeOffsets[r] = offset;
+                rangeLengths[r] = file.getFilePointer() - offset;
+                offset = file.getFilePointer();
+            }
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(header);
+            out.write(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeDouble(trie.getThreshold());
+            out.writeChar(trie.getDelimiter());
+            out.writeInt(ranges.size());
+            for (int r = 0; r < ranges.size(); r++) {
+                out.writeChar(ranges.get(r)[0]);
+                out.writeChar(ranges.get(r)[1]);
+                out.writeLong(rangeOffsets[r]);
+                out.writeLong(rangeLengths[r]);
+                out.writeInt(rangeKeys[r]);
+            }
+            file.seek(0);
+            file.write(header.toByteArray());
+        } finally {
+            pool.shutdownNow();
+            file.close();
+        }
+    }
+
+    /**
+     * Starts loading all partitions not loaded yet on a background thread,
+     * in order.
+     */
+    public synchronized void loadInBackground() {
+        if (loader == null) {
+            loader = Executors.newSingleThreadExecutor();
+            for (FutureTask<TernaryTriePrimitive> partition : partitions) {
+                loader.execute(partition);
+            }
+            loader.shutdown();
+        }
+    }
+
+    public void setVerifyChecksums(boolean verifyChecksums) {
+        this.verifyChecksums = verifyChecksums;
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    public char getDelimiter() {
+        return delimiter;
+    }
+
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    public int getLoadedPartitionCount() {
+        int loaded = 0;
+        for (FutureTask<TernaryTriePrimitive> partition : partitions) {
+            if (partition.isDone()) {
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Returns the number of keys in all partitions, from the directory.
+     */
+    public long getKeyCount() {
+        long count = 0;
+        for (int k : keys) {
+            count += k;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the partition holding the keys that start with c, loading it
+     * if needed, or null if there is none.
+     *
+     * @throws IllegalStateException If the partition cannot be read, with
+     *         the IOException as cause.
+     */
+    TernaryTriePrimitive getPartition(char c) {
+        int lo = 0;
+        int hi = firstChars.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (c < firstChars[mid]) {
+                hi = mid - 1;
+            } else if (c > lastChars[mid]) {
+                lo = mid + 1;
+            } else {
+                return getPartition(mid);
+            }
+        }
+        return null;
+    }
+
+    private TernaryTriePrimitive getPartition(int index) {
+        FutureTask<TernaryTriePrimitive> partition = partitions.get(index);
+        // Loads the partition, unless another thread already does.
+        partition.run();
+        try {
+            return partition.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading a partition", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Cannot load partition " + index, e.getCause());
+        }
+    }
+
+    private TernaryTriePrimitive load(int index) throws IOException {
+        ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, offsets[index], lengths[index]);
+        return builder.load(new ByteBufferInputStream(buffer), getDecompressor(), verifyChecksums);
+    }
+
+    private synchronized ExecutorService getDecompressor() {
+        if (decompressor == null) {
+            decompressor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "partitioned-trie-load");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return decompressor;
+    }
+
+    public Match getLongestMatch(String[] tokens, int start) {
+        if (start < tokens.length) {
+            String token = tokens[start];
+            char first = token.length() > 0 ? token.charAt(0) : delimiter;
+            TernaryTriePrimitive partition = getPartition(first);
+            if (partition != null) {
+                return partition.getLongestMatch(tokens, start);
+            }
+        }
+        return new Match(start, 0, -1);
+    }
+
+    /**
+     * Same as {@link TernaryTriePrimitive#getAllMatches(String[])}.
+     */
+    public List<Match> getAllMatches(String[] tokens) {
+        List<Match> matchedSpots = new ArrayList<Match>();
+        int i = 0;
+        while (i < tokens.length) {
+            Match m = getLongestMatch(tokens, i);
+            if (m.getTokenCount() > 0) {
+                matchedSpots.add(m);
+                // Jump after longest match.
+                i += m.getTokenCount();
+            } else {
+                i++;
+            }
+        }
+        return matchedSpots;
+    }
+
+    public int get(String[] tokens) {
+        Match match = getLongestMatch(tokens, 0);
+        return match.getTokenCount() == tokens.length ? match.getValue() : -1;
+    }
+
+    @Override
+    public int get(String key) {
+        return get(key.split(String.valueOf(delimiter)));
+    }
+
+    /**
+     * Unsupported, the trie is read-only.
+     */
+    @Override
+    public void put(String key, int value) {
+        throw new UnsupportedOperationException("A partitioned trie cannot be modified");
+    }
+
+    /**
+     * Returns the contents of all partitions, loading them.
+     */
+    @Override
+    public String getContent() {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < partitions.size(); i++) {
+            content.append(getPartition(i).getContent());
+        }
+        return content.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (loader != null) {
+                loader.shutdownNow();
+            }
+            if (decompressor != null) {
+                decompressor.shutdownNow();
+            }
+        }
+        file.close();
+    }
+
+    /**
+     * Writes partitions to the file, whose streams close their output when
+     * done, without closing the file.
+     */
+    private static class UnclosableOutputStream extends FilterOutputStream {
+
+        public UnclosableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Reads a mapped partition.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return len == 0 ? 0 : -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package de.mpii.ternarytree;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Finds the stored keys of a {@link TernaryTriePrimitive} that match a
+ * pattern, see {@link TernaryTriePrimitive#visitMatches(String, EntryVisitor, int)}.
+ *
+ * The pattern is compiled into a nondeterministic automaton over the
+ * characters of stored keys, and the trie is walked in order with the set
+ * of automaton states reached on the way. Where the set only expects
+ * literal characters, the binary search trees of siblings are searched
+ * for them rather than traversed, and subtrees that no state can continue
+ * into are skipped. Every key is visited at most once, in sorted order.
+ */
+final class PatternMatcher {
+
+    private static final byte CHAR = 0;
+    private static final byte ANY = 1;      // one character but the delimiter
+    private static final byte STAR = 2;     // characters but the delimiter
+    private static final byte ANY_ALL = 3;  // one character
+    private static final byte GLOB = 4;     // any characters
+    private static final byte SPLIT = 5;    // continues at the next state and at alt
+    private static final byte FINAL = 6;
+
+    private TernaryTriePrimitive trie;
+    private char delimiter;
+    private byte[] types = new byte[16];
+    private char[] chars = new char[16];
+    private int[] alts = new int[16];
+    private int size;
+
+    private EntryVisitor visitor;
+    private int limit;
+    private int found;
+    private StringBuilder prefix = new StringBuilder();
+
+    /**
+     * @param pattern Tokens separated by the delimiter of the trie. In a
+     *                token, '?' matches one character and '*' any number
+     *                of characters. A token "**" matches any number of
+     *                whole tokens. Tokens without wildcards are truncated
+     *                by the threshold of the trie, like keys.
+     */
+    PatternMatcher(TernaryTriePrimitive trie, String pattern) {
+        this.trie = trie;
+        this.delimiter = trie.getDelimiter();
+        String[] tokens = pattern.split(String.valueOf(delimiter));
+        boolean delimiterDone = false;
+        for (int t = 0; t < tokens.length; t++) {
+            String token = tokens[t];
+            if (token.equals("**")) {
+                // Optional group of one or more tokens, including the
+                // delimiter on one side, so that skipping it leaves one.
+                int split = add(SPLIT, '\0');
+                if (t > 0 && !delimiterDone) {
+                    add(CHAR, delimiter);
+                }
+                add(ANY_ALL, '\0');
+                add(GLOB, '\0');
+                delimiterDone = t == 0 && t < tokens.length - 1;
+                if (delimiterDone) {
+                    add(CHAR, delimiter);
+                }
+                alts[split] = size;
+                continue;
+            }
+            if (t > 0 && !delimiterDone) {
+                add(CHAR, delimiter);
+            }
+            delimiterDone = false;
+            int length = token.length();
+            if (token.indexOf('?') < 0 && token.indexOf('*') < 0) {
+                length = (int) Math.ceil(length * trie.getThreshold());
+            }
+            for (int i = 0; i < length; i++) {
+                char c = token.charAt(i);
+                if (c == '?') {
+                    add(ANY, '\0');
+                } else if (c == '*') {
+                    add(STAR, '\0');
+                } else {
+                    add(CHAR, c);
+                }
+            }
+        }
+        add(FINAL, '\0');
+    }
+
+    /**
+     * Visits the matching keys in sorted order, at most limit of them.
+     *
+     * @return Number of keys visited.
+     */
+    int visit(EntryVisitor visitor, int limit) {
+        this.visitor = visitor;
+        this.limit = limit;
+        found = 0;
+        prefix.setLength(0);
+        BitSet start = new BitSet(size);
+        addClosure(start, 0);
+        visitSiblings(trie.getRoot(), 0, start);
+        return found;
+    }
+
+    private int add(byte type, char c) {
+        if (size == types.length) {
+            types = Arrays.copyOf(types, 2 * size);
+            chars = Arrays.copyOf(chars, 2 * size);
+            alts = Arrays.copyOf(alts, 2 * size);
+        }
+        types[size] = type;
+        chars[size] = c;
+        return size++;
+    }
+
+    private void addClosure(BitSet states, int state) {
+        if (states.get(state)) {
+            return;
+        }
+        states.set(state);
+        if (types[state] == STAR || types[state] == GLOB) {
+            addClosure(states, state + 1);
+        } else if (types[state] == SPLIT) {
+            addClosure(states, state + 1);
+            addClosure(states, alts[state]);
+        }
+    }
+
+    /**
+     * Returns the states reached from the given ones by reading c.
+     */
+    private BitSet step(BitSet states, char c) {
+        BitSet next = new BitSet(size);
+        for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+            switch (types[s]) {
+            case CHAR:
+                if (chars[s] == c) {
+                    addClosure(next, s + 1);
+                }
+                break;
+            case ANY:
+                if (c != delimiter) {
+                    addClosure(next, s + 1);
+                }
+                break;
+            case ANY_ALL:
+                addClosure(next, s + 1);
+                break;
+            case STAR:
+                if (c != delimiter) {
+                    addClosure(next, s);
+                }
+                break;
+            case GLOB:
+                addClosure(next, s);
+                break;
+            default:
+                break;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Visits the binary search tree of siblings below node in order. Only
+     * the parts that can hold a character some state reads are entered.
+     * rank is that of node, see TernaryTriePrimitive.getNodeValue(int, int).
+     */
+    private void visitSiblings(int node, int rank, BitSet states) {
+        if (node == -1 || found >= limit) {
+            return;
+        }
+        boolean wildcard = false;
+        char min = Character.MAX_VALUE;
+        char max = Character.MIN_VALUE;
+        for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+            if (types[s] == CHAR) {
+                min = (char) Math.min(min, chars[s]);
+                max = (char) Math.max(max, chars[s]);
+            } else if (types[s] != SPLIT && types[s] != FINAL) {
+                wildcard = true;
+            }
+        }
+        visitSiblings(node, rank, states, wildcard, min, max);
+    }
+
+    private void visitSiblings(int node, int rank, BitSet states, boolean wildcard, char min, char max) {
+        if (node == -1 || found >= limit) {
+            return;
+        }
+        char label = trie.getNodeKey(node);
+        if (wildcard || min < label) {
+            visitSiblings(trie.getLessChild(node), rank, states, wildcard, min, max);
+        }
+        if (found >= limit) {
+            return;
+        }
+        if (wildcard || (min <= label && label <= max)) {
+            BitSet next = step(states, label);
+            if (!next.isEmpty()) {
+                prefix.append(label);
+                int value = next.get(size - 1) ? trie.getNodeValue(node, rank) : -1;
+                if (value != -1) {
+                    found++;
+                    visitor.visit(prefix.toString(), value);
+                }
+                visitSiblings(trie.getEqualChild(node), trie.getEqualRank(node, rank), next);
+                prefix.setLength(prefix.length() - 1);
+            }
+        }
+        if (wildcard || max > label) {
+            visitSiblings(trie.getGreatChild(node), trie.getGreatRank(node, rank), states, wildcard, min, max);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package de.mpii.ternarytree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps values back to the keys of a {@link TernaryTriePrimitive}, see
+ * {@link TernaryTriePrimitive#buildReverseIndex()}.
+ *
+ * The terminal nodes of all keys are grouped by value: the nodes of the
+ * i-th of the sorted distinct values are nodes[offsets[i]] to
+ * nodes[offsets[i + 1] - 1]. A key is spelled by following the parent
+ * pointers from its terminal node to the root and collecting the labels
+ * of the nodes that were left through their equal child.
+ */
+final class ReverseIndex {
+
+    final int[] parents;
+    final int[] values;
+    final int[] offsets;
+    final int[] nodes;
+
+    ReverseIndex(int[] parents, int[] values, int[] offsets, int[] nodes) {
+        this.parents = parents;
+        this.values = values;
+        this.offsets = offsets;
+        this.nodes = nodes;
+    }
+
+    /**
+     * Indexes the keys of a trie that is a tree, i.e. not minimized.
+     */
+    static ReverseIndex build(TernaryTriePrimitive trie) {
+        int[] parents = new int[trie.getNodeSlots()];
+        Arrays.fill(parents, -1);
+        long[] entries = new long[16];
+        int count = 0;
+        // Depth-first, with an explicit stack as keys can be long.
+        int[] stack = new int[16];
+        int size = 0;
+        if (trie.getRoot() != -1) {
+            stack[size++] = trie.getRoot();
+        }
+        while (size > 0) {
+            int node = stack[--size];
+            int value = trie.getNodeValue(node);
+            if (value != -1) {
+                if (count == entries.length) {
+                    entries = Arrays.copyOf(entries, 2 * count);
+                }
+                entries[count++] = ((long) value << 32) | node;
+            }
+            if (size + 3 > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+            }
+            for (int child : new int[] { trie.getLessChild(node), trie.getEqualChild(node), trie.getGreatChild(node) }) {
+                if (child != -1) {
+                    parents[child / 4] = node;
+                    stack[size++] = child;
+                }
+            }
+        }
+        Arrays.sort(entries, 0, count);
+
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || (int) (entries[i] >> 32) != (int) (entries[i - 1] >> 32)) {
+                distinct++;
+            }
+        }
+        int[] values = new int[distinct];
+        int[] offsets = new int[distinct + 1];
+        int[] nodes = new int[count];
+        int v = -1;
+        for (int i = 0; i < count; i++) {
+            int value = (int) (entries[i] >> 32);
+            if (v == -1 || value != values[v]) {
+                values[++v] = value;
+                offsets[v] = i;
+            }
+            nodes[i] = (int) entries[i];
+        }
+        offsets[distinct] = count;
+        return new ReverseIndex(parents, values, offsets, nodes);
+    }
+
+    /**
+     * Returns the stored keys with the given value, in the order of their
+     * terminal nodes.
+     */
+    List<String> getKeys(TernaryTriePrimitive trie, int value) {
+        List<String> keys = new ArrayList<String>();
+        int i = Arrays.binarySearch(values, value);
+        if (i < 0) {
+            return keys;
+        }
+        StringBuilder key = new StringBuilder();
+        for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+            key.setLength(0);
+            int node = nodes[j];
+            key.append(trie.getNodeKey(node));
+            int parent = parents[node / 4];
+            while (parent != -1) {
+                if (trie.getEqualChild(parent) == node) {
+                    key.append(trie.getNodeKey(parent));
+                }
+                node = parent;
+                parent = parents[node / 4];
+            }
+            keys.add(key.reverse().toString());
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,89 @@
+package de.mpii.ternarytree;
+
+import java.util.Arrays;
+
+/**
+ * Maps the first characters of a key directly to their nodes in a
+ * {@link TernaryTriePrimitive}, see
+ * {@link TernaryTriePrimitive#buildRootTable()}, so that lookups skip the
+ * binary search trees of siblings at the first two levels.
+ *
+ * singles[c] is the root level node labeled c, for c below 256, and
+ * pairs[128 * c + d] the node labeled d among the siblings below the
+ * equal child of the root level node labeled c, for c and d below 128.
+ * Missing nodes are -1. If the trie has a value table, singleRanks and
+ * pairRanks hold the ranks of the nodes, see
+ * {@link TernaryTriePrimitive#getNodeValue(int, int)}, and are null
+ * otherwise.
+ */
+final class RootTable {
+
+    static final int SINGLE_CHARS = 256;
+    static final int PAIR_CHARS = 128;
+
+    final int[] singles = new int[SINGLE_CHARS];
+    final int[] pairs = new int[PAIR_CHARS * PAIR_CHARS];
+    final int[] singleRanks;
+    final int[] pairRanks;
+
+    private RootTable(boolean ranked) {
+        Arrays.fill(singles, -1);
+        Arrays.fill(pairs, -1);
+        singleRanks = ranked ? new int[SINGLE_CHARS] : null;
+        pairRanks = ranked ? new int[PAIR_CHARS * PAIR_CHARS] : null;
+    }
+
+    static RootTable build(TernaryTriePrimitive trie) {
+        RootTable table = new RootTable(trie.hasValueTable());
+        table.addSingles(trie, trie.getRoot(), 0);
+        return table;
+    }
+
+    /**
+     * Returns the memory taken by the tables.
+     */
+    long getBytes() {
+        return getBytes(singleRanks != null);
+    }
+
+    /**
+     * Returns the memory taken by the tables of a trie with or without a
+     * value table, without building them.
+     */
+    static long getBytes(boolean ranked) {
+        return 4L * (SINGLE_CHARS + PAIR_CHARS * PAIR_CHARS) * (ranked ? 2 : 1);
+    }
+
+    private void addSingles(TernaryTriePrimitive trie, int node, int rank) {
+        if (node == -1) {
+            return;
+        }
+        char label = trie.getNodeKey(node);
+        if (label < SINGLE_CHARS) {
+            singles[label] = node;
+            if (singleRanks != null) {
+                singleRanks[label] = rank;
+            }
+            if (label < PAIR_CHARS) {
+                addPairs(trie, trie.getEqualChild(node), trie.getEqualRank(node, rank), label * PAIR_CHARS);
+            }
+        }
+        addSingles(trie, trie.getLessChild(node), rank);
+        addSingles(trie, trie.getGreatChild(node), trie.getGreatRank(node, rank));
+    }
+
+    private void addPairs(TernaryTriePrimitive trie, int node, int rank, int offset) {
+        if (node == -1) {
+            return;
+        }
+        char label = trie.getNodeKey(node);
+        if (label < PAIR_CHARS) {
+            pairs[offset + label] = node;
+            if (pairRanks != null) {
+                pairRanks[offset + label] = rank;
+            }
+        }
+        addPairs(trie, trie.getLessChild(node), rank, offset);
+        addPairs(trie, trie.getGreatChild(node), trie.getGreatRank(node, rank), offset);
+    }
+}
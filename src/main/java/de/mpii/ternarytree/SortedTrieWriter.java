@@ -0,0 +1,237 @@
+package de.mpii.ternarytree;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Writes the node and label sections of a {@link TernaryTriePrimitive}
+ * from stored keys, i.e. already thresholded and with tokens joined by the
+ * delimiter, that arrive in sorted order. Memory use only depends on the
+ * longest key and the number of siblings along it, not on the number of
+ * keys.
+ *
+ * For each character position of the current key, the siblings seen so
+ * far under its prefix are kept. When a key leaves a prefix, the siblings
+ * below it are complete and are written as a balanced binary search tree
+ * in post-order, so that the ids of all children are known when a node is
+ * written. The root comes last.
+ */
+final class SortedTrieWriter {
+
+    private DataOutputStream nodesOut;
+    private DataOutputStream labelsOut;
+    private CRC32 nodesCrc = new CRC32();
+    private CRC32 labelsCrc = new CRC32();
+    private int count;
+
+    // Siblings per character position of the previous key.
+    private char[][] labels = new char[0][];
+    private int[][] values = new int[0][];
+    private int[][] equals = new int[0][];
+    private int[] sizes = new int[0];
+    private StringBuilder previous;
+
+    /**
+     * Stored keys and their values in sorted order.
+     */
+    interface Source {
+        /**
+         * Advances to the next key, if there is one.
+         */
+        boolean next() throws IOException;
+
+        CharSequence getKey();
+
+        int getValue();
+    }
+
+    SortedTrieWriter(OutputStream nodes, OutputStream labels) {
+        this.nodesOut = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(nodes, nodesCrc)));
+        this.labelsOut = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(labels, labelsCrc)));
+    }
+
+    /**
+     * Adds a stored key, which is copied, so that callers can reuse a
+     * buffer. If it equals the previous key, its value replaces the
+     * previous one.
+     *
+     * @throws IllegalArgumentException If the key is empty or sorts
+     *         before the previous key.
+     */
+    void add(CharSequence key, int value) throws IOException {
+        if (key.length() == 0) {
+            throw new IllegalArgumentException("Stored keys are never empty");
+        }
+        int common = 0;
+        if (previous != null) {
+            int max = Math.min(previous.length(), key.length());
+            while (common < max && previous.charAt(common) == key.charAt(common)) {
+                common++;
+            }
+            if (common == key.length() && common == previous.length()) {
+                values[common - 1][sizes[common - 1] - 1] = value;
+                return;
+            }
+            if (common == key.length()
+                    || (common < previous.length() && key.charAt(common) < previous.charAt(common))) {
+                throw new IllegalArgumentException("Keys are not sorted: " + key + " after " + previous);
+            }
+            closeLevels(common + 1);
+        }
+        for (int level = common; level < key.length(); level++) {
+            append(level, key.charAt(level));
+        }
+        values[key.length() - 1][sizes[key.length() - 1] - 1] = value;
+        if (previous == null) {
+            previous = new StringBuilder();
+        }
+        previous.setLength(0);
+        previous.append(key);
+    }
+
+    /**
+     * Writes the remaining nodes and flushes the sections.
+     *
+     * @return Id of the root node, or -1 if no keys were added.
+     */
+    int finish() throws IOException {
+        int root = -1;
+        if (previous != null) {
+            closeLevels(1);
+            root = writeTree(0, 0, sizes[0] - 1);
+            sizes[0] = 0;
+        }
+        nodesOut.flush();
+        labelsOut.flush();
+        return root;
+    }
+
+    /**
+     * Writes a trie file as by {@link TrieBuilder} from the keys of a
+     * source. The sections are buffered in temporary files in tempDir, or
+     * the default temporary directory if null, since the header that
+     * precedes them holds their checksums.
+     */
+    static void writeFile(Source source, double threshold, char delimiter, File file, TrieCodec codec,
+            int threads, File tempDir) throws IOException {
+        File nodesFile = null;
+        File labelsFile = null;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            nodesFile = File.createTempFile("trie-nodes", ".tmp", tempDir);
+            labelsFile = File.createTempFile("trie-labels", ".tmp", tempDir);
+            OutputStream nodes = new FileOutputStream(nodesFile);
+            OutputStream labels = new FileOutputStream(labelsFile);
+            SortedTrieWriter writer = new SortedTrieWriter(nodes, labels);
+            int root;
+            try {
+                while (source.next()) {
+                    writer.add(source.getKey(), source.getValue());
+                }
+                root = writer.finish();
+            } finally {
+                nodes.close();
+                labels.close();
+            }
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new TrieBuilder(threads).create(new FileOutputStream(file), codec, pool)));
+            try {
+                TernaryTriePrimitive.writeHeader(out, threshold, delimiter, 0, root, writer.getNodeCount(),
+                        writer.getNodesChecksum(), writer.getLabelsChecksum());
+                Files.copy(nodesFile.toPath(), out);
+                Files.copy(labelsFile.toPath(), out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            pool.shutdownNow();
+            if (nodesFile != null) {
+                nodesFile.delete();
+            }
+            if (labelsFile != null) {
+                labelsFile.delete();
+            }
+        }
+    }
+
+    int getNodeCount() {
+        return count;
+    }
+
+    int getNodesChecksum() {
+        return (int) nodesCrc.getValue();
+    }
+
+    int getLabelsChecksum() {
+        return (int) labelsCrc.getValue();
+    }
+
+    /**
+     * Writes the siblings of all positions from level on, deepest first,
+     * and links each tree below the last sibling on the level above.
+     */
+    private void closeLevels(int level) throws IOException {
+        for (int l = previous.length() - 1; l >= level; l--) {
+            equals[l - 1][sizes[l - 1] - 1] = writeTree(l, 0, sizes[l] - 1);
+            sizes[l] = 0;
+        }
+    }
+
+    private void append(int level, char label) {
+        if (level == sizes.length) {
+            int capacity = Math.max(16, 2 * level);
+            labels = Arrays.copyOf(labels, capacity);
+            values = Arrays.copyOf(values, capacity);
+            equals = Arrays.copyOf(equals, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            for (int l = level; l < capacity; l++) {
+                labels[l] = new char[4];
+                values[l] = new int[4];
+                equals[l] = new int[4];
+            }
+        }
+        int size = sizes[level];
+        if (size == labels[level].length) {
+            labels[level] = Arrays.copyOf(labels[level], 2 * size);
+            values[level] = Arrays.copyOf(values[level], 2 * size);
+            equals[level] = Arrays.copyOf(equals[level], 2 * size);
+        }
+        labels[level][size] = label;
+        values[level][size] = -1;
+        equals[level][size] = -1;
+        sizes[level]++;
+    }
+
+    /**
+     * Writes the siblings from to to of a level as a balanced binary search
+     * tree and returns the id of its root.
+     */
+    private int writeTree(int level, int from, int to) throws IOException {
+        if (from > to) {
+            return -1;
+        }
+        int mid = (from + to) >>> 1;
+        int less = writeTree(level, from, mid - 1);
+        int great = writeTree(level, mid + 1, to);
+        if (count == Integer.MAX_VALUE / 4) {
+            throw new IOException("Too many nodes for the node format");
+        }
+        nodesOut.writeInt(less);
+        nodesOut.writeInt(equals[level][mid]);
+        nodesOut.writeInt(great);
+        nodesOut.writeInt(values[level][mid]);
+        labelsOut.writeChar(labels[level][mid]);
+        return 4 * count++;
+    }
+}
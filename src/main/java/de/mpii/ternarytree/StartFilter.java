@@ -0,0 +1,101 @@
+package de.mpii.ternarytree;
+
+/**
+ * A Bloom filter telling the token offsets of a text at which no key can
+ * start, see {@link TernaryTriePrimitive#buildStartFilter()}.
+ *
+ * It holds the first token of every key of one token and the first two
+ * tokens of every longer key, truncated as stored. A key can only match
+ * at offset i if the filter contains token i alone or tokens i and i + 1,
+ * truncated the same way. False positives only cost a walk.
+ */
+final class StartFilter {
+
+    static final int BITS_PER_ENTRY = 10;
+    private static final int HASHES = 7;
+
+    final long[] bits;
+    private final long mask;
+
+    StartFilter(int entries) {
+        long size = Long.highestOneBit(Math.max(64L, (long) entries * BITS_PER_ENTRY - 1)) << 1;
+        bits = new long[(int) Math.min(size / 64, 1 << 30)];
+        mask = (long) bits.length * 64 - 1;
+    }
+
+    StartFilter(long[] bits) {
+        this.bits = bits;
+        this.mask = (long) bits.length * 64 - 1;
+    }
+
+    /**
+     * Adds a stored key, i.e. truncated tokens joined by the delimiter.
+     */
+    void addStoredKey(String key, char delimiter) {
+        int end = key.indexOf(delimiter);
+        if (end < 0) {
+            add(key, 0, key.length(), null, 0, 0);
+            return;
+        }
+        int secondEnd = key.indexOf(delimiter, end + 1);
+        add(key, 0, end, key, end + 1, secondEnd < 0 ? key.length() : secondEnd);
+    }
+
+    /**
+     * Adds the start of a key: the characters from to to of first, and the
+     * ones of second, unless the key has a single token and second is null.
+     */
+    void add(String first, int from, int to, String second, int secondFrom, int secondTo) {
+        long hash = hash(first, from, to);
+        add(second == null ? hash : pair(hash, hash(second, secondFrom, secondTo)));
+    }
+
+    /**
+     * Returns whether a key may start with the first length characters of
+     * token, or with those followed by the first nextLength characters of
+     * next, if next is not null.
+     */
+    boolean mayStart(String token, int length, String next, int nextLength) {
+        long first = hash(token, 0, length);
+        return contains(first) || (next != null && contains(pair(first, hash(next, 0, nextLength))));
+    }
+
+    private void add(long hash) {
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = (hash + i * h2) & mask;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private boolean contains(long hash) {
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = (hash + i * h2) & mask;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hash(String s, int from, int to) {
+        long h = 0x9E3779B97F4A7C15L;
+        for (int i = from; i < to; i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    private static long pair(long first, long second) {
+        return mix(first * 31 + second);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
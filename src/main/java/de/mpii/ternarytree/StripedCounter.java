@@ -0,0 +1,61 @@
+package de.mpii.ternarytree;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for concurrent updates. Threads add to different stripes,
+ * each on its own cache line, and the stripes are summed on read.
+ */
+class StripedCounter {
+
+  // Longs per stripe, so that stripes do not share cache lines.
+  private static final int PADDING = 8;
+
+  private AtomicLongArray cells;
+  private int mask;
+
+  public StripedCounter() {
+    int stripes = stripes();
+    cells = new AtomicLongArray(stripes * PADDING);
+    mask = stripes - 1;
+  }
+
+  /**
+   * Returns the number of stripes, a power of two of at least twice the
+   * number of processors.
+   */
+  static int stripes() {
+    return Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+  }
+
+  /**
+   * Returns the stripe of the current thread, given the number of stripes
+   * minus one.
+   */
+  static int stripe(int mask) {
+    long id = Thread.currentThread().getId();
+    return (int) (id ^ (id >>> 16)) & mask;
+  }
+
+  public void add(long x) {
+    cells.getAndAdd(stripe(mask) * PADDING, x);
+  }
+
+  public void increment() {
+    add(1);
+  }
+
+  public long sum() {
+    long sum = 0;
+    for (int i = 0; i < cells.length(); i += PADDING) {
+      sum += cells.get(i);
+    }
+    return sum;
+  }
+
+  public void reset() {
+    for (int i = 0; i < cells.length(); i += PADDING) {
+      cells.set(i, 0);
+    }
+  }
+}
@@ -1,11 +1,10 @@
 package de.mpii.ternarytree;
 
-import gnu.trove.list.TCharList;
 import gnu.trove.list.TIntList;
-import gnu.trove.list.array.TCharArrayList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TLongIntHashMap;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -13,18 +12,87 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
 
 public class TernaryTriePrimitive implements Trie, SerializableTrie {
   
-    private static final int FORMAT_VERSION = 1;
+    private static final int FORMAT_VERSION = 3;
+
+    /**
+     * "TTRS", which starts serialized tries since format version 3.
+     * Earlier versions start with the version.
+     */
+    static final int MAGIC = 0x54545253;
+
+    /**
+     * Size of the blocks in which sections are checksummed and read.
+     */
+    private static final int SECTION_BLOCK_BYTES = 1 << 16;
+
+    /**
+     * Number of walks advanced in lockstep by the batch lookups.
+     */
+    private static final int BATCH_LANES = 16;
+
+    /**
+     * Batches are not split further for the fork-join pool below this many
+     * keys or documents.
+     */
+    private static final int BATCH_SPLIT_THRESHOLD = 1024;
+
+    /**
+     * Minimum number of tokens per chunk of the parallel getAllMatches.
+     */
+    private static final int MIN_CHUNK_TOKENS = 4096;
+
+    /**
+     * Header flag of a trie whose identical subtrees are shared.
+     */
+    private static final int FLAG_MINIMIZED = 1;
+
+    /**
+     * Header flag of a trie that is followed by its reverse index.
+     */
+    private static final int FLAG_REVERSE_INDEX = 2;
+
+    /**
+     * Header flag of a trie that is followed by its start filter.
+     */
+    private static final int FLAG_START_FILTER = 4;
+
+    /**
+     * Header flag of a minimized trie whose values are kept in a value
+     * table, see minimize.
+     */
+    private static final int FLAG_VALUE_TABLE = 8;
       
-    private TCharList labels = new TCharArrayList();
-    private TIntList nodes = new TIntArrayList();
+    private ChunkedCharList labels = new ChunkedCharList();
+    private ChunkedIntList nodes = new ChunkedIntList();
+    private ChunkedIntList freeNodes = new ChunkedIntList();
     private int root;
     private double threshold;
     private char delimiter;
+    private boolean minimized;
+    private ReverseIndex reverseIndex;
+    private StartFilter startFilter;
+    private RootTable rootTable;
+    private int[] valueTable;
+    private int maxKeyTokens;
+    private boolean verifyChecksums = true;
+    private TrieMetrics metrics;
+    private LookupCache cache;
+    private HitCounter hitCounter;
     
     public TernaryTriePrimitive() {
       this(1.0);
@@ -40,6 +108,32 @@ public class TernaryTriePrimitive implements Trie, SerializableTrie {
         delimiter = d;
     }
         
+    public double getThreshold() {
+        return threshold;
+    }
+
+    public char getDelimiter() {
+        return delimiter;
+    }
+
+    /**
+     * Returns a trie that shares the nodes of this one, but truncates the
+     * keys it is queried or filled with using the given threshold. Filling
+     * a trie of threshold 1.0 with the stored keys of another trie and then
+     * taking this view with the other trie's threshold yields a copy of it.
+     */
+    TernaryTriePrimitive withThreshold(double t) {
+        TernaryTriePrimitive view = new TernaryTriePrimitive(t, delimiter);
+        view.labels = labels;
+        view.nodes = nodes;
+        view.freeNodes = freeNodes;
+        view.root = root;
+        view.minimized = minimized;
+        view.valueTable = valueTable;
+        view.maxKeyTokens = maxKeyTokens;
+        return view;
+    }
+
     public void bulkLoadTrie(Map<String, Integer> items) {
         String[] mentions = items.keySet().toArray(new String[]{});
         Arrays.sort(mentions);
@@ -65,8 +159,18 @@ public class TernaryTriePrimitive implements Trie, SerializableTrie {
      * @return List of Matched SPots
      */
     public List<Match> getAllMatches(String[] tokens) {
+        if (TrieMetrics.ENABLED && metrics != null) {
+            long startTime = System.nanoTime();
+            List<Match> matchedSpots = scanAllMatches(tokens);
+            metrics.recordAllMatches(matchedSpots.size(), System.nanoTime() - startTime);
+            return matchedSpots;
+        }
+        return scanAllMatches(tokens);
+    }
+
+    private List<Match> scanAllMatches(String[] tokens) {
         List<Match> matchedSpots = new ArrayList<Match>();
-        int i = 0;
+        int i = skipHopelessStarts(tokens, 0);
         while (i < tokens.length) {
             Match m = getLongestMatch(tokens, i);
             if (m.getTokenCount() > 0) {
@@ -76,6 +180,7 @@ public class TernaryTriePrimitive implements Trie, SerializableTrie {
             } else {
                 i++;
             }
+            i = skipHopelessStarts(tokens, i);
         }
         return matchedSpots;
     }
@@ -84,14 +189,377 @@ public class TernaryTriePrimitive implements Trie, SerializableTrie {
         return getLongestMatchAndInternalNodeId(tokens, start, null);
     }
 
+    /**
+     * Same as {@link #getAllMatches(String[])}, but scans chunks of long
+     * token arrays in parallel on the given pool.
+     *
+     * The greedy scan visits the offsets p, next(p), next(next(p)) and so
+     * on, where next only depends on p, so two scans that visit the same
+     * offset agree from there on. Each chunk is scanned speculatively from
+     * getMaxKeyTokens() tokens before its start, which is as far as a
+     * match from the previous chunk reaches into it, so that the scan has
+     * usually converged with the actual one by the start of the chunk.
+     * The chunks are then spliced in order: the scan continues at the
+     * first offset of the next chunk it reaches, and if the speculative
+     * scan did not visit that offset, the offsets are scanned again until
+     * they meet one it visited.
+     *
+     * The metrics record the call once, like a call of
+     * {@link #getAllMatches(String[])}.
+     */
+    public List<Match> getAllMatches(String[] tokens, ForkJoinPool pool) {
+        if (TrieMetrics.ENABLED && metrics != null) {
+            long startTime = System.nanoTime();
+            List<Match> matchedSpots = scanAllMatches(tokens, pool);
+            metrics.recordAllMatches(matchedSpots.size(), System.nanoTime() - startTime);
+            return matchedSpots;
+        }
+        return scanAllMatches(tokens, pool);
+    }
+
+    private List<Match> scanAllMatches(String[] tokens, ForkJoinPool pool) {
+        int chunkTokens = Math.max(MIN_CHUNK_TOKENS, tokens.length / (4 * pool.getParallelism()) + 1);
+        if (tokens.length <= chunkTokens) {
+            return scanAllMatches(tokens);
+        }
+        Chunk[] chunks = new Chunk[(tokens.length + chunkTokens - 1) / chunkTokens];
+        int overlap = getMaxKeyTokens();
+        for (int c = 0; c < chunks.length; c++) {
+            chunks[c] = new Chunk(c * chunkTokens, Math.min(tokens.length, (c + 1) * chunkTokens));
+        }
+        pool.invoke(new ChunkTask(tokens, chunks, 0, chunks.length, overlap));
+        List<Match> matchedSpots = new ArrayList<Match>();
+        int i = skipHopelessStarts(tokens, 0);
+        for (Chunk chunk : chunks) {
+            if (i >= chunk.to) {
+                // A match spans the whole chunk.
+                continue;
+            }
+            int step = chunk.offsets.binarySearch(i);
+            while (step < 0) {
+                // The speculative scan missed this offset, scan on until
+                // the scans meet or the chunk ends.
+                Match m = getLongestMatch(tokens, i);
+                if (m.getTokenCount() > 0) {
+                    matchedSpots.add(m);
+                }
+                i = skipHopelessStarts(tokens, i + Math.max(1, m.getTokenCount()));
+                if (i >= chunk.to) {
+                    break;
+                }
+                step = chunk.offsets.binarySearch(i);
+            }
+            if (step >= 0) {
+                for (; step < chunk.offsets.size(); step++) {
+                    if (chunk.matches.get(step) != null) {
+                        matchedSpots.add(chunk.matches.get(step));
+                    }
+                }
+                i = chunk.end;
+            }
+        }
+        return matchedSpots;
+    }
+
+    /**
+     * Scans the chunk speculatively, from overlap tokens before its start
+     * to the first offset at or after its end.
+     */
+    private void scanChunk(String[] tokens, Chunk chunk, int overlap) {
+        int i = skipHopelessStarts(tokens, Math.max(0, chunk.from - overlap));
+        while (i < chunk.to) {
+            Match m = getLongestMatch(tokens, i);
+            chunk.offsets.add(i);
+            chunk.matches.add(m.getTokenCount() > 0 ? m : null);
+            i = skipHopelessStarts(tokens, i + Math.max(1, m.getTokenCount()));
+        }
+        chunk.end = i;
+    }
+
+    /**
+     * Returns the largest number of tokens of a key added, which bounds
+     * the tokens of a match. Keys removed since may still count.
+     */
+    public int getMaxKeyTokens() {
+        if (maxKeyTokens < 0) {
+            maxKeyTokens = getMaxKeyTokens(root);
+        }
+        return maxKeyTokens;
+    }
+
+    private int getMaxKeyTokens(int node) {
+        if (node == -1) {
+            return 0;
+        }
+        int max = Math.max(getMaxKeyTokens(getLessChild(node)), getMaxKeyTokens(getGreatChild(node)));
+        int below = getMaxKeyTokens(getEqualChild(node));
+        if (getNodeKey(node) == delimiter && below > 0) {
+            // The delimiter separates two tokens of the keys below.
+            below++;
+        } else if (below == 0 && isTerminal(node)) {
+            below = 1;
+        }
+        return Math.max(max, below);
+    }
+
+    /**
+     * Returns the first offset from i on at which the start filter, if
+     * any, lets a key start, or the number of tokens if there is none.
+     */
+    private int skipHopelessStarts(String[] tokens, int i) {
+        if (startFilter == null) {
+            return i;
+        }
+        while (i < tokens.length) {
+            String next = i + 1 < tokens.length ? tokens[i + 1] : null;
+            if (startFilter.mayStart(tokens[i], getRelevantLength(tokens[i]), next,
+                    next != null ? getRelevantLength(next) : 0)) {
+                return i;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Same as {@link #getAllMatches(String[])}, but under the given
+     * threshold instead of the one of the trie, see
+     * {@link #getLongestMatch(String[], int, double)}.
+     */
+    public List<Match> getAllMatches(String[] tokens, double threshold) {
+        List<Match> matchedSpots = new ArrayList<Match>();
+        int i = 0;
+        while (i < tokens.length) {
+            Match m = getLongestMatch(tokens, i, threshold);
+            if (m.getTokenCount() > 0) {
+                matchedSpots.add(m);
+                i += m.getTokenCount();
+            } else {
+                i++;
+            }
+        }
+        return matchedSpots;
+    }
+
+    /**
+     * Returns the longest match at start under the given threshold, as a
+     * trie of that threshold holding the same keys would. This lets one
+     * trie of threshold 1.0, i.e. of full keys, serve any threshold.
+     *
+     * A token of the text matches the stored tokens that have the same
+     * truncated prefix and a length that truncates to the same length.
+     * These are found by walking the truncated prefix and then the few
+     * continuations of allowed length below it. If several keys truncate
+     * to the matched key, the value of the first one found is returned.
+     * Empty tokens never match.
+     *
+     * @throws IllegalStateException If the threshold of the trie is not 1.0.
+     */
+    public Match getLongestMatch(String[] tokens, int start, double threshold) {
+        if (this.threshold != 1.0) {
+            throw new IllegalStateException("Per-call thresholds need a trie of full keys, i.e. threshold 1.0");
+        }
+        if (!(threshold > 0.0 && threshold <= 1.0)) {
+            throw new IllegalArgumentException("Threshold must be in (0, 1]: " + threshold);
+        }
+        Match match = new Match(start, 0, -1);
+        // Nodes and their ranks, see getNodeValue(int, int).
+        TIntList frontier = new TIntArrayList();
+        TIntList frontierRanks = new TIntArrayList();
+        if (root != -1) {
+            frontier.add(root);
+            frontierRanks.add(0);
+        }
+        TIntList ends = new TIntArrayList();
+        TIntList endRanks = new TIntArrayList();
+        int[] rank = new int[1];
+        for (int i = start; i < tokens.length && !frontier.isEmpty(); i++) {
+            ends.clear();
+            endRanks.clear();
+            for (int f = 0; f < frontier.size(); f++) {
+                collectTokenEnds(frontier.get(f), frontierRanks.get(f), tokens[i], threshold, ends, endRanks);
+            }
+            frontier = new TIntArrayList();
+            frontierRanks = new TIntArrayList();
+            for (int e = 0; e < ends.size(); e++) {
+                int end = ends.get(e);
+                int value = getNodeValue(end, endRanks.get(e));
+                if (match.getTokenCount() <= i - start && value != -1) {
+                    match = new Match(start, i - start + 1, value);
+                }
+                rank[0] = getEqualRank(end, endRanks.get(e));
+                int next = findSibling(getEqualChild(end), delimiter, rank);
+                if (next != -1 && getEqualChild(next) != -1) {
+                    frontier.add(getEqualChild(next));
+                    frontierRanks.add(getEqualRank(next, rank[0]));
+                }
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Adds the nodes of the last characters of the stored tokens that
+     * match the token under the threshold, starting at the siblings at
+     * node.
+     */
+    private void collectTokenEnds(int node, int rank, String token, double threshold, TIntList ends,
+            TIntList endRanks) {
+        int length = (int) Math.ceil(token.length() * threshold);
+        if (length == 0) {
+            return;
+        }
+        int[] nodeRank = new int[] { rank };
+        for (int pos = 0; pos < length; pos++) {
+            node = findSibling(node, token.charAt(pos), nodeRank);
+            if (node == -1) {
+                return;
+            }
+            if (pos < length - 1) {
+                nodeRank[0] = getEqualRank(node, nodeRank[0]);
+                node = getEqualChild(node);
+            }
+        }
+        // Stored lengths that truncate to length form a range.
+        int minLength = length;
+        while ((int) Math.ceil(minLength * threshold) < length) {
+            minLength++;
+        }
+        int maxLength = minLength;
+        while ((int) Math.ceil((maxLength + 1) * threshold) == length) {
+            maxLength++;
+        }
+        collectTokenEnds(node, nodeRank[0], length, minLength, maxLength, ends, endRanks);
+    }
+
+    private void collectTokenEnds(int node, int rank, int length, int minLength, int maxLength, TIntList ends,
+            TIntList endRanks) {
+        if (length >= minLength) {
+            ends.add(node);
+            endRanks.add(rank);
+        }
+        if (length < maxLength) {
+            collectContinuations(getEqualChild(node), getEqualRank(node, rank), length + 1, minLength, maxLength,
+                    ends, endRanks);
+        }
+    }
+
+    private void collectContinuations(int node, int rank, int length, int minLength, int maxLength,
+            TIntList ends, TIntList endRanks) {
+        if (node == -1) {
+            return;
+        }
+        collectContinuations(getLessChild(node), rank, length, minLength, maxLength, ends, endRanks);
+        if (getNodeKey(node) != delimiter) {
+            collectTokenEnds(node, rank, length, minLength, maxLength, ends, endRanks);
+        }
+        collectContinuations(getGreatChild(node), getGreatRank(node, rank), length, minLength, maxLength, ends,
+                endRanks);
+    }
+
+    /**
+     * Same as findSibling(int, char), but also advances rank[0] from the
+     * rank of node to the rank of the node found, see
+     * getNodeValue(int, int).
+     */
+    private int findSibling(int node, char c, int[] rank) {
+        while (node != -1) {
+            char label = getNodeKey(node);
+            if (c < label) {
+                node = getLessChild(node);
+            } else if (c > label) {
+                rank[0] = getGreatRank(node, rank[0]);
+                node = getGreatChild(node);
+            } else {
+                return node;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the node labeled c among the siblings at node, or -1.
+     */
+    private int findSibling(int node, char c) {
+        while (node != -1) {
+            char label = getNodeKey(node);
+            if (c < label) {
+                node = getLessChild(node);
+            } else if (c > label) {
+                node = getGreatChild(node);
+            } else {
+                return node;
+            }
+        }
+        return -1;
+    }
+
     public Match getLongestMatchAndInternalNodeId(String[] tokens, int start, InternalNodeId nodeId) {
+        if (TrieMetrics.ENABLED && metrics != null) {
+            long startTime = System.nanoTime();
+            int[] hopCount = { -1 };
+            Match match = walkLongestMatch(tokens, start, nodeId, hopCount);
+            // Cache hits do not walk and are not recorded.
+            if (hopCount[0] >= 0) {
+                metrics.recordLongestMatch(hopCount[0], System.nanoTime() - startTime);
+            }
+            return match;
+        }
+        return walkLongestMatch(tokens, start, nodeId, null);
+    }
+
+    /**
+     * Finds the longest match, and stores the number of nodes visited in
+     * hopCount if given and the lookup was not cached. The metrics are
+     * kept out of the walk so that it stays small enough to be inlined.
+     */
+    private Match walkLongestMatch(String[] tokens, int start, InternalNodeId nodeId, int[] hopCount) {
+        // Cached matches would not be counted.
+        LookupCache cache = nodeId == null && hitCounter == null ? this.cache : null;
+        int generation = 0;
+        if (cache != null) {
+            generation = cache.getGeneration();
+            Match cached = cache.get(tokens, start);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        int hops = 0;
         int node = root;
+        // Keys before the siblings at node, see getNodeValue(int, int).
+        int rank = 0;
+        int firstPos = 0;
+        int lastRead = start - 1;
+        if (rootTable != null && start < tokens.length) {
+            // Jump to the node of the first or first two characters.
+            String token = tokens[start];
+            int relevantLength = getRelevantLength(token);
+            char chr = relevantLength > 0 ? token.charAt(0) : delimiter;
+            hops++;
+            lastRead = start;
+            int pair = relevantLength >= 2 && chr < RootTable.PAIR_CHARS && token.charAt(1) < RootTable.PAIR_CHARS
+                    ? chr * RootTable.PAIR_CHARS + token.charAt(1) : -1;
+            if (pair != -1 && rootTable.pairs[pair] != -1) {
+                node = rootTable.pairs[pair];
+                rank = rootTable.pairRanks != null ? rootTable.pairRanks[pair] : 0;
+                firstPos = 1;
+            } else if (chr < RootTable.SINGLE_CHARS) {
+                // Without a pair, walk from the first character so that
+                // nodeId still ends at it if it exists.
+                node = rootTable.singles[chr];
+                rank = rootTable.singleRanks != null ? rootTable.singleRanks[chr] : 0;
+            }
+        }
         int matchValue = -1;
+        int matchNode = -1;
+        int matchRank = 0;
         int matchToken = start - 1;
         int iToken = start;
         for (iToken = start; iToken < tokens.length; iToken++) {
-            int pos = 0;
+            int pos = iToken == start ? firstPos : 0;
             while (node != -1 && iToken < tokens.length) {
+                hops++;
+                lastRead = iToken;
                 int relevantLength = getRelevantLength(tokens[iToken]);
                 char chr = delimiter;
                 if (pos < relevantLength) {
@@ -101,8 +569,11 @@ public class TernaryTriePrimitive implements Trie, SerializableTrie {
                     node = getLessChild(node);
                 } else if (chr == getNodeKey(node)) {
                     if (pos == relevantLength - 1) {
-                        if (getNodeValue(node) != -1) {
-                            matchValue = getNodeValue(node);
+                        int value = getNodeValue(node, rank);
+                        if (value != -1) {
+                            matchValue = value;
+                            matchNode = node;
+                            matchRank = rank;
                             matchToken = iToken;
                         }
                     }
@@ -111,6 +582,7 @@ public class TernaryTriePrimitive implements Trie, SerializableTrie {
                         nodeId.setId(node);
                     }
 
+                    rank = getEqualRank(node, rank);
                     node = getEqualChild(node);
                     pos++;
                     if (pos > relevantLength) {
@@ -118,27 +590,233 @@ public class TernaryTriePrimitive implements Trie, SerializableTrie {
                         iToken++;
                     }
                 } else {
+                    rank = getGreatRank(node, rank);
                     node = getGreatChild(node);
                 }
             }
         }
 
-        return new Match(start, matchToken - start + 1, matchValue);
+        if (TrieMetrics.ENABLED && hopCount != null) {
+            hopCount[0] = hops;
+        }
+        if (hitCounter != null && matchNode != -1) {
+            hitCounter.record(matchNode, matchRank);
+        }
+        Match match = new Match(start, matchToken - start + 1, matchValue);
+        if (cache != null) {
+            // If node is not -1, the walk ran off the end of the tokens.
+            cache.put(tokens, start, lastRead, node != -1, match, generation);
+        }
+        return match;
     }
     
     public int get(String[] tokens) {
         Match match = this.getLongestMatch(tokens, 0);
+        int value = -1;
         if (match.getTokenCount() == tokens.length) {
-            return match.getValue();
-        } else {
-            return -1;
+            value = match.getValue();
+        }
+        if (TrieMetrics.ENABLED && metrics != null) {
+            metrics.recordLookup(value != -1);
         }
+        return value;
     }
         
     public int get(String key) {
         return get(key.split(String.valueOf(delimiter)));
     }
 
+    /**
+     * Looks up many keys at once. Instead of walking one key after the
+     * other, the walks of up to BATCH_LANES keys are advanced in lockstep,
+     * one node hop per key and round, so that the cache misses of the
+     * independent walks overlap instead of stalling one after the other.
+     *
+     * @param keys  Tokenized keys.
+     * @param out   Receives the value of keys[i] at out[i], or -1 if the
+     *              key does not exist.
+     */
+    public void getBatch(String[][] keys, int[] out) {
+        walkBatch(keys, 0, keys.length, out, null);
+    }
+
+    /**
+     * Same as {@link #getBatch(String[][], int[])}, but splits large batches
+     * into parts that are looked up on the given pool.
+     */
+    public void getBatch(String[][] keys, int[] out, ForkJoinPool pool) {
+        pool.invoke(new BatchTask(keys, 0, keys.length, out, null));
+    }
+
+    /**
+     * Returns the result of {@link #getAllMatches(String[])} for each of the
+     * given documents. The greedy scans of several documents are
+     * interleaved the same way as in {@link #getBatch(String[][], int[])}.
+     *
+     * @param documents Tokenized documents.
+     * @return          List of matches per document, in input order.
+     */
+    public List<List<Match>> getAllMatchesBatch(List<String[]> documents) {
+        String[][] docs = documents.toArray(new String[documents.size()][]);
+        List<List<Match>> matches = newBatchResult(docs.length);
+        walkBatch(docs, 0, docs.length, null, matches);
+        return matches;
+    }
+
+    /**
+     * Same as {@link #getAllMatchesBatch(List)}, but splits large batches
+     * into parts that are matched on the given pool.
+     */
+    public List<List<Match>> getAllMatchesBatch(List<String[]> documents, ForkJoinPool pool) {
+        String[][] docs = documents.toArray(new String[documents.size()][]);
+        List<List<Match>> matches = newBatchResult(docs.length);
+        pool.invoke(new BatchTask(docs, 0, docs.length, null, matches));
+        return matches;
+    }
+
+    private List<List<Match>> newBatchResult(int size) {
+        List<List<Match>> matches = new ArrayList<List<Match>>(size);
+        for (int i = 0; i < size; i++) {
+            matches.add(null);
+        }
+        return matches;
+    }
+
+    /**
+     * Walks the token arrays docs[from] to docs[to - 1] in lockstep lanes.
+     * The walk follows the same steps as getLongestMatchAndInternalNodeId.
+     * If out is given, each array is a key and its value is written to out.
+     * Otherwise each array is a document, and its greedy scan as done by
+     * getAllMatches is written to matches. Hits are recorded like in
+     * getLongestMatchAndInternalNodeId.
+     */
+    private void walkBatch(String[][] docs, int from, int to, int[] out, List<List<Match>> matches) {
+        int lanes = Math.min(BATCH_LANES, to - from);
+        int[] doc = new int[lanes];
+        int[] start = new int[lanes];
+        int[] node = new int[lanes];
+        int[] rank = new int[lanes];
+        int[] iToken = new int[lanes];
+        int[] pos = new int[lanes];
+        int[] matchValue = new int[lanes];
+        int[] matchNode = new int[lanes];
+        int[] matchRank = new int[lanes];
+        int[] matchToken = new int[lanes];
+        List<List<Match>> docMatches = new ArrayList<List<Match>>(lanes);
+        int next = from;
+        int active = 0;
+        for (int lane = 0; lane < lanes; lane++) {
+            doc[lane] = next++;
+            docMatches.add(new ArrayList<Match>());
+            String[] tokens = docs[doc[lane]];
+            startWalk(lane, tokens, out == null ? skipHopelessStarts(tokens, 0) : 0, start, node, rank, iToken,
+                    pos, matchValue, matchNode, matchToken);
+            active++;
+        }
+        while (active > 0) {
+            for (int lane = 0; lane < lanes; lane++) {
+                if (doc[lane] == -1) {
+                    continue;
+                }
+                String[] tokens = docs[doc[lane]];
+                int n = node[lane];
+                if (n != -1 && iToken[lane] < tokens.length) {
+                    String token = tokens[iToken[lane]];
+                    int relevantLength = getRelevantLength(token);
+                    char chr = delimiter;
+                    if (pos[lane] < relevantLength) {
+                        chr = token.charAt(pos[lane]);
+                    }
+                    if (chr < getNodeKey(n)) {
+                        node[lane] = getLessChild(n);
+                    } else if (chr == getNodeKey(n)) {
+                        int value = pos[lane] == relevantLength - 1 ? getNodeValue(n, rank[lane]) : -1;
+                        if (value != -1) {
+                            matchValue[lane] = value;
+                            matchNode[lane] = n;
+                            matchRank[lane] = rank[lane];
+                            matchToken[lane] = iToken[lane];
+                        }
+                        rank[lane] = getEqualRank(n, rank[lane]);
+                        node[lane] = getEqualChild(n);
+                        pos[lane]++;
+                        if (pos[lane] > relevantLength) {
+                            pos[lane] = 0;
+                            iToken[lane]++;
+                        }
+                    } else {
+                        rank[lane] = getGreatRank(n, rank[lane]);
+                        node[lane] = getGreatChild(n);
+                    }
+                    continue;
+                }
+                // The walk of this lane is finished.
+                if (hitCounter != null && matchNode[lane] != -1) {
+                    hitCounter.record(matchNode[lane], matchRank[lane]);
+                }
+                int tokenCount = matchToken[lane] - start[lane] + 1;
+                if (out != null) {
+                    out[doc[lane]] = tokenCount == tokens.length ? matchValue[lane] : -1;
+                } else {
+                    int nextStart = start[lane] + 1;
+                    if (tokenCount > 0) {
+                        docMatches.get(lane).add(new Match(start[lane], tokenCount, matchValue[lane]));
+                        // Jump after longest match.
+                        nextStart = start[lane] + tokenCount;
+                    }
+                    nextStart = skipHopelessStarts(tokens, nextStart);
+                    if (nextStart < tokens.length) {
+                        startWalk(lane, tokens, nextStart, start, node, rank, iToken, pos, matchValue, matchNode,
+                                matchToken);
+                        continue;
+                    }
+                    matches.set(doc[lane], docMatches.get(lane));
+                    docMatches.set(lane, new ArrayList<Match>());
+                }
+                if (next < to) {
+                    doc[lane] = next++;
+                    tokens = docs[doc[lane]];
+                    startWalk(lane, tokens, out == null ? skipHopelessStarts(tokens, 0) : 0, start, node, rank,
+                            iToken, pos, matchValue, matchNode, matchToken);
+                } else {
+                    doc[lane] = -1;
+                    active--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts the walk of a lane at the given token, from the node the root
+     * table leads to, if any, as in getLongestMatchAndInternalNodeId.
+     */
+    private void startWalk(int lane, String[] tokens, int tokenOffset, int[] start, int[] node, int[] rank,
+            int[] iToken, int[] pos, int[] matchValue, int[] matchNode, int[] matchToken) {
+        start[lane] = tokenOffset;
+        node[lane] = root;
+        rank[lane] = 0;
+        iToken[lane] = tokenOffset;
+        pos[lane] = 0;
+        if (rootTable != null && tokenOffset < tokens.length) {
+            String token = tokens[tokenOffset];
+            int relevantLength = getRelevantLength(token);
+            char chr = relevantLength > 0 ? token.charAt(0) : delimiter;
+            int pair = relevantLength >= 2 && chr < RootTable.PAIR_CHARS && token.charAt(1) < RootTable.PAIR_CHARS
+                    ? chr * RootTable.PAIR_CHARS + token.charAt(1) : -1;
+            if (pair != -1 && rootTable.pairs[pair] != -1) {
+                node[lane] = rootTable.pairs[pair];
+                rank[lane] = rootTable.pairRanks != null ? rootTable.pairRanks[pair] : 0;
+                pos[lane] = 1;
+            } else if (chr < RootTable.SINGLE_CHARS) {
+                node[lane] = rootTable.singles[chr];
+                rank[lane] = rootTable.singleRanks != null ? rootTable.singleRanks[chr] : 0;
+            }
+        }
+        matchValue[lane] = -1;
+        matchNode[lane] = -1;
+        matchToken[lane] = tokenOffset - 1;
+    }
+
     /**
      * Returns the string that is actually inserted to the tree,
      * respecting prefix thresholding and delimiter.
@@ -162,6 +840,79 @@ public class TernaryTriePrimitive implements Trie, SerializableTrie {
         return sb.toString();
     }
 
+    /**
+     * Returns the node the key ends at, i.e. the one holding its value, or
+     * -1 if the key does not exist.
+     */
+    int getKeyNode(String[] tokens) {
+        int node = root;
+        int last = -1;
+        for (int iToken = 0; iToken < tokens.length; iToken++) {
+            int length = getRelevantLength(tokens[iToken]);
+            for (int pos = 0; pos <= length; pos++) {
+                if (iToken == tokens.length - 1 && pos == length) {
+                    return last != -1 && length > 0 && isTerminal(last) ? last : -1;
+                }
+                last = findSibling(node, pos < length ? tokens[iToken].charAt(pos) : delimiter);
+                if (last == -1) {
+                    return -1;
+                }
+                node = getEqualChild(last);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot of the key, as by {@link #getKeySlot(int, int)}, or
+     * -1 if the key does not exist.
+     */
+    int getKeySlot(String[] tokens) {
+        int node = root;
+        int rank = 0;
+        int last = -1;
+        int lastRank = 0;
+        for (int iToken = 0; iToken < tokens.length; iToken++) {
+            int length = getRelevantLength(tokens[iToken]);
+            for (int pos = 0; pos <= length; pos++) {
+                if (iToken == tokens.length - 1 && pos == length) {
+                    return last != -1 && length > 0 && isTerminal(last) ? getKeySlot(last, lastRank) : -1;
+                }
+                char c = pos < length ? tokens[iToken].charAt(pos) : delimiter;
+                last = node;
+                lastRank = rank;
+                while (last != -1 && c != getNodeKey(last)) {
+                    if (c < getNodeKey(last)) {
+                        last = getLessChild(last);
+                    } else {
+                        lastRank = getGreatRank(last, lastRank);
+                        last = getGreatChild(last);
+                    }
+                }
+                if (last == -1) {
+                    return -1;
+                }
+                rank = getEqualRank(last, lastRank);
+                node = getEqualChild(last);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a number in [0, getKeySlots()) that identifies the key ending
+     * at node, reached with rank: its index in the value table, or the
+     * slot of its node if there is none. Keys of a trie minimized without
+     * value table may share slots.
+     */
+    int getKeySlot(int node, int rank) {
+        return valueTable != null ? rank + getKeyCount(getLessChild(node)) : node / 4;
+    }
+
+    int getKeySlots() {
+        return valueTable != null ? valueTable.length : labels.size();
+    }
+
     public int getPrefixId(String partialKey) {
         return getPrefixId(partialKey.split(String.valueOf(delimiter)));
     }
@@ -179,16 +930,16 @@ public class TernaryTriePrimitive implements Trie, SerializableTrie {
     }
 
     public void visitAggregateValues(AggregateValueVisitor visitor) {
-        visitAggregateValues(visitor, root, new HashSet<Integer>());
+        visitAggregateValues(visitor, root, 0, new HashSet<Integer>());
     }
 
-    private void visitAggregateValues(AggregateValueVisitor visitor, int node, Set<Integer> parentValues) {
+    private void visitAggregateValues(AggregateValueVisitor visitor, int node, int rank, Set<Integer> parentValues) {
         Set<Integer> values = new HashSet<>();
         if (node != -1) {
-            visitAggregateValues(visitor, getLessChild(node), parentValues);
-            visitAggregateValues(visitor, getEqualChild(node), values);
-            visitAggregateValues(visitor, getGreatChild(node), parentValues);
-            int val = getNodeValue(node);
+            visitAggregateValues(visitor, getLessChild(node), rank, parentValues);
+            visitAggregateValues(visitor, getEqualChild(node), getEqualRank(node, rank), values);
+            visitAggregateValues(visitor, getGreatChild(node), getGreatRank(node, rank), parentValues);
+            int val = getNodeValue(node, rank);
             if (val != -1) {
                 values.add(val);
                 parentValues.addAll(values);
@@ -197,12 +948,38 @@ public class TernaryTriePrimitive implements Trie, SerializableTrie {
         }
     }
     
+    /**
+     * Inserts keys[from] to keys[to - 1], which must be sorted, medians first.
+     * This gives balanced sibling trees, whereas inserting sorted keys in
+     * order degenerates them into lists.
+     */
+    void putSorted(String[] keys, int[] values, int from, int to) {
+        if (from < to) {
+            int mid = (from + to) >>> 1;
+            put(keys[mid], values[mid]);
+            putSorted(keys, values, from, mid);
+            putSorted(keys, values, mid + 1, to);
+        }
+    }
+
     public void put(String[] tokens, int value) {
+        checkMutable();
         root = put(root, tokens, 0, 0, value);
+        reverseIndex = null;
+        rootTable = null;
+        if (maxKeyTokens >= 0) {
+            maxKeyTokens = Math.max(maxKeyTokens, tokens.length);
+        }
+        if (startFilter != null) {
+            // Removed keys stay in the filter, which only costs walks.
+            startFilter.add(tokens[0], 0, getRelevantLength(tokens[0]), tokens.length > 1 ? tokens[1] : null, 0,
+                    tokens.length > 1 ? getRelevantLength(tokens[1]) : 0);
+        }
+        invalidateCache();
     }
     
     public void put(String key, int value) {
-        root = put(root, key.split(String.valueOf(delimiter)), 0, 0, value);
+        put(key.split(String.valueOf(delimiter)), value);
     }
     
     private int put(int node, String[] tokens, int iToken, int pos, int value) {
@@ -237,27 +1014,470 @@ public class TernaryTriePrimitive implements Trie, SerializableTrie {
         return node;
     }
     
-    private int getLessChild(int node) {
-        return nodes.get(node);
-    }
-       
-    private int getEqualChild(int node) {
-        return nodes.get(node + 1);
-    }
-    
-    private int getGreatChild(int node) {
-        return nodes.get(node + 2);
+    public void remove(String key) {
+        remove(key.split(String.valueOf(delimiter)));
     }
-    
-    private int getNodeValue(int node) {
-        return nodes.get(node + 3);
+
+    /**
+     * Removes a key and prunes the nodes that no longer lead to any key.
+     * The slots of pruned nodes are reused by later puts.
+     */
+    public void remove(String[] tokens) {
+        checkMutable();
+        root = remove(root, tokens, 0, 0);
+        reverseIndex = null;
+        rootTable = null;
+        invalidateCache();
+    }
+
+    private int remove(int node, String[] tokens, int iToken, int pos) {
+        if (node == -1) {
+            return -1;
+        }
+        int length = getRelevantLength(tokens[iToken]);
+        char chr = delimiter;
+        if (pos < length) {
+            chr = tokens[iToken].charAt(pos);
+        }
+        if (chr < getNodeKey(node)) {
+            setLessChild(node, remove(getLessChild(node), tokens, iToken, pos));
+        } else if (chr == getNodeKey(node)) {
+            if (iToken < tokens.length - 1) {
+                if (pos <= length  - 1) {
+                    setEqualChild(node, remove(getEqualChild(node), tokens, iToken, pos + 1));
+                } else {
+                    setEqualChild(node, remove(getEqualChild(node), tokens, iToken + 1, 0));
+                }
+            } else {
+                if (pos < length - 1){
+                    setEqualChild(node, remove(getEqualChild(node), tokens, iToken, pos + 1));
+                } else {
+                    setNodeValue(node, -1);
+                }
+            }
+        } else {
+            setGreatChild(node, remove(getGreatChild(node), tokens, iToken, pos));
+        }
+        return prune(node);
+    }
+
+    /**
+     * Frees the node if it neither holds a value nor leads to one, and
+     * returns the node that takes its place among its siblings.
+     */
+    private int prune(int node) {
+        if (getNodeValue(node) != -1 || getEqualChild(node) != -1) {
+            return node;
+        }
+        int less = getLessChild(node);
+        int great = getGreatChild(node);
+        int replacement;
+        if (less == -1) {
+            replacement = great;
+        } else if (great == -1) {
+            replacement = less;
+        } else {
+            // All greater siblings go below the greatest of the lesser ones.
+            int greatest = less;
+            while (getGreatChild(greatest) != -1) {
+                greatest = getGreatChild(greatest);
+            }
+            setGreatChild(greatest, great);
+            replacement = less;
+        }
+        freeNodes.add(node);
+        return replacement;
+    }
+
+    /**
+     * Renumbers the reachable nodes in depth-first order and shrinks the
+     * node arrays to them, which drops the slots of removed keys. Node ids
+     * obtained before, e.g. from getPrefixId, are invalid afterwards.
+     */
+    public void compact() {
+        int[] renumbered = new int[labels.size()];
+        Arrays.fill(renumbered, -1);
+        ChunkedIntList compactNodes = new ChunkedIntList();
+        ChunkedCharList compactLabels = new ChunkedCharList();
+        root = compact(root, renumbered, compactNodes, compactLabels);
+        nodes = compactNodes;
+        labels = compactLabels;
+        freeNodes = new ChunkedIntList();
+        reverseIndex = null;
+        rootTable = null;
+        invalidateCache();
+    }
+
+    private int compact(int node, int[] renumbered, ChunkedIntList compactNodes, ChunkedCharList compactLabels) {
+        if (node == -1) {
+            return -1;
+        }
+        if (renumbered[node / 4] != -1) {
+            return renumbered[node / 4];
+        }
+        int copy = compactNodes.size();
+        renumbered[node / 4] = copy;
+        for (int i = 0; i < 3; i++) {
+            compactNodes.add(-1);
+        }
+        compactNodes.add(getNodeValue(node));
+        compactLabels.add(getNodeKey(node));
+        compactNodes.set(copy, compact(getLessChild(node), renumbered, compactNodes, compactLabels));
+        compactNodes.set(copy + 1, compact(getEqualChild(node), renumbered, compactNodes, compactLabels));
+        compactNodes.set(copy + 2, compact(getGreatChild(node), renumbered, compactNodes, compactLabels));
+        return copy;
+    }
+
+    /**
+     * Shares structurally identical subtrees, i.e. subtrees with the same
+     * labels and shape, so that the trie becomes a DAG in the same node
+     * format. Values are moved out of the nodes into a table in sorted key
+     * order, and each node keeps only the number of keys in its subtree
+     * and whether a key ends at it. Walks count the keys they pass to find
+     * the value of a key in the table, see getNodeValue(int, int). Nodes
+     * thus no longer depend on the values of the keys through them, and
+     * common suffixes such as " (album)" are shared by keys with different
+     * values. The trie is compacted afterwards and can no longer be
+     * modified. Minimizing a minimized trie does nothing.
+     *
+     * @return Number of nodes saved.
+     */
+    public int minimize() {
+        if (valueTable != null) {
+            return 0;
+        }
+        int before = getTotalNodes();
+        final TIntArrayList values = new TIntArrayList();
+        visitEntries(new EntryVisitor() {
+            @Override
+            public void visit(String key, int value) {
+                values.add(value);
+            }
+        });
+        int[] slots = new int[labels.size()];
+        Arrays.fill(slots, -1);
+        countKeys(root, slots);
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != -1) {
+                nodes.set(4 * i + 3, slots[i]);
+            }
+        }
+        valueTable = values.toArray();
+        int[] canonical = new int[labels.size()];
+        Arrays.fill(canonical, -2);
+        TLongIntHashMap signatures = new TLongIntHashMap(Math.max(16, before), 0.5f, 0, -1);
+        root = minimize(root, canonical, signatures);
+        minimized = true;
+        compact();
+        return before - getTotalNodes();
+    }
+
+    /**
+     * Sets the slot of each node in the subtree at node to the number of
+     * keys in its subtree, shifted left by one, with the lowest bit set if
+     * a key ends at it, and returns the number of keys.
+     */
+    private int countKeys(int node, int[] slots) {
+        if (node == -1) {
+            return 0;
+        }
+        if (slots[node / 4] == -1) {
+            int terminal = getNodeValue(node) != -1 ? 1 : 0;
+            int count = countKeys(getLessChild(node), slots) + countKeys(getEqualChild(node), slots)
+                    + countKeys(getGreatChild(node), slots) + terminal;
+            slots[node / 4] = count << 1 | terminal;
+        }
+        return slots[node / 4] >>> 1;
+    }
+
+    /**
+     * Returns the canonical node for the subtree at node, after replacing
+     * the children of node by theirs. Subtrees whose signatures collide
+     * without being identical are simply not shared.
+     */
+    private int minimize(int node, int[] canonical, TLongIntHashMap signatures) {
+        if (node == -1) {
+            return -1;
+        }
+        if (canonical[node / 4] != -2) {
+            return canonical[node / 4];
+        }
+        int less = minimize(getLessChild(node), canonical, signatures);
+        int equal = minimize(getEqualChild(node), canonical, signatures);
+        int great = minimize(getGreatChild(node), canonical, signatures);
+        setLessChild(node, less);
+        setEqualChild(node, equal);
+        setGreatChild(node, great);
+        long signature = getNodeKey(node);
+        for (int i = 0; i < 4; i++) {
+            signature = (signature + nodes.get(node + i)) * 0x9E3779B97F4A7C15L;
+            signature ^= signature >>> 29;
+        }
+        int candidate = signatures.get(signature);
+        int result = node;
+        if (candidate == -1) {
+            signatures.put(signature, node);
+        } else if (getNodeKey(candidate) == getNodeKey(node) && less == getLessChild(candidate)
+                && equal == getEqualChild(candidate) && great == getGreatChild(candidate)
+                && getNodeValue(candidate) == getNodeValue(node)) {
+            result = candidate;
+        }
+        canonical[node / 4] = result;
+        return result;
+    }
+
+    /**
+     * Builds an index from values to the keys that map to them, for
+     * getKeys. It takes 4 bytes per node and 8 bytes per key, is
+     * serialized with the trie and is discarded when the trie changes,
+     * including by compact.
+     *
+     * @throws IllegalStateException If the trie is minimized, as nodes
+     *         shared by several keys have no unique parent.
+     */
+    public void buildReverseIndex() {
+        if (minimized) {
+            throw new IllegalStateException("A minimized trie cannot be reverse indexed");
+        }
+        reverseIndex = ReverseIndex.build(this);
+    }
+
+    public boolean hasReverseIndex() {
+        return reverseIndex != null;
+    }
+
+    /**
+     * Builds a filter of the first tokens of the keys, with which
+     * getAllMatches and getAllMatchesBatch skip the offsets of a text at
+     * which no key can start without walking the trie. It holds the first
+     * token of each key of one token and the first two tokens of each
+     * longer key in a Bloom filter of about 10 bits per key, with a false
+     * positive rate of about 1%. It is serialized with the trie and kept
+     * up to date by put.
+     */
+    public void buildStartFilter() {
+        final int[] keys = new int[1];
+        visitEntries(new EntryVisitor() {
+            @Override
+            public void visit(String key, int value) {
+                keys[0]++;
+            }
+        });
+        final StartFilter filter = new StartFilter(keys[0]);
+        visitEntries(new EntryVisitor() {
+            @Override
+            public void visit(String key, int value) {
+                filter.addStoredKey(key, delimiter);
+            }
+        });
+        startFilter = filter;
+    }
+
+    public boolean hasStartFilter() {
+        return startFilter != null;
+    }
+
+    /**
+     * Drops the start filter, so that getAllMatches walks at every offset.
+     */
+    public void removeStartFilter() {
+        startFilter = null;
+    }
+
+    /**
+     * Builds tables that map the first character of a key, if below 256,
+     * and its first two characters, if both below 128, directly to their
+     * nodes, with which longest match lookups skip the binary search trees
+     * of siblings at the first two levels. They take
+     * {@link #getRootTableBytes()}, i.e. 66 KB, are not serialized and are
+     * discarded when the trie changes, including by compact, so they are
+     * meant to be built once the trie is complete.
+     */
+    public void buildRootTable() {
+        rootTable = RootTable.build(this);
+    }
+
+    public boolean hasRootTable() {
+        return rootTable != null;
+    }
+
+    /**
+     * Returns the memory taken by the root tables, or 0 if there are none.
+     */
+    public long getRootTableBytes() {
+        return rootTable != null ? rootTable.getBytes() : 0;
+    }
+
+    /**
+     * Returns the stored keys that map to value, i.e. truncated by the
+     * threshold and with tokens joined by the delimiter, in time
+     * proportional to their lookup paths.
+     *
+     * @throws IllegalStateException If there is no reverse index, see
+     *         buildReverseIndex.
+     */
+    public List<String> getKeys(int value) {
+        if (reverseIndex == null) {
+            throw new IllegalStateException("No reverse index, see buildReverseIndex");
+        }
+        return reverseIndex.getKeys(this, value);
+    }
+
+    /**
+     * Returns whether values are kept in a table in key order rather than
+     * in the nodes, see minimize.
+     */
+    boolean hasValueTable() {
+        return valueTable != null;
+    }
+
+    /**
+     * Returns whether identical subtrees are shared, see minimize.
+     */
+    public boolean isMinimized() {
+        return minimized;
+    }
+
+    private void checkMutable() {
+        if (minimized) {
+            throw new IllegalStateException("A minimized trie cannot be modified");
+        }
+    }
+
+    /**
+     * Returns a copy of this trie that can be changed independently, e.g.
+     * to try out changes to a dictionary. Forking is cheap: the copy shares
+     * the chunks of the node arrays with this trie, see
+     * {@link ChunkedIntList}, and whichever trie changes a shared chunk
+     * first copies it. Changes thus only allocate the chunks they touch.
+     * The reverse index and root table are shared too, as changes drop
+     * rather than update them, and the start filter is copied. Caches,
+     * metrics and hit counters are not carried over.
+     *
+     * Neither trie may be changed while the fork is created.
+     */
+    public TernaryTriePrimitive fork() {
+        TernaryTriePrimitive fork = new TernaryTriePrimitive(threshold, delimiter);
+        fork.labels = labels.fork();
+        fork.nodes = nodes.fork();
+        fork.freeNodes = freeNodes.fork();
+        fork.root = root;
+        fork.minimized = minimized;
+        fork.valueTable = valueTable;
+        fork.maxKeyTokens = maxKeyTokens;
+        fork.reverseIndex = reverseIndex;
+        fork.rootTable = rootTable;
+        fork.verifyChecksums = verifyChecksums;
+        if (startFilter != null) {
+            fork.startFilter = new StartFilter(startFilter.bits.clone());
+        }
+        return fork;
+    }
+
+    int getRoot() {
+        return root;
+    }
+
+    int getLessChild(int node) {
+        return nodes.get(node);
+    }
+       
+    int getEqualChild(int node) {
+        return nodes.get(node + 1);
     }
     
-    private char getNodeKey(int node) {
+    int getGreatChild(int node) {
+        return nodes.get(node + 2);
+    }
+    
+    /**
+     * Returns the raw value slot of node, which is the value of the key
+     * ending at node unless the trie has a value table, see minimize.
+     */
+    int getNodeValue(int node) {
+        return nodes.get(node + 3);
+    }
+
+    /**
+     * Returns the value of the key ending at node, or -1, given the rank
+     * of node, i.e. the number of keys in sorted order before the keys
+     * in the subtree at node. Walks start at the root with rank 0 and
+     * carry it along with getEqualRank and getGreatRank; less steps keep
+     * it. Without a value table, ranks are ignored.
+     */
+    int getNodeValue(int node, int rank) {
+        int slot = nodes.get(node + 3);
+        if (valueTable == null) {
+            return slot;
+        }
+        return (slot & 1) != 0 ? valueTable[rank + getKeyCount(getLessChild(node))] : -1;
+    }
+
+    /**
+     * Returns the rank of the equal child of node, given that of node.
+     */
+    int getEqualRank(int node, int rank) {
+        if (valueTable == null) {
+            return rank;
+        }
+        return rank + getKeyCount(getLessChild(node)) + (nodes.get(node + 3) & 1);
+    }
+
+    /**
+     * Returns the rank of the great child of node, given that of node.
+     */
+    int getGreatRank(int node, int rank) {
+        if (valueTable == null) {
+            return rank;
+        }
+        return rank + getKeyCount(node) - getKeyCount(getGreatChild(node));
+    }
+
+    /**
+     * Returns whether the keys in the subtree at node have the same values
+     * when it is reached with either rank.
+     */
+    boolean hasSameValues(int node, int rank, int otherRank) {
+        if (valueTable == null || rank == otherRank) {
+            return true;
+        }
+        for (int i = getKeyCount(node) - 1; i >= 0; i--) {
+            if (valueTable[rank + i] != valueTable[otherRank + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether a key ends at node.
+     */
+    boolean isTerminal(int node) {
+        int slot = nodes.get(node + 3);
+        return valueTable != null ? (slot & 1) != 0 : slot != -1;
+    }
+
+    /**
+     * Returns the number of keys in the subtree at node, including its
+     * less and great siblings, if the trie has a value table.
+     */
+    private int getKeyCount(int node) {
+        return node == -1 ? 0 : nodes.get(node + 3) >>> 1;
+    }
+    
+    char getNodeKey(int node) {
         return labels.get(node/4);
     }
     
     private int getNewNode(char chr) {
+        if (!freeNodes.isEmpty()) {
+            int freeNode = freeNodes.removeLast();
+            for (int i = 0; i < 4; i++) {
+                nodes.set(freeNode + i, -1);
+            }
+            labels.set(freeNode / 4, chr);
+            return freeNode;
+        }
         int newNode = nodes.size();
         for (int i = 0; i < 4; i++) {
             nodes.add(-1);
@@ -282,9 +1502,43 @@ public class TernaryTriePrimitive implements Trie, SerializableTrie {
         nodes.set(node + 3, value);
     }
     
+    /**
+     * Returns the number of nodes in use, not counting the free slots left
+     * by removed keys.
+     */
     public int getTotalNodes() {
+        return labels.size() - freeNodes.size();
+    }
+
+    /**
+     * Returns the number of node slots allocated, including free ones.
+     */
+    int getNodeSlots() {
         return labels.size();
     }
+
+    /**
+     * Returns the memory allocated for the nodes array, which grows by
+     * whole chunks, see {@link ChunkedIntList}.
+     */
+    long getNodesArrayBytes() {
+        return 4L * nodes.getCapacity();
+    }
+
+    /**
+     * Returns the memory allocated for the labels array.
+     */
+    long getLabelsArrayBytes() {
+        return 2L * labels.getCapacity();
+    }
+
+    /**
+     * Returns the memory taken by the value table, or 0 if there is none,
+     * see minimize.
+     */
+    long getValueTableBytes() {
+        return valueTable != null ? 4L * valueTable.length : 0;
+    }
     
     private void getNodesPerLevel(TIntIntHashMap num, int level, int node) {
         if (node == -1) {
@@ -337,22 +1591,74 @@ public class TernaryTriePrimitive implements Trie, SerializableTrie {
     }
     
     public String getContent() {
-        StringBuilder repr = getContent(root, new StringBuilder(), "");
+        StringBuilder repr = getContent(root, 0, new StringBuilder(), "");
         return repr.toString();
     }
     
-    private StringBuilder getContent(int node, StringBuilder repr, String prefix) {
+    private StringBuilder getContent(int node, int rank, StringBuilder repr, String prefix) {
         if (node != -1) {
-            if (nodes.get(node + 3) != -1) {
-                repr.append(prefix + labels.get(node / 4) + "\t" + String.valueOf(nodes.get(node + 3)) + "\n");
+            int value = getNodeValue(node, rank);
+            if (value != -1) {
+                repr.append(prefix + labels.get(node / 4) + "\t" + String.valueOf(value) + "\n");
             }
-            repr = getContent(nodes.get(node), repr, prefix);
-            repr = getContent(nodes.get(node + 1), repr, prefix + labels.get(node / 4));
-            repr = getContent(nodes.get(node + 2), repr, prefix);
+            repr = getContent(nodes.get(node), rank, repr, prefix);
+            repr = getContent(nodes.get(node + 1), getEqualRank(node, rank), repr, prefix + labels.get(node / 4));
+            repr = getContent(nodes.get(node + 2), getGreatRank(node, rank), repr, prefix);
         }
         return repr;
     }
 
+    /**
+     * Visits all keys in sorted order together with their values. Keys are
+     * reported the way they are stored, i.e. with prefix thresholding applied.
+     */
+    public void visitEntries(EntryVisitor visitor) {
+        visitEntries(visitor, root, 0, new StringBuilder());
+    }
+
+    private void visitEntries(EntryVisitor visitor, int node, int rank, StringBuilder prefix) {
+        if (node != -1) {
+            visitEntries(visitor, getLessChild(node), rank, prefix);
+            prefix.append(getNodeKey(node));
+            int value = getNodeValue(node, rank);
+            if (value != -1) {
+                visitor.visit(prefix.toString(), value);
+            }
+            visitEntries(visitor, getEqualChild(node), getEqualRank(node, rank), prefix);
+            prefix.setLength(prefix.length() - 1);
+            visitEntries(visitor, getGreatChild(node), getGreatRank(node, rank), prefix);
+        }
+    }
+
+    /**
+     * Returns the stored keys and their values in sorted order, as by
+     * visitEntries. The stream splits on subtrees, so that parallel streams
+     * scan the trie on all cores. The trie must not change while the
+     * stream is consumed.
+     */
+    public Stream<TrieEntry> entries() {
+        return StreamSupport.stream(new EntrySpliterator(this, root, getTotalNodes()), false);
+    }
+
+    public int visitMatches(String pattern, EntryVisitor visitor) {
+        return visitMatches(pattern, visitor, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Visits the stored keys that match a pattern in sorted order, together
+     * with their values. The pattern consists of tokens separated by the
+     * delimiter. Within a token, '?' matches one character and '*' any
+     * number of characters, and a token "**" matches any number of whole
+     * tokens, e.g. "barack **", "?bama" or "new york *". Tokens without
+     * wildcards are truncated by the threshold, like keys.
+     *
+     * @param limit Maximum number of keys to visit.
+     * @return Number of keys visited.
+     */
+    public int visitMatches(String pattern, EntryVisitor visitor, int limit) {
+        return new PatternMatcher(this, pattern).visit(visitor, limit);
+    }
+
     public String getTreeView() {
         StringBuilder repr = getTreeView(root, new StringBuilder());
         return repr.toString();
@@ -379,42 +1685,444 @@ public class TernaryTriePrimitive implements Trie, SerializableTrie {
         return (int)Math.ceil(key.length() * threshold);
     }
     
+    /**
+     * Serializes the trie in the current format. The header holds the
+     * section sizes and a CRC32 checksum of each section:
+     * magic, version, threshold, delimiter, flags, root, #nodes, #labels,
+     * nodes checksum, labels checksum, nodes, labels. If the trie has a
+     * reverse index, its parents, values, offsets and nodes follow, each
+     * as length, checksum, section. The start filter, if any, comes last as
+     * number of longs, checksum and section of two ints per long, and is
+     * followed by the value table of a minimized trie, if any, as length,
+     * checksum, section.
+     */
     public void serialize(OutputStream stream) throws IOException {
         DataOutputStream writer = new DataOutputStream(
                 new BufferedOutputStream(stream));
-        writer.writeInt(FORMAT_VERSION);
-        writer.writeDouble(threshold);
-        writer.writeChar(delimiter);
-        writer.writeInt(root);
-        writer.writeInt(nodes.size());
-        for (int i = 0; i < nodes.size(); i++) {
-            writer.writeInt(nodes.get(i));
+        writeHeader(writer, threshold, delimiter,
+                (minimized ? FLAG_MINIMIZED : 0) | (reverseIndex != null ? FLAG_REVERSE_INDEX : 0)
+                        | (startFilter != null ? FLAG_START_FILTER : 0)
+                        | (valueTable != null ? FLAG_VALUE_TABLE : 0),
+                root, labels.size(), writeSection(null, nodes.getChunks(), null, nodes.size()),
+                writeSection(null, null, labels.getChunks(), labels.size()));
+        writeSection(writer, nodes.getChunks(), null, nodes.size());
+        writeSection(writer, null, labels.getChunks(), labels.size());
+        if (reverseIndex != null) {
+            for (int[] section : new int[][] { reverseIndex.parents, reverseIndex.values,
+                    reverseIndex.offsets, reverseIndex.nodes }) {
+                int[][] ints = new int[][] { section };
+                writer.writeInt(section.length);
+                writer.writeInt(writeSection(null, ints, null, section.length));
+                writeSection(writer, ints, null, section.length);
+            }
         }
-        writer.writeInt(labels.size());
-        for (int i = 0; i < labels.size(); i++) {
-            writer.writeChar(labels.get(i));
+        if (startFilter != null) {
+            int[] section = new int[2 * startFilter.bits.length];
+            for (int i = 0; i < startFilter.bits.length; i++) {
+                section[2 * i] = (int) (startFilter.bits[i] >>> 32);
+                section[2 * i + 1] = (int) startFilter.bits[i];
+            }
+            int[][] ints = new int[][] { section };
+            writer.writeInt(startFilter.bits.length);
+            writer.writeInt(writeSection(null, ints, null, section.length));
+            writeSection(writer, ints, null, section.length);
+        }
+        if (valueTable != null) {
+            int[][] ints = new int[][] { valueTable };
+            writer.writeInt(valueTable.length);
+            writer.writeInt(writeSection(null, ints, null, valueTable.length));
+            writeSection(writer, ints, null, valueTable.length);
         }
         writer.flush();
         writer.close();
     }
 
+    /**
+     * Writes the header of the current format, for writers that stream the
+     * sections themselves: the nodes section holds 4 big-endian ints per
+     * node and the labels section one char per node.
+     */
+    static void writeHeader(DataOutputStream writer, double threshold, char delimiter, int flags, int root,
+            int numLabels, int nodesChecksum, int labelsChecksum) throws IOException {
+        writer.writeInt(MAGIC);
+        writer.writeInt(FORMAT_VERSION);
+        writer.writeDouble(threshold);
+        writer.writeChar(delimiter);
+        writer.writeInt(flags);
+        writer.writeInt(root);
+        writer.writeInt(4 * numLabels);
+        writer.writeInt(numLabels);
+        writer.writeInt(nodesChecksum);
+        writer.writeInt(labelsChecksum);
+    }
+
+    /**
+     * Reads a trie written by serialize, in the current or the initial
+     * format. Checksums of the current format are verified on a second
+     * thread while the sections are read, unless disabled with
+     * setVerifyChecksums.
+     *
+     * @throws IOException If the stream is truncated, has an unknown
+     *         version or does not match its checksums. The trie is then
+     *         left unchanged.
+     */
     public Trie deserialize(InputStream stream) throws IOException {
         DataInputStream reader = new DataInputStream(new BufferedInputStream(stream));        
-        nodes.clear();
-        labels.clear();
-        reader.readInt(); //discard version
-        threshold = reader.readDouble();
-        delimiter = reader.readChar();
-        root = reader.readInt();
+        int version = reader.readInt();
+        if (version == 1) {
+            deserializeVersion1(reader);
+            return this;
+        } else if (version == MAGIC) {
+            version = reader.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported trie format version " + version);
+            }
+        } else if (version != 2) {
+            // Version 2 is the current format without the magic.
+            throw new IOException("Not a serialized trie");
+        }
+        double readThreshold = reader.readDouble();
+        char readDelimiter = reader.readChar();
+        int flags = reader.readInt();
+        int readRoot = reader.readInt();
+        int numNodes = reader.readInt();
+        int numLabels = reader.readInt();
+        int nodesChecksum = reader.readInt();
+        int labelsChecksum = reader.readInt();
+        if (numNodes < 0 || numLabels < 0 || numNodes != 4 * numLabels || readRoot < -1
+                || readRoot >= numNodes) {
+            throw new IOException("Corrupt trie header");
+        }
+        ExecutorService verifier = null;
+        CRC32 nodesCrc = null;
+        CRC32 labelsCrc = null;
+        if (verifyChecksums) {
+            verifier = Executors.newSingleThreadExecutor();
+            nodesCrc = new CRC32();
+            labelsCrc = new CRC32();
+        }
+        try {
+            // Read straight into the chunks, in order, so that the checksums
+            // see the sections as written.
+            ChunkedIntList nodeList = new ChunkedIntList(numNodes);
+            int[][] nodeChunks = nodeList.getChunks();
+            for (int offset = 0; offset < numNodes; offset += ChunkedIntList.CHUNK_SIZE) {
+                readSection(reader, nodeChunks[offset / ChunkedIntList.CHUNK_SIZE], null,
+                        Math.min(ChunkedIntList.CHUNK_SIZE, numNodes - offset), verifier, nodesCrc);
+            }
+            ChunkedCharList labelList = new ChunkedCharList(numLabels);
+            char[][] labelChunks = labelList.getChunks();
+            for (int offset = 0; offset < numLabels; offset += ChunkedCharList.CHUNK_SIZE) {
+                readSection(reader, null, labelChunks[offset / ChunkedCharList.CHUNK_SIZE],
+                        Math.min(ChunkedCharList.CHUNK_SIZE, numLabels - offset), verifier, labelsCrc);
+            }
+            int[][] indexSections = null;
+            CRC32[] indexCrcs = new CRC32[4];
+            int[] indexChecksums = new int[4];
+            if ((flags & FLAG_REVERSE_INDEX) != 0) {
+                indexSections = new int[4][];
+                for (int i = 0; i < 4; i++) {
+                    int length = reader.readInt();
+                    if (length < 0 || (i == 0 && length != numLabels)) {
+                        throw new IOException("Corrupt reverse index header");
+                    }
+                    indexChecksums[i] = reader.readInt();
+                    indexCrcs[i] = verifier != null ? new CRC32() : null;
+                    indexSections[i] = new int[length];
+                    readSection(reader, indexSections[i], null, length, verifier, indexCrcs[i]);
+                }
+                if (indexSections[2].length != indexSections[1].length + 1) {
+                    throw new IOException("Corrupt reverse index header");
+                }
+            }
+            int[] filterSection = null;
+            CRC32 filterCrc = null;
+            int filterChecksum = 0;
+            if ((flags & FLAG_START_FILTER) != 0) {
+                int length = reader.readInt();
+                if (length <= 0 || Integer.bitCount(length) != 1 || length > 1 << 30) {
+                    throw new IOException("Corrupt start filter header");
+                }
+                filterChecksum = reader.readInt();
+                filterCrc = verifier != null ? new CRC32() : null;
+                filterSection = new int[2 * length];
+                readSection(reader, filterSection, null, filterSection.length, verifier, filterCrc);
+            }
+            int[] tableSection = null;
+            CRC32 tableCrc = null;
+            int tableChecksum = 0;
+            if ((flags & FLAG_VALUE_TABLE) != 0) {
+                int length = reader.readInt();
+                if (length < 0 || (flags & FLAG_MINIMIZED) == 0) {
+                    throw new IOException("Corrupt value table header");
+                }
+                tableChecksum = reader.readInt();
+                tableCrc = verifier != null ? new CRC32() : null;
+                tableSection = new int[length];
+                readSection(reader, tableSection, null, length, verifier, tableCrc);
+            }
+            if (verifier != null) {
+                verifier.shutdown();
+                while (!verifier.awaitTermination(1, TimeUnit.SECONDS)) {
+                    // Keep waiting for the pending checksum updates.
+                }
+                if ((int) nodesCrc.getValue() != nodesChecksum) {
+                    throw new IOException("Checksum mismatch in nodes section");
+                }
+                if ((int) labelsCrc.getValue() != labelsChecksum) {
+                    throw new IOException("Checksum mismatch in labels section");
+                }
+                for (int i = 0; indexSections != null && i < 4; i++) {
+                    if ((int) indexCrcs[i].getValue() != indexChecksums[i]) {
+                        throw new IOException("Checksum mismatch in reverse index section");
+                    }
+                }
+                if (filterSection != null && (int) filterCrc.getValue() != filterChecksum) {
+                    throw new IOException("Checksum mismatch in start filter section");
+                }
+                if (tableSection != null && (int) tableCrc.getValue() != tableChecksum) {
+                    throw new IOException("Checksum mismatch in value table section");
+                }
+            }
+            ReverseIndex readIndex = null;
+            if (indexSections != null) {
+                readIndex = new ReverseIndex(indexSections[0], indexSections[1], indexSections[2],
+                        indexSections[3]);
+            }
+            StartFilter readFilter = null;
+            if (filterSection != null) {
+                long[] bits = new long[filterSection.length / 2];
+                for (int i = 0; i < bits.length; i++) {
+                    bits[i] = ((long) filterSection[2 * i] << 32) | (filterSection[2 * i + 1] & 0xFFFFFFFFL);
+                }
+                readFilter = new StartFilter(bits);
+            }
+            setContent(readThreshold, readDelimiter, readRoot, nodeList, labelList);
+            minimized = (flags & FLAG_MINIMIZED) != 0;
+            valueTable = tableSection;
+            reverseIndex = readIndex;
+            startFilter = readFilter;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while verifying checksums");
+        } finally {
+            if (verifier != null) {
+                verifier.shutdownNow();
+            }
+        }
+        return this;
+    }
+
+    private void deserializeVersion1(DataInputStream reader) throws IOException {
+        double readThreshold = reader.readDouble();
+        char readDelimiter = reader.readChar();
+        int readRoot = reader.readInt();
         int numNodes = reader.readInt();
+        ChunkedIntList nodeList = new ChunkedIntList();
         for (int i = 0; i < numNodes; i++) {
-            nodes.add(reader.readInt());
+            nodeList.add(reader.readInt());
         }
         int numLabels = reader.readInt();
+        ChunkedCharList labelList = new ChunkedCharList();
         for (int i = 0; i < numLabels; i++) {
-            labels.add(reader.readChar());
+            labelList.add(reader.readChar());
+        }
+        setContent(readThreshold, readDelimiter, readRoot, nodeList, labelList);
+    }
+
+    /**
+     * Replaces the content of this trie with one that was read completely,
+     * and drops everything derived from the old content. Sections beyond
+     * the nodes are set by the caller.
+     */
+    private void setContent(double threshold, char delimiter, int root, ChunkedIntList nodes,
+            ChunkedCharList labels) {
+        this.threshold = threshold;
+        this.delimiter = delimiter;
+        this.root = root;
+        this.nodes = nodes;
+        this.labels = labels;
+        freeNodes.clear();
+        minimized = false;
+        valueTable = null;
+        reverseIndex = null;
+        startFilter = null;
+        rootTable = null;
+        maxKeyTokens = -1;
+        invalidateCache();
+    }
+
+    /**
+     * Reads length ints or chars of a section in blocks. If a verifier is
+     * given, each block is also handed to it to update the checksum.
+     */
+    private static void readSection(DataInputStream reader, int[] ints, char[] chars, int length,
+            ExecutorService verifier, final CRC32 crc) throws IOException {
+        int elementSize = ints != null ? 4 : 2;
+        int blockElements = SECTION_BLOCK_BYTES / elementSize;
+        for (int offset = 0; offset < length; offset += blockElements) {
+            int count = Math.min(blockElements, length - offset);
+            final byte[] block = new byte[count * elementSize];
+            reader.readFully(block);
+            if (verifier != null) {
+                verifier.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        crc.update(block, 0, block.length);
+                    }
+                });
+            }
+            if (ints != null) {
+                ByteBuffer.wrap(block).asIntBuffer().get(ints, offset, count);
+            } else {
+                ByteBuffer.wrap(block).asCharBuffer().get(chars, offset, count);
+            }
+        }
+    }
+
+    /**
+     * Packs the first length ints or chars of a section, given as arrays
+     * of equal size but for the last, into blocks, which are written to
+     * the writer if one is given.
+     *
+     * @return CRC32 checksum of the section.
+     */
+    private static int writeSection(DataOutputStream writer, int[][] ints, char[][] chars, int length)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer block = ByteBuffer.allocate(SECTION_BLOCK_BYTES);
+        int chunkSize = length == 0 ? 1 : ints != null ? ints[0].length : chars[0].length;
+        for (int i = 0; i < length; i++) {
+            if (!block.hasRemaining()) {
+                writeBlock(writer, crc, block);
+            }
+            if (ints != null) {
+                block.putInt(ints[i / chunkSize][i % chunkSize]);
+            } else {
+                block.putChar(chars[i / chunkSize][i % chunkSize]);
+            }
+        }
+        writeBlock(writer, crc, block);
+        return (int) crc.getValue();
+    }
+
+    private static void writeBlock(DataOutputStream writer, CRC32 crc, ByteBuffer block) throws IOException {
+        crc.update(block.array(), 0, block.position());
+        if (writer != null) {
+            writer.write(block.array(), 0, block.position());
+        }
+        block.clear();
+    }
+
+    /**
+     * Puts a cache in front of the longest match lookups, or removes it if
+     * null. Changes to the trie invalidate the cache.
+     */
+    public void setCache(LookupCache cache) {
+        this.cache = cache;
+    }
+
+    private void invalidateCache() {
+        if (cache != null) {
+            cache.invalidate();
+        }
+    }
+
+    /**
+     * Sets the metrics that lookups are recorded to, or null to record
+     * nothing. Has no effect unless {@link TrieMetrics#ENABLED}.
+     */
+    public void setMetrics(TrieMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the counter that the keys found by longest match walks are
+     * recorded to, or null to record nothing. While a counter is set, the
+     * lookup cache is bypassed, so that every match is counted.
+     */
+    public void setHitCounter(HitCounter hitCounter) {
+        this.hitCounter = hitCounter;
+    }
+
+    /**
+     * Sets whether deserialize verifies the section checksums, which it
+     * does by default.
+     */
+    public void setVerifyChecksums(boolean verifyChecksums) {
+        this.verifyChecksums = verifyChecksums;
+    }
+
+    private static class Chunk {
+        private final int from;
+        private final int to;
+        private final TIntList offsets = new TIntArrayList();
+        private final List<Match> matches = new ArrayList<Match>();
+        private int end;
+
+        public Chunk(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private String[] tokens;
+        private Chunk[] chunks;
+        private int from;
+        private int to;
+        private int overlap;
+
+        public ChunkTask(String[] tokens, Chunk[] chunks, int from, int to, int overlap) {
+            this.tokens = tokens;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+            this.overlap = overlap;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                scanChunk(tokens, chunks[from], overlap);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ChunkTask(tokens, chunks, from, mid, overlap),
+                        new ChunkTask(tokens, chunks, mid, to, overlap));
+            }
+        }
+    }
+
+    private class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private String[][] docs;
+        private int from;
+        private int to;
+        private int[] out;
+        private List<List<Match>> matches;
+
+        public BatchTask(String[][] docs, int from, int to, int[] out, List<List<Match>> matches) {
+            this.docs = docs;
+            this.from = from;
+            this.to = to;
+            this.out = out;
+            this.matches = matches;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_SPLIT_THRESHOLD) {
+                if (to > from) {
+                    walkBatch(docs, from, to, out, matches);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BatchTask(docs, from, mid, out, matches),
+                        new BatchTask(docs, mid, to, out, matches));
+            }
         }
-        return this;
     }
 
     private class InternalNodeId {
@@ -0,0 +1,203 @@
+package de.mpii.ternarytree;
+
+import gnu.trove.map.TIntIntMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+/**
+ * Reports the shape and memory footprint of a trie, for capacity planning.
+ * Run as "App analyze -i &lt;trie file&gt; [-p]". With -p, the sizes of a
+ * minimized and a frozen copy are reported too, which takes building them.
+ */
+public class TrieAnalyzer {
+
+    private TernaryTriePrimitive trie;
+
+    // Per key
+    private long keys;
+    private long pathLengthSum;
+    private int maxPathLength;
+    private int maxValue = -1;
+
+    // Per node
+    private long lessOnly;
+    private long greatOnly;
+    private long lessAndGreat;
+
+    // Per set of siblings, i.e. per binary search tree below an equal child
+    private long siblingSets;
+    private long siblingSetSizeSum;
+    private int maxSiblingSetSize;
+    private long extraHops;
+
+    public TrieAnalyzer(TernaryTriePrimitive trie) {
+        this.trie = trie;
+    }
+
+    public static void main(String[] args) throws ParseException, IOException {
+        Options options = new Options();
+        options.addOption("i", "input", true, "Serialized trie to analyze");
+        options.addOption("p", "projections", false, "Also build minimized and frozen copies to report their sizes");
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = parser.parse(options, args);
+        TernaryTriePrimitive trie = new TrieBuilder().loadTernaryTriePrimitive(new File(cmd.getOptionValue("i")));
+        System.out.print(new TrieAnalyzer(trie).analyze(cmd.hasOption("p")));
+    }
+
+    /**
+     * Returns the report as lines of the form "name&lt;tab&gt;value",
+     * without projections.
+     */
+    public String analyze() {
+        return analyze(false);
+    }
+
+    /**
+     * Returns the report as lines of the form "name&lt;tab&gt;value".
+     *
+     * @param projections Whether to report the sizes of a minimized and a
+     *                    frozen copy, which are built for this and take
+     *                    about as much memory and time as the trie.
+     */
+    public String analyze(boolean projections) {
+        keys = pathLengthSum = lessOnly = greatOnly = lessAndGreat = 0;
+        siblingSets = siblingSetSizeSum = extraHops = 0;
+        maxPathLength = maxSiblingSetSize = 0;
+        maxValue = -1;
+        visitSiblingSet(trie.getRoot(), 0, 1);
+
+        StringBuilder report = new StringBuilder();
+        line(report, "keys", keys);
+        line(report, "nodes", trie.getTotalNodes());
+        line(report, "free node slots", trie.getNodeSlots() - trie.getTotalNodes());
+
+        int[] nodesPerLevel = trie.getNodesPerLevel();
+        for (int level = 0; level < nodesPerLevel.length; level++) {
+            line(report, "nodes at depth " + level, nodesPerLevel[level]);
+        }
+
+        line(report, "average lookup path length", keys == 0 ? 0.0 : (double) pathLengthSum / keys);
+        line(report, "max lookup path length", maxPathLength);
+
+        line(report, "nodes with less child only", lessOnly);
+        line(report, "nodes with greater child only", greatOnly);
+        line(report, "nodes with less and greater child", lessAndGreat);
+        line(report, "sibling sets", siblingSets);
+        line(report, "average sibling set size", siblingSets == 0 ? 0.0 : (double) siblingSetSizeSum / siblingSets);
+        line(report, "max sibling set size", maxSiblingSetSize);
+        line(report, "hops over balanced sibling sets", extraHops);
+
+        TIntIntMap collapsable = trie.getCollapsableLengths();
+        int[] lengths = collapsable.keys();
+        Arrays.sort(lengths);
+        long chains = 0;
+        long chainNodes = 0;
+        for (int length : lengths) {
+            line(report, "collapsable chains of length " + length, collapsable.get(length));
+            if (length > 1) {
+                chains += collapsable.get(length);
+                chainNodes += (long) length * collapsable.get(length);
+            }
+        }
+
+        long slots = trie.getNodeSlots();
+        long nodes = trie.getTotalNodes();
+        long arrayBytes = trie.getNodesArrayBytes() + trie.getLabelsArrayBytes();
+        line(report, "bytes nodes array", trie.getNodesArrayBytes());
+        line(report, "bytes labels array", trie.getLabelsArrayBytes());
+        line(report, "bytes in free node slots", (slots - nodes) * 18);
+        line(report, "bytes in unused chunk capacity", arrayBytes - slots * 18);
+        line(report, "bytes value table", trie.getValueTableBytes());
+        line(report, "bytes total", arrayBytes + trie.getValueTableBytes());
+
+        line(report, "projected bytes compacted", nodes * 18 + trie.getValueTableBytes());
+        if (projections) {
+            long minimizedNodes = nodes;
+            long valueTableBytes = trie.getValueTableBytes();
+            if (!trie.isMinimized()) {
+                TernaryTriePrimitive minimized = trie.fork();
+                minimizedNodes -= minimized.minimize();
+                valueTableBytes = minimized.getValueTableBytes();
+            }
+            line(report, "projected nodes minimized", minimizedNodes);
+            line(report, "projected bytes minimized", minimizedNodes * 18 + valueTableBytes);
+            FrozenTrie frozen = FrozenTrie.freeze(trie);
+            line(report, "projected bytes frozen", frozen.getBytes());
+            line(report, "frozen tst groups", frozen.getGroupCount(FrozenTrie.TST));
+            line(report, "frozen sorted groups", frozen.getGroupCount(FrozenTrie.SORTED));
+            line(report, "frozen direct groups", frozen.getGroupCount(FrozenTrie.DIRECT));
+        }
+        line(report, "bytes root table",
+                trie.hasRootTable() ? trie.getRootTableBytes() : RootTable.getBytes(trie.hasValueTable()));
+        // Pointers and values also need to encode -1.
+        int pointerBits = bits(nodes + 1);
+        int valueBits = bits(maxValue + 2L);
+        line(report, "projected bytes with " + pointerBits + " bit pointers and " + valueBits + " bit values",
+                (nodes * (3 * pointerBits + valueBits + 16) + 7) / 8);
+        line(report, "projected bytes with collapsed chains",
+                (nodes - chainNodes + chains) * 16 + nodes * 2);
+        return report.toString();
+    }
+
+    /**
+     * Visits the binary search tree of siblings below node, at the given
+     * number of nodes on the lookup path up to its root, with the rank of
+     * node, see TernaryTriePrimitive.getNodeValue(int, int).
+     */
+    private void visitSiblingSet(int node, int rank, int depth) {
+        if (node == -1) {
+            return;
+        }
+        int[] sizeAndHeight = visitSiblings(node, rank, depth);
+        siblingSets++;
+        siblingSetSizeSum += sizeAndHeight[0];
+        maxSiblingSetSize = Math.max(maxSiblingSetSize, sizeAndHeight[0]);
+        int balancedHeight = 32 - Integer.numberOfLeadingZeros(sizeAndHeight[0]);
+        extraHops += sizeAndHeight[1] - balancedHeight;
+    }
+
+    /**
+     * @return Size and height of the binary search tree rooted at node.
+     */
+    private int[] visitSiblings(int node, int rank, int depth) {
+        if (node == -1) {
+            return new int[] { 0, 0 };
+        }
+        int less = trie.getLessChild(node);
+        int great = trie.getGreatChild(node);
+        if (less != -1 && great != -1) {
+            lessAndGreat++;
+        } else if (less != -1) {
+            lessOnly++;
+        } else if (great != -1) {
+            greatOnly++;
+        }
+        int value = trie.getNodeValue(node, rank);
+        if (value != -1) {
+            keys++;
+            pathLengthSum += depth;
+            maxPathLength = Math.max(maxPathLength, depth);
+            maxValue = Math.max(maxValue, value);
+        }
+        visitSiblingSet(trie.getEqualChild(node), trie.getEqualRank(node, rank), depth + 1);
+        int[] lessTree = visitSiblings(less, rank, depth + 1);
+        int[] greatTree = visitSiblings(great, trie.getGreatRank(node, rank), depth + 1);
+        return new int[] { lessTree[0] + greatTree[0] + 1, Math.max(lessTree[1], greatTree[1]) + 1 };
+    }
+
+    private static int bits(long values) {
+        return Math.max(1, 64 - Long.numberOfLeadingZeros(Math.max(1, values - 1)));
+    }
+
+    private static void line(StringBuilder report, String name, Object value) {
+        report.append(name).append('\t').append(value).append('\n');
+    }
+}
@@ -1,28 +1,190 @@
 package de.mpii.ternarytree;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-
-import org.iq80.snappy.SnappyInputStream;
-import org.iq80.snappy.SnappyOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Loads and writes Tries from and to disk.
- * Uses Snappy for compression.
+ * Files start with a small uncompressed header: the magic bytes "TTRI",
+ * the header version and the codec id. In header version 1 the rest of
+ * the file is one compressed stream. Since header version 2 it is split
+ * into blocks of equal size that are compressed and decompressed in
+ * parallel, see {@link BlockOutputStream}, after the block size.
+ * Uses Snappy for compression by default.
+ *
+ * Files without header, as written by earlier versions of this class
+ * (Snappy) and of App (GZIP) or by serialize directly, are still read.
  */
 public class TrieBuilder {
+  private static final byte[] MAGIC = { 'T', 'T', 'R', 'I' };
+  private static final int HEADER_VERSION = 2;
+  private static final int STREAM_HEADER_VERSION = 1;
+  private static final int BLOCK_SIZE = 1 << 20;
+  // Largest block size accepted from a file header.
+  private static final int MAX_BLOCK_SIZE = 1 << 26;
+  private static final byte[] GZIP_MAGIC = { 0x1f, (byte) 0x8b };
+  private static final byte[] SNAPPY_MAGIC = { 's', 'n', 'a', 'p', 'p', 'y', 0 };
+  private static final byte[] SERIALIZED_MAGIC = { 'T', 'T', 'R', 'S' };
+
+  private int threads;
+  private TrieMetrics metrics;
+
+  public TrieBuilder() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param threads Number of threads compressing or decompressing blocks.
+   */
+  public TrieBuilder(int threads) {
+    this.threads = threads;
+  }
+
   public void write(SerializableTrie trie, File file) throws FileNotFoundException, IOException {
-    trie.serialize(new BufferedOutputStream(new SnappyOutputStream(new FileOutputStream(file)), 2<<20));
+    write(trie, file, TrieCodec.SNAPPY);
+  }
+
+  public void write(SerializableTrie trie, File file, TrieCodec codec) throws FileNotFoundException, IOException {
+    long startTime = TrieMetrics.ENABLED && metrics != null ? System.nanoTime() : 0;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      trie.serialize(create(new FileOutputStream(file), codec, pool));
+    } finally {
+      pool.shutdownNow();
+    }
+    if (TrieMetrics.ENABLED && metrics != null) {
+      metrics.recordWrite(System.nanoTime() - startTime);
+    }
   }
   
   public TernaryTriePrimitive loadTernaryTriePrimitive(File file) throws FileNotFoundException, IOException {
+    return loadTernaryTriePrimitive(file, true);
+  }
+
+  /**
+   * Loads a trie, detecting the codec from the file.
+   *
+   * @param verifyChecksums Whether to verify the section and block checksums.
+   * @throws IOException If the file format is unknown or the file is
+   *         truncated or corrupt.
+   */
+  public TernaryTriePrimitive loadTernaryTriePrimitive(File file, boolean verifyChecksums)
+      throws FileNotFoundException, IOException {
+    return load(new FileInputStream(file), verifyChecksums);
+  }
+
+  /**
+   * Loads a trie from a stream holding a trie file, and closes the stream.
+   */
+  TernaryTriePrimitive load(InputStream stream, boolean verifyChecksums) throws IOException {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      return load(stream, pool, verifyChecksums);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Loads a trie from a stream holding a trie file, decompressing blocks
+   * on the given pool, and closes the stream.
+   */
+  TernaryTriePrimitive load(InputStream stream, ExecutorService pool, boolean verifyChecksums) throws IOException {
+    long startTime = TrieMetrics.ENABLED && metrics != null ? System.nanoTime() : 0;
     TernaryTriePrimitive trie = new TernaryTriePrimitive();
-    trie.deserialize(new BufferedInputStream(new SnappyInputStream(new FileInputStream(file)), 2<<20));
+    trie.setVerifyChecksums(verifyChecksums);
+    InputStream in = stream;
+    try {
+      in = open(stream, pool, verifyChecksums);
+      trie.deserialize(in);
+    } finally {
+      in.close();
+    }
+    if (TrieMetrics.ENABLED && metrics != null) {
+      metrics.recordLoad(System.nanoTime() - startTime);
+    }
     return trie;
   }
+
+  /**
+   * Sets the metrics that loading and writing are recorded to, or null to
+   * record nothing. Has no effect unless {@link TrieMetrics#ENABLED}.
+   */
+  public void setMetrics(TrieMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Writes the file header and returns the stream to write the serialized
+   * trie to. Blocks are compressed on the given pool, and closing the
+   * stream completes the file.
+   */
+  OutputStream create(OutputStream stream, TrieCodec codec, ExecutorService pool) throws IOException {
+    DataOutputStream out = new DataOutputStream(stream);
+    out.write(MAGIC);
+    out.writeByte(HEADER_VERSION);
+    out.writeByte(codec.getId());
+    out.writeInt(BLOCK_SIZE);
+    return new BlockOutputStream(out, codec, BLOCK_SIZE, pool, 2 * threads);
+  }
+
+  /**
+   * Returns the decompressed serialized trie of a trie file. Blocks are
+   * decompressed on the given pool.
+   */
+  InputStream open(InputStream stream, ExecutorService pool, boolean verifyChecksums) throws IOException {
+    BufferedInputStream in = new BufferedInputStream(stream, 2<<20);
+    byte[] head = new byte[SNAPPY_MAGIC.length];
+    in.mark(head.length);
+    int read = 0;
+    while (read < head.length) {
+      int n = in.read(head, read, head.length - read);
+      if (n < 0) {
+        break;
+      }
+      read += n;
+    }
+    in.reset();
+    if (startsWith(head, read, MAGIC)) {
+      DataInputStream header = new DataInputStream(in);
+      header.skipBytes(MAGIC.length);
+      int version = header.readUnsignedByte();
+      TrieCodec codec = TrieCodec.forId(header.readUnsignedByte());
+      if (version == STREAM_HEADER_VERSION) {
+        return codec.decompress(in);
+      } else if (version == HEADER_VERSION) {
+        int blockSize = header.readInt();
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+          throw new IOException("Corrupt trie file header");
+        }
+        return new BlockInputStream(in, codec, blockSize, pool, 2 * threads, verifyChecksums);
+      }
+      throw new IOException("Unsupported trie file header version " + version);
+    } else if (startsWith(head, read, GZIP_MAGIC)) {
+      return TrieCodec.GZIP.decompress(in);
+    } else if (startsWith(head, read, SNAPPY_MAGIC)) {
+      return TrieCodec.SNAPPY.decompress(in);
+    } else if (startsWith(head, read, SERIALIZED_MAGIC)
+        || (read >= 4 && head[0] == 0 && head[1] == 0 && head[2] == 0)) {
+      // Uncompressed output of serialize, starting with its magic or, in
+      // older versions, its version.
+      return in;
+    }
+    throw new IOException("Unknown trie file format");
+  }
+
+  private static boolean startsWith(byte[] head, int length, byte[] prefix) {
+    return length >= prefix.length && Arrays.equals(Arrays.copyOf(head, prefix.length), prefix);
+  }
 }
@@ -0,0 +1,160 @@
+package de.mpii.ternarytree;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import org.iq80.snappy.CorruptionException;
+import org.iq80.snappy.Snappy;
+import org.iq80.snappy.SnappyInputStream;
+import org.iq80.snappy.SnappyOutputStream;
+
+/**
+ * Compression codecs for trie files. The id of a codec is stored in the
+ * file header, so it must never change. Each codec compresses either a
+ * whole stream or independent blocks; GZIP blocks are plain zlib data.
+ */
+public enum TrieCodec {
+  NONE(0),
+  SNAPPY(1),
+  GZIP(2);
+
+  private final int id;
+
+  private TrieCodec(int id) {
+    this.id = id;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public static TrieCodec forId(int id) throws IOException {
+    for (TrieCodec codec : values()) {
+      if (codec.id == id) {
+        return codec;
+      }
+    }
+    throw new IOException("Unknown trie codec id " + id);
+  }
+
+  public OutputStream compress(OutputStream stream) throws IOException {
+    switch (this) {
+      case SNAPPY:
+        return new SnappyOutputStream(stream);
+      case GZIP:
+        return new GZIPOutputStream(stream, 1 << 16);
+      default:
+        return stream;
+    }
+  }
+
+  public InputStream decompress(InputStream stream) throws IOException {
+    switch (this) {
+      case SNAPPY:
+        return new SnappyInputStream(stream);
+      case GZIP:
+        return new GZIPInputStream(stream, 1 << 16);
+      default:
+        return stream;
+    }
+  }
+
+  /**
+   * Compresses the first length bytes of block.
+   */
+  public byte[] compressBlock(byte[] block, int length) {
+    switch (this) {
+      case SNAPPY:
+        byte[] compressed = new byte[Snappy.maxCompressedLength(length)];
+        int compressedLength = Snappy.compress(block, 0, length, compressed, 0);
+        return Arrays.copyOf(compressed, compressedLength);
+      case GZIP:
+        Deflater deflater = new Deflater();
+        try {
+          deflater.setInput(block, 0, length);
+          deflater.finish();
+          byte[] buffer = new byte[length + (length >> 3) + 64];
+          int total = 0;
+          while (!deflater.finished()) {
+            if (total == buffer.length) {
+              buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            total += deflater.deflate(buffer, total, buffer.length - total);
+          }
+          return Arrays.copyOf(buffer, total);
+        } finally {
+          deflater.end();
+        }
+      default:
+        return Arrays.copyOf(block, length);
+    }
+  }
+
+  /**
+   * Returns the largest size that compressBlock can compress rawLength
+   * bytes to.
+   */
+  public int maxCompressedLength(int rawLength) {
+    switch (this) {
+      case SNAPPY:
+        return Snappy.maxCompressedLength(rawLength);
+      case GZIP:
+        // Well above zlib's bound of stored blocks and stream overhead.
+        return rawLength + (rawLength >> 3) + 64;
+      default:
+        return rawLength;
+    }
+  }
+
+  /**
+   * Decompresses a block written by compressBlock into target, which must
+   * have room for exactly rawLength bytes from offset on.
+   *
+   * @throws IOException If the block is corrupt.
+   */
+  public void decompressBlock(byte[] block, int length, byte[] target, int offset, int rawLength)
+      throws IOException {
+    int decompressed;
+    switch (this) {
+      case SNAPPY:
+        try {
+          if (Snappy.getUncompressedLength(block, 0) != rawLength) {
+            throw new IOException("Corrupt snappy block");
+          }
+          decompressed = Snappy.uncompress(block, 0, length, target, offset);
+        } catch (CorruptionException e) {
+          throw new IOException("Corrupt snappy block", e);
+        }
+        break;
+      case GZIP:
+        Inflater inflater = new Inflater();
+        try {
+          inflater.setInput(block, 0, length);
+          decompressed = inflater.inflate(target, offset, rawLength);
+          if (!inflater.finished()) {
+            throw new IOException("Corrupt zlib block");
+          }
+        } catch (DataFormatException e) {
+          throw new IOException("Corrupt zlib block", e);
+        } finally {
+          inflater.end();
+        }
+        break;
+      default:
+        decompressed = length;
+        if (length == rawLength) {
+          System.arraycopy(block, 0, target, offset, length);
+        }
+    }
+    if (decompressed != rawLength) {
+      throw new IOException("Block has " + decompressed + " instead of " + rawLength + " bytes");
+    }
+  }
+}
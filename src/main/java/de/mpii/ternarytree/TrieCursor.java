@@ -0,0 +1,116 @@
+package de.mpii.ternarytree;
+
+import java.util.Arrays;
+
+/**
+ * Steps through the stored keys of a {@link TernaryTriePrimitive} in
+ * sorted order. The current key is kept in one buffer that each step
+ * updates, so no strings are created. The trie must not change while the
+ * cursor is used.
+ */
+final class TrieCursor {
+
+    private static final int LESS = 0;
+    private static final int EQUAL = 1;
+    private static final int GREAT = 2;
+
+    private final TernaryTriePrimitive trie;
+    private final StringBuilder key = new StringBuilder();
+    private int value = -1;
+    private int node = -1;
+    private int rank;
+
+    // Nodes being visited, with the next step at each, their ranks and the
+    // length of the key above them.
+    private int[] nodes = new int[16];
+    private int[] steps = new int[16];
+    private int[] ranks = new int[16];
+    private int[] prefixLengths = new int[16];
+    private int depth;
+
+    TrieCursor(TernaryTriePrimitive trie) {
+        this.trie = trie;
+        push(trie.getRoot(), 0, 0);
+    }
+
+    /**
+     * Advances to the next key, if there is one.
+     */
+    boolean next() {
+        while (depth > 0) {
+            int top = depth - 1;
+            int node = nodes[top];
+            switch (steps[top]) {
+            case LESS:
+                steps[top] = EQUAL;
+                push(trie.getLessChild(node), ranks[top], prefixLengths[top]);
+                break;
+            case EQUAL:
+                steps[top] = GREAT;
+                key.setLength(prefixLengths[top]);
+                key.append(trie.getNodeKey(node));
+                int rank = ranks[top];
+                push(trie.getEqualChild(node), trie.getEqualRank(node, rank), prefixLengths[top] + 1);
+                int value = trie.getNodeValue(node, rank);
+                if (value != -1) {
+                    this.value = value;
+                    this.node = node;
+                    this.rank = rank;
+                    return true;
+                }
+                break;
+            default:
+                // The greater siblings take the place of the node.
+                depth--;
+                push(trie.getGreatChild(node), trie.getGreatRank(node, ranks[top]), prefixLengths[top]);
+                break;
+            }
+        }
+        value = -1;
+        node = -1;
+        return false;
+    }
+
+    /**
+     * Returns the current key, which changes with the next step.
+     */
+    CharSequence getKey() {
+        return key;
+    }
+
+    int getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the node holding the value of the current key.
+     */
+    int getNode() {
+        return node;
+    }
+
+    /**
+     * Returns the rank the node of the current key was reached with, see
+     * {@link TernaryTriePrimitive#getNodeValue(int, int)}.
+     */
+    int getRank() {
+        return rank;
+    }
+
+    private void push(int node, int rank, int prefixLength) {
+        if (node == -1) {
+            return;
+        }
+        if (depth == nodes.length) {
+            nodes = Arrays.copyOf(nodes, 2 * depth);
+            steps = Arrays.copyOf(steps, 2 * depth);
+            ranks = Arrays.copyOf(ranks, 2 * depth);
+            prefixLengths = Arrays.copyOf(prefixLengths, 2 * depth);
+        }
+        nodes[depth] = node;
+        steps[depth] = LESS;
+        ranks[depth] = rank;
+        prefixLengths[depth] = prefixLength;
+        depth++;
+    }
+}
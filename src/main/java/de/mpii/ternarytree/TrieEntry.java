@@ -0,0 +1,43 @@
+package de.mpii.ternarytree;
+
+/**
+ * A stored key of a trie with its value, see
+ * {@link TernaryTriePrimitive#entries()}.
+ */
+public final class TrieEntry {
+
+    private final String key;
+    private final int value;
+
+    public TrieEntry(String key, int value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TrieEntry)) {
+            return false;
+        }
+        TrieEntry other = (TrieEntry) o;
+        return key.equals(other.key) && value == other.value;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * key.hashCode() + value;
+    }
+
+    @Override
+    public String toString() {
+        return key + "\t" + value;
+    }
+}
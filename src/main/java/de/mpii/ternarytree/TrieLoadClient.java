@@ -0,0 +1,145 @@
+package de.mpii.ternarytree;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+/**
+ * Sends queries to a {@link TrieServer} from several connections for a
+ * while and reports the throughput and latency percentiles. Run as
+ * "App loadtest -f &lt;file with one query per line&gt;".
+ */
+public class TrieLoadClient {
+
+    private String baseUrl;
+    private String endpoint;
+    private List<String> queries;
+    private LatencyHistogram latencies = new LatencyHistogram();
+    private AtomicLong errors = new AtomicLong();
+
+    /**
+     * @param endpoint "get" to send the queries as keys, "matches" or
+     *                 "longest" to send them as texts.
+     */
+    public TrieLoadClient(String baseUrl, String endpoint, List<String> queries) {
+        this.baseUrl = baseUrl;
+        this.endpoint = endpoint;
+        this.queries = queries;
+    }
+
+    public static void main(String[] args) throws ParseException, IOException, InterruptedException {
+        Options options = new Options();
+        options.addOption("u", "url", true, "Base URL of the server, http://localhost:8080 by default");
+        options.addOption("e", "endpoint", true, "get, longest or matches (default)");
+        options.addOption("f", "file", true, "UTF-8 file with one query per line");
+        options.addOption("c", "connections", true, "Number of concurrent connections, 16 by default");
+        options.addOption("d", "duration", true, "Seconds to measure, 30 by default");
+        options.addOption("w", "warmup", true, "Seconds to send queries before measuring, 5 by default");
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = parser.parse(options, args);
+        List<String> queries = Files.readAllLines(Paths.get(cmd.getOptionValue("f")), Charset.forName("UTF-8"));
+        TrieLoadClient client = new TrieLoadClient(cmd.getOptionValue("u", "http://localhost:8080"),
+                cmd.getOptionValue("e", "matches"), queries);
+        int connections = Integer.parseInt(cmd.getOptionValue("c", "16"));
+        client.run(connections, Integer.parseInt(cmd.getOptionValue("w", "5")));
+        client.reset();
+        int seconds = Integer.parseInt(cmd.getOptionValue("d", "30"));
+        client.run(connections, seconds);
+        System.out.print(client.report(seconds));
+    }
+
+    /**
+     * Sends queries from the given number of threads for the given time.
+     */
+    public void run(int connections, final int seconds) throws InterruptedException {
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService pool = Executors.newFixedThreadPool(connections);
+        try {
+            for (int c = 0; c < connections; c++) {
+                final int first = c;
+                pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = first; System.nanoTime() < end; i += 7) {
+                            send(queries.get(i % queries.size()));
+                        }
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+        }
+        pool.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+    }
+
+    public void reset() {
+        latencies.reset();
+        errors.set(0);
+    }
+
+    public long getRequests() {
+        return latencies.getCount();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getLatencyNanos(double percentile) {
+        return latencies.getPercentile(percentile);
+    }
+
+    /**
+     * Returns the report as lines of the form "name&lt;tab&gt;value".
+     */
+    public String report(int seconds) {
+        return "requests\t" + getRequests() + "\n"
+                + "errors\t" + getErrors() + "\n"
+                + "requests per second\t" + getRequests() / Math.max(1, seconds) + "\n"
+                + "p50 latency us\t" + getLatencyNanos(50.0) / 1000 + "\n"
+                + "p99 latency us\t" + getLatencyNanos(99.0) / 1000 + "\n"
+                + "p99.9 latency us\t" + getLatencyNanos(99.9) / 1000 + "\n";
+    }
+
+    private void send(String query) {
+        long startTime = System.nanoTime();
+        try {
+            String parameter = endpoint.equals("get") ? "key" : "text";
+            URL url = new URL(baseUrl + "/" + endpoint + "?" + parameter + "=" + URLEncoder.encode(query, "UTF-8"));
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            if (connection.getResponseCode() != 200) {
+                errors.incrementAndGet();
+            }
+            // Reading the response to the end lets the connection be reused.
+            InputStream in = connection.getResponseCode() == 200 ? connection.getInputStream()
+                    : connection.getErrorStream();
+            byte[] buffer = new byte[4096];
+            while (in != null && in.read(buffer) > 0) {
+                // Discard.
+            }
+            if (in != null) {
+                in.close();
+            }
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            return;
+        }
+        latencies.record(System.nanoTime() - startTime);
+    }
+}
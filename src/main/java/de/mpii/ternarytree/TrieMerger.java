@@ -0,0 +1,194 @@
+package de.mpii.ternarytree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+/**
+ * Merges tries of the same threshold and delimiter into one trie file,
+ * e.g. dictionaries built from different sources. Run as "App merge -o
+ * &lt;output file&gt; &lt;trie file&gt;...".
+ *
+ * The stored keys of the inputs are walked in sorted order side by side,
+ * without creating strings, and written directly by a
+ * {@link SortedTrieWriter}, so the merge needs little memory besides the
+ * inputs themselves. A key held by several inputs gets the value chosen
+ * by the conflict policy. As with {@link ExternalTrieBuilder}, every set
+ * of siblings of the output is a balanced binary search tree.
+ */
+public class TrieMerger {
+
+    private ConflictPolicy policy;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private File tempDir;
+
+    public TrieMerger(ConflictPolicy policy) {
+        this.policy = policy;
+    }
+
+    public static void main(String[] args) throws ParseException, IOException {
+        Options options = new Options();
+        options.addOption("o", "output", true, "Path to output merged trie");
+        options.addOption("c", "codec", true, "Compression of the output: snappy (default), gzip or none");
+        options.addOption("p", "policy", true,
+                "Value of keys in several inputs: first (default), last, min, max or fail");
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = parser.parse(options, args);
+        if (cmd.getArgs().length == 0 || !cmd.hasOption("o")) {
+            throw new ParseException("Expected an output and at least one input trie file");
+        }
+        List<File> inputs = new ArrayList<File>();
+        for (String input : cmd.getArgs()) {
+            inputs.add(new File(input));
+        }
+        TrieMerger merger = new TrieMerger(ConflictPolicy.valueOf(cmd.getOptionValue("p", "first").toUpperCase()));
+        long keys = merger.mergeFiles(inputs, new File(cmd.getOptionValue("o")),
+                TrieCodec.valueOf(cmd.getOptionValue("c", "snappy").toUpperCase()));
+        System.err.println("Merged " + inputs.size() + " tries into " + keys + " keys");
+    }
+
+    /**
+     * Sets the number of threads compressing the output.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the directory for the temporary files that buffer the output,
+     * or null for the default temporary directory.
+     */
+    public void setTempDir(File tempDir) {
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Loads the trie files and merges them, see merge.
+     */
+    public long mergeFiles(List<File> inputs, File output, TrieCodec codec) throws IOException {
+        List<TernaryTriePrimitive> tries = new ArrayList<TernaryTriePrimitive>();
+        TrieBuilder loader = new TrieBuilder(threads);
+        for (File input : inputs) {
+            tries.add(loader.loadTernaryTriePrimitive(input));
+        }
+        return merge(tries, output, codec);
+    }
+
+    /**
+     * Writes the keys of all tries into one trie file.
+     *
+     * @return Number of keys written.
+     * @throws IllegalArgumentException If the tries differ in threshold or
+     *         delimiter, or there are none.
+     * @throws IllegalStateException If the policy is FAIL and a key has
+     *         different values.
+     */
+    public long merge(List<TernaryTriePrimitive> tries, File output, TrieCodec codec) throws IOException {
+        if (tries.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to merge");
+        }
+        TernaryTriePrimitive first = tries.get(0);
+        for (TernaryTriePrimitive trie : tries) {
+            if (trie.getThreshold() != first.getThreshold() || trie.getDelimiter() != first.getDelimiter()) {
+                throw new IllegalArgumentException("Tries of different thresholds or delimiters cannot be merged");
+            }
+        }
+        MergedKeys keys = new MergedKeys(tries, policy);
+        SortedTrieWriter.writeFile(keys, first.getThreshold(), first.getDelimiter(), output, codec, threads,
+                tempDir);
+        return keys.count;
+    }
+
+    /**
+     * The distinct stored keys of several tries in sorted order.
+     */
+    private static class MergedKeys implements SortedTrieWriter.Source {
+        private PriorityQueue<Input> queue;
+        private ConflictPolicy policy;
+        private StringBuilder key = new StringBuilder();
+        private int value;
+        private long count;
+
+        public MergedKeys(List<TernaryTriePrimitive> tries, ConflictPolicy policy) {
+            this.policy = policy;
+            queue = new PriorityQueue<Input>(tries.size(), new Comparator<Input>() {
+                @Override
+                public int compare(Input a, Input b) {
+                    int c = compareKeys(a.cursor.getKey(), b.cursor.getKey());
+                    return c != 0 ? c : Integer.compare(a.index, b.index);
+                }
+            });
+            for (int i = 0; i < tries.size(); i++) {
+                advance(new Input(new TrieCursor(tries.get(i)), i));
+            }
+        }
+
+        @Override
+        public boolean next() {
+            Input input = queue.poll();
+            if (input == null) {
+                return false;
+            }
+            key.setLength(0);
+            key.append(input.cursor.getKey());
+            value = input.cursor.getValue();
+            advance(input);
+            while (!queue.isEmpty() && compareKeys(queue.peek().cursor.getKey(), key) == 0) {
+                input = queue.poll();
+                try {
+                    value = policy.resolve(value, input.cursor.getValue());
+                } catch (IllegalStateException e) {
+                    throw new IllegalStateException("Cannot merge key " + key + ": " + e.getMessage());
+                }
+                advance(input);
+            }
+            count++;
+            return true;
+        }
+
+        @Override
+        public CharSequence getKey() {
+            return key;
+        }
+
+        @Override
+        public int getValue() {
+            return value;
+        }
+
+        private void advance(Input input) {
+            if (input.cursor.next()) {
+                queue.add(input);
+            }
+        }
+
+        private static int compareKeys(CharSequence a, CharSequence b) {
+            int length = Math.min(a.length(), b.length());
+            for (int i = 0; i < length; i++) {
+                if (a.charAt(i) != b.charAt(i)) {
+                    return a.charAt(i) - b.charAt(i);
+                }
+            }
+            return a.length() - b.length();
+        }
+    }
+
+    private static class Input {
+        private final TrieCursor cursor;
+        private final int index;
+
+        public Input(TrieCursor cursor, int index) {
+            this.cursor = cursor;
+            this.index = index;
+        }
+    }
+}
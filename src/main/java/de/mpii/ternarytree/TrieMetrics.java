@@ -0,0 +1,252 @@
+package de.mpii.ternarytree;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for the lookups of a trie and for loading
+ * and writing trie files. Attach an instance with
+ * {@link TernaryTriePrimitive#setMetrics(TrieMetrics)} or
+ * {@link TrieBuilder#setMetrics(TrieMetrics)}, read it with
+ * {@link #snapshot()} or register it with JMX.
+ *
+ * Recording is compiled in only if the system property
+ * "ternarytree.metrics" is true at startup. Otherwise the instrumentation
+ * is guarded by the constant ENABLED, and the JIT removes it entirely.
+ */
+public class TrieMetrics implements TrieMetricsMBean {
+
+  public static final boolean ENABLED = Boolean.getBoolean("ternarytree.metrics");
+
+  private StripedCounter lookups = new StripedCounter();
+  private StripedCounter hits = new StripedCounter();
+  private StripedCounter nodeHops = new StripedCounter();
+  private StripedCounter documents = new StripedCounter();
+  private StripedCounter matches = new StripedCounter();
+  private StripedCounter loadNanos = new StripedCounter();
+  private StripedCounter writeNanos = new StripedCounter();
+  private LatencyHistogram longestMatchNanos = new LatencyHistogram();
+  private LatencyHistogram allMatchesNanos = new LatencyHistogram();
+
+  void recordLongestMatch(int hops, long nanos) {
+    nodeHops.add(hops);
+    longestMatchNanos.record(nanos);
+  }
+
+  void recordLookup(boolean hit) {
+    lookups.increment();
+    if (hit) {
+      hits.increment();
+    }
+  }
+
+  void recordAllMatches(int matchCount, long nanos) {
+    documents.increment();
+    matches.add(matchCount);
+    allMatchesNanos.record(nanos);
+  }
+
+  void recordLoad(long nanos) {
+    loadNanos.add(nanos);
+  }
+
+  void recordWrite(long nanos) {
+    writeNanos.add(nanos);
+  }
+
+  /**
+   * Registers these metrics with the platform MBean server under
+   * "de.mpii.ternarytree:type=TrieMetrics,name=&lt;name&gt;".
+   */
+  public void register(String name) throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    server.registerMBean(this, new ObjectName("de.mpii.ternarytree:type=TrieMetrics,name=" + name));
+  }
+
+  public Snapshot snapshot() {
+    return new Snapshot(this);
+  }
+
+  public long getLookups() {
+    return lookups.sum();
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return getLookups() - getHits();
+  }
+
+  public double getHitRatio() {
+    long lookups = getLookups();
+    return lookups == 0 ? 0.0 : (double) getHits() / lookups;
+  }
+
+  public long getLongestMatchCalls() {
+    return longestMatchNanos.getCount();
+  }
+
+  public double getAverageNodeHops() {
+    long calls = getLongestMatchCalls();
+    return calls == 0 ? 0.0 : (double) nodeHops.sum() / calls;
+  }
+
+  public long getDocuments() {
+    return documents.sum();
+  }
+
+  public double getMatchesPerDocument() {
+    long documents = getDocuments();
+    return documents == 0 ? 0.0 : (double) matches.sum() / documents;
+  }
+
+  public long getLongestMatchNanosP50() {
+    return longestMatchNanos.getPercentile(50.0);
+  }
+
+  public long getLongestMatchNanosP99() {
+    return longestMatchNanos.getPercentile(99.0);
+  }
+
+  public long getAllMatchesNanosP50() {
+    return allMatchesNanos.getPercentile(50.0);
+  }
+
+  public long getAllMatchesNanosP99() {
+    return allMatchesNanos.getPercentile(99.0);
+  }
+
+  public long getLoadNanos() {
+    return loadNanos.sum();
+  }
+
+  public long getWriteNanos() {
+    return writeNanos.sum();
+  }
+
+  public void reset() {
+    lookups.reset();
+    hits.reset();
+    nodeHops.reset();
+    documents.reset();
+    matches.reset();
+    loadNanos.reset();
+    writeNanos.reset();
+    longestMatchNanos.reset();
+    allMatchesNanos.reset();
+  }
+
+  /**
+   * The values of a TrieMetrics at one point in time.
+   */
+  public static class Snapshot {
+    private long lookups;
+    private long hits;
+    private long longestMatchCalls;
+    private double averageNodeHops;
+    private long documents;
+    private double matchesPerDocument;
+    private long longestMatchNanosP50;
+    private long longestMatchNanosP99;
+    private long longestMatchTotalNanos;
+    private long allMatchesNanosP50;
+    private long allMatchesNanosP99;
+    private long allMatchesTotalNanos;
+    private long loadNanos;
+    private long writeNanos;
+
+    private Snapshot(TrieMetrics metrics) {
+      lookups = metrics.getLookups();
+      hits = metrics.getHits();
+      longestMatchCalls = metrics.getLongestMatchCalls();
+      averageNodeHops = metrics.getAverageNodeHops();
+      documents = metrics.getDocuments();
+      matchesPerDocument = metrics.getMatchesPerDocument();
+      longestMatchNanosP50 = metrics.getLongestMatchNanosP50();
+      longestMatchNanosP99 = metrics.getLongestMatchNanosP99();
+      longestMatchTotalNanos = metrics.longestMatchNanos.getTotalNanos();
+      allMatchesNanosP50 = metrics.getAllMatchesNanosP50();
+      allMatchesNanosP99 = metrics.getAllMatchesNanosP99();
+      allMatchesTotalNanos = metrics.allMatchesNanos.getTotalNanos();
+      loadNanos = metrics.getLoadNanos();
+      writeNanos = metrics.getWriteNanos();
+    }
+
+    public long getLookups() {
+      return lookups;
+    }
+
+    public long getHits() {
+      return hits;
+    }
+
+    public long getMisses() {
+      return lookups - hits;
+    }
+
+    public long getLongestMatchCalls() {
+      return longestMatchCalls;
+    }
+
+    public double getAverageNodeHops() {
+      return averageNodeHops;
+    }
+
+    public long getDocuments() {
+      return documents;
+    }
+
+    public double getMatchesPerDocument() {
+      return matchesPerDocument;
+    }
+
+    public long getLongestMatchNanosP50() {
+      return longestMatchNanosP50;
+    }
+
+    public long getLongestMatchNanosP99() {
+      return longestMatchNanosP99;
+    }
+
+    public long getLongestMatchTotalNanos() {
+      return longestMatchTotalNanos;
+    }
+
+    public long getAllMatchesNanosP50() {
+      return allMatchesNanosP50;
+    }
+
+    public long getAllMatchesNanosP99() {
+      return allMatchesNanosP99;
+    }
+
+    public long getAllMatchesTotalNanos() {
+      return allMatchesTotalNanos;
+    }
+
+    public long getLoadNanos() {
+      return loadNanos;
+    }
+
+    public long getWriteNanos() {
+      return writeNanos;
+    }
+
+    @Override
+    public String toString() {
+      return "lookups=" + lookups + " hits=" + hits + " longestMatchCalls=" + longestMatchCalls
+          + " averageNodeHops=" + averageNodeHops + " documents=" + documents
+          + " matchesPerDocument=" + matchesPerDocument
+          + " longestMatchNanos(p50/p99/total)=" + longestMatchNanosP50 + "/" + longestMatchNanosP99
+          + "/" + longestMatchTotalNanos
+          + " allMatchesNanos(p50/p99/total)=" + allMatchesNanosP50 + "/" + allMatchesNanosP99
+          + "/" + allMatchesTotalNanos
+          + " loadNanos=" + loadNanos + " writeNanos=" + writeNanos;
+    }
+  }
+}
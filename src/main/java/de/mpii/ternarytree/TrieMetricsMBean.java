@@ -0,0 +1,37 @@
+package de.mpii.ternarytree;
+
+/**
+ * JMX view of {@link TrieMetrics}. Latencies are in nanoseconds.
+ */
+public interface TrieMetricsMBean {
+
+  public long getLookups();
+
+  public long getHits();
+
+  public long getMisses();
+
+  public double getHitRatio();
+
+  public long getLongestMatchCalls();
+
+  public double getAverageNodeHops();
+
+  public long getDocuments();
+
+  public double getMatchesPerDocument();
+
+  public long getLongestMatchNanosP50();
+
+  public long getLongestMatchNanosP99();
+
+  public long getAllMatchesNanosP50();
+
+  public long getAllMatchesNanosP99();
+
+  public long getLoadNanos();
+
+  public long getWriteNanos();
+
+  public void reset();
+}
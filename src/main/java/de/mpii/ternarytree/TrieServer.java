@@ -0,0 +1,329 @@
+package de.mpii.ternarytree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves lookups in a trie over HTTP, so that services can share one
+ * loaded copy. Run as "App serve -i &lt;trie file&gt;". Endpoints, each
+ * answering in UTF-8 plain text:
+ *
+ * GET /get?key=... returns the value of the key, or -1.
+ * GET /longest?text=...&amp;start=N returns the longest match at token
+ * N as "offset&lt;TAB&gt;count&lt;TAB&gt;value".
+ * GET or POST /matches returns all matches of the text, given as
+ * parameter or request body, one per line as above.
+ *
+ * Invalid requests are answered with status 400 and failed ones with
+ * status 500, each with the error as response.
+ *
+ * Requests are handled on a bounded pool. Concurrent get and matches
+ * requests are queued, and each worker takes all queued requests of a
+ * kind, up to a maximum, and answers them with one batch lookup.
+ */
+public class TrieServer {
+
+    private static final int DEFAULT_MAX_BATCH = 64;
+
+    private String delimiter;
+    private HttpServer server;
+    private ThreadPoolExecutor handlers;
+    private ExecutorService batchers;
+    private Batcher<String[], Integer> gets;
+    private Batcher<String[], List<Match>> matches;
+
+    /**
+     * @param threads  Number of threads handling requests. A quarter as
+     *                 many threads run the batches of each kind, so that
+     *                 concurrent requests queue up behind them.
+     * @param maxBatch Maximum number of requests answered by one batch.
+     */
+    public TrieServer(final TernaryTriePrimitive trie, InetSocketAddress address, int threads, int maxBatch)
+            throws IOException {
+        this.delimiter = String.valueOf(trie.getDelimiter());
+        this.handlers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(64 * threads), new ThreadPoolExecutor.CallerRunsPolicy());
+        int batchThreads = Math.max(1, threads / 4);
+        this.batchers = Executors.newFixedThreadPool(2 * batchThreads);
+        this.gets = new Batcher<String[], Integer>(maxBatch) {
+            @Override
+            List<Integer> process(List<String[]> keys) {
+                int[] values = new int[keys.size()];
+                trie.getBatch(keys.toArray(new String[keys.size()][]), values);
+                List<Integer> result = new ArrayList<Integer>(values.length);
+                for (int value : values) {
+                    result.add(value);
+                }
+                return result;
+            }
+        };
+        this.matches = new Batcher<String[], List<Match>>(maxBatch) {
+            @Override
+            List<List<Match>> process(List<String[]> documents) {
+                return trie.getAllMatchesBatch(documents);
+            }
+        };
+        for (int i = 0; i < batchThreads; i++) {
+            batchers.execute(gets);
+            batchers.execute(matches);
+        }
+        server = HttpServer.create(address, 0);
+        server.setExecutor(handlers);
+        server.createContext("/get", new Handler() {
+            @Override
+            String handle(Map<String, String> params) throws IOException {
+                return String.valueOf(gets.submit(tokenize(require(params, "key"))));
+            }
+        });
+        server.createContext("/longest", new Handler() {
+            @Override
+            String handle(Map<String, String> params) throws IOException {
+                String[] tokens = tokenize(require(params, "text"));
+                return format(trie.getLongestMatch(tokens, parseStart(params.get("start"), tokens.length)));
+            }
+        });
+        server.createContext("/matches", new Handler() {
+            @Override
+            String handle(Map<String, String> params) throws IOException {
+                StringBuilder response = new StringBuilder();
+                for (Match m : matches.submit(tokenize(require(params, "text")))) {
+                    response.append(format(m));
+                }
+                return response.toString();
+            }
+        });
+    }
+
+    public static void main(String[] args) throws ParseException, IOException {
+        Options options = new Options();
+        options.addOption("i", "input", true, "Serialized trie to serve");
+        options.addOption("p", "port", true, "Port to listen on, 8080 by default");
+        options.addOption("t", "threads", true, "Number of request handling threads");
+        options.addOption("b", "batch", true, "Maximum number of requests per batch lookup");
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = parser.parse(options, args);
+        TernaryTriePrimitive trie = new TrieBuilder().loadTernaryTriePrimitive(new File(cmd.getOptionValue("i")));
+        int threads = Integer.parseInt(cmd.getOptionValue("t",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        TrieServer server = new TrieServer(trie,
+                new InetSocketAddress(Integer.parseInt(cmd.getOptionValue("p", "8080"))), threads,
+                Integer.parseInt(cmd.getOptionValue("b", String.valueOf(DEFAULT_MAX_BATCH))));
+        server.start();
+        System.err.println("Serving on port " + server.getPort());
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests and waits up to the given number of seconds
+     * for running requests to complete.
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        handlers.shutdownNow();
+        batchers.shutdownNow();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private String[] tokenize(String text) {
+        return text.split(delimiter);
+    }
+
+    private static String require(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter " + name);
+        }
+        return value;
+    }
+
+    /**
+     * Parses the token offset to match at, 0 if not given, which must be
+     * the offset of one of the tokens.
+     */
+    private static int parseStart(String start, int tokenCount) {
+        if (start == null) {
+            return 0;
+        }
+        int offset;
+        try {
+            offset = Integer.parseInt(start);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid parameter start " + start);
+        }
+        if (offset < 0 || offset >= tokenCount) {
+            throw new IllegalArgumentException("Parameter start " + offset + " is not in [0, " + tokenCount + ")");
+        }
+        return offset;
+    }
+
+    private static String format(Match m) {
+        return m.getTokenOffset() + "\t" + m.getTokenCount() + "\t" + m.getValue() + "\n";
+    }
+
+    /**
+     * Answers a request from its query parameters and, for POST requests,
+     * the body as parameter "text".
+     */
+    private abstract static class Handler implements HttpHandler {
+
+        abstract String handle(Map<String, String> params) throws IOException;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            int status = 200;
+            String response;
+            try {
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                if (exchange.getRequestMethod().equals("POST")) {
+                    params.put("text", new String(readBody(exchange.getRequestBody()), "UTF-8"));
+                }
+                response = handle(params);
+            } catch (IllegalArgumentException e) {
+                status = 400;
+                response = e.getMessage() + "\n";
+            } catch (IOException e) {
+                // Answer failed lookups too, or the client waits for the
+                // response until it times out.
+                status = 500;
+                response = "Internal error: " + e.getMessage() + "\n";
+            } catch (RuntimeException e) {
+                status = 500;
+                response = "Internal error: " + e + "\n";
+            }
+            byte[] bytes = response.getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+
+        private static Map<String, String> parseQuery(String query) throws IOException {
+            Map<String, String> params = new HashMap<String, String>();
+            if (query == null) {
+                return params;
+            }
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                            URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                }
+            }
+            return params;
+        }
+
+        private static byte[] readBody(InputStream in) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                body.write(buffer, 0, n);
+            }
+            return body.toByteArray();
+        }
+    }
+
+    /**
+     * Queues requests of one kind. Each worker running it takes the next
+     * request and all requests queued behind it, up to maxBatch, and
+     * answers them together, so that batches grow with the load without
+     * delaying requests when it is low.
+     */
+    private abstract static class Batcher<T, R> implements Runnable {
+
+        private BlockingQueue<Pending<T, R>> queue = new LinkedBlockingQueue<Pending<T, R>>();
+        private int maxBatch;
+
+        Batcher(int maxBatch) {
+            this.maxBatch = maxBatch;
+        }
+
+        abstract List<R> process(List<T> requests);
+
+        R submit(T request) throws IOException {
+            Pending<T, R> pending = new Pending<T, R>(request);
+            queue.add(pending);
+            try {
+                return pending.result.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for a batch");
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+
+        @Override
+        public void run() {
+            List<Pending<T, R>> batch = new ArrayList<Pending<T, R>>(maxBatch);
+            List<T> requests = new ArrayList<T>(maxBatch);
+            try {
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, maxBatch - 1);
+                    for (Pending<T, R> pending : batch) {
+                        requests.add(pending.request);
+                    }
+                    try {
+                        List<R> results = process(requests);
+                        for (int i = 0; i < batch.size(); i++) {
+                            batch.get(i).result.complete(results.get(i));
+                        }
+                    } catch (RuntimeException e) {
+                        for (Pending<T, R> pending : batch) {
+                            pending.result.completeExceptionally(e);
+                        }
+                    }
+                    batch.clear();
+                    requests.clear();
+                }
+            } catch (InterruptedException e) {
+                // The server stops.
+            }
+        }
+    }
+
+    private static class Pending<T, R> {
+        private final T request;
+        private final CompletableFuture<R> result = new CompletableFuture<R>();
+
+        public Pending(T request) {
+            this.request = request;
+        }
+    }
+}
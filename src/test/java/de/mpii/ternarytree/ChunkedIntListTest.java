@@ -0,0 +1,53 @@
+package de.mpii.ternarytree;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ChunkedIntListTest {
+
+  @Test
+  public void testFork() {
+    ChunkedIntList list = new ChunkedIntList();
+    int size = 4 * ChunkedIntList.CHUNK_SIZE;
+    for (int i = 0; i < size; i++) {
+      list.add(i);
+    }
+    ChunkedIntList fork = list.fork();
+    assertEquals(4, fork.getSharedChunkCount());
+
+    // Only the chunk written to is copied.
+    fork.set(ChunkedIntList.CHUNK_SIZE + 1, -1);
+    assertEquals(3, fork.getSharedChunkCount());
+    assertEquals(4, list.getSharedChunkCount());
+    assertEquals(ChunkedIntList.CHUNK_SIZE + 1, list.get(ChunkedIntList.CHUNK_SIZE + 1));
+    assertEquals(-1, fork.get(ChunkedIntList.CHUNK_SIZE + 1));
+
+    fork.add(-2);
+    list.add(-3);
+    assertEquals(-2, fork.get(size));
+    assertEquals(-3, list.get(size));
+
+    // A removed element's chunk is shared, so adding after it copies.
+    assertEquals(-3, list.removeLast());
+    ChunkedIntList second = list.fork();
+    second.add(-4);
+    list.add(-5);
+    assertEquals(-4, second.get(size));
+    assertEquals(-5, list.get(size));
+    assertEquals(size - 1, second.get(size - 1));
+  }
+
+  @Test
+  public void testSized() {
+    ChunkedIntList list = new ChunkedIntList(ChunkedIntList.CHUNK_SIZE + 3);
+    assertEquals(ChunkedIntList.CHUNK_SIZE + 3, list.size());
+    assertEquals(0, list.get(ChunkedIntList.CHUNK_SIZE + 2));
+    list.add(5);
+    assertEquals(5, list.get(ChunkedIntList.CHUNK_SIZE + 3));
+    list.clear();
+    assertEquals(0, list.size());
+    list.add(6);
+    assertEquals(6, list.get(0));
+  }
+}
@@ -0,0 +1,74 @@
+package de.mpii.ternarytree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DictionaryReaderTest {
+
+  private File write(String content) throws IOException {
+    File file = File.createTempFile("dictionary", "tsv");
+    file.deleteOnExit();
+    Writer writer = new OutputStreamWriter(Files.newOutputStream(file.toPath()), "UTF-8");
+    writer.write(content);
+    writer.close();
+    return file;
+  }
+
+  @Test
+  public void testRead() throws IOException {
+    StringBuilder content = new StringBuilder("Zürich\t7\tcity\r\n\nBarack Obama\t42\n");
+    for (int i = 0; i < 500000; i++) {
+      content.append("name ").append(i).append('\t').append(i).append('\n');
+    }
+    content.append("last\t2147483647");
+    final List<String> names = new ArrayList<String>();
+    final List<Integer> ids = new ArrayList<Integer>();
+    DictionaryReader reader = new DictionaryReader(3);
+    reader.read(write(content.toString()).toPath(), new DictionaryReader.Sink() {
+      @Override
+      public void put(String name, int id) {
+        names.add(name);
+        ids.add(id);
+      }
+    });
+
+    assertEquals(500003, reader.getLines());
+    assertEquals(names.size(), reader.getLines());
+    assertEquals("Zürich", names.get(0));
+    assertEquals(7, (int) ids.get(0));
+    assertEquals("Barack Obama", names.get(1));
+    assertEquals(42, (int) ids.get(1));
+    for (int i = 0; i < 500000; i++) {
+      assertEquals("name " + i, names.get(i + 2));
+      assertEquals(i, (int) ids.get(i + 2));
+    }
+    assertEquals("last", names.get(500002));
+    assertEquals(Integer.MAX_VALUE, (int) ids.get(500002));
+  }
+
+  @Test
+  public void testInvalidId() throws IOException {
+    for (String content : new String[] { "a\t1\nb\n", "a\tx1\n", "a\t\n", "a\t2147483648\n" }) {
+      try {
+        new DictionaryReader(2).read(write(content).toPath(), new DictionaryReader.Sink() {
+          @Override
+          public void put(String name, int id) {
+          }
+        });
+        fail(content);
+      } catch (IOException e) {
+        // Expected.
+      }
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package de.mpii.ternarytree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ExternalTrieBuilderTest {
+
+  private String entries(TernaryTriePrimitive trie) {
+    final StringBuilder entries = new StringBuilder();
+    trie.visitEntries(new EntryVisitor() {
+      @Override
+      public void visit(String key, int value) {
+        entries.append(key).append('\t').append(value).append('\n');
+      }
+    });
+    return entries.toString();
+  }
+
+  private TernaryTriePrimitive build(ExternalTrieBuilder builder) throws IOException {
+    File file = File.createTempFile("trie", "tmp");
+    file.deleteOnExit();
+    builder.build(file, TrieCodec.SNAPPY);
+    return new TrieBuilder().loadTernaryTriePrimitive(file);
+  }
+
+  @Test
+  public void testSmall() throws IOException {
+    ExternalTrieBuilder builder = new ExternalTrieBuilder(1.0, ' ', 1 << 20, null);
+    TernaryTriePrimitive expected = new TernaryTriePrimitive();
+    String[] keys = { "A", "A C", "B", "A C", "AB", "A B C", "" };
+    for (int i = 0; i < keys.length; i++) {
+      builder.put(keys[i], i);
+      expected.put(keys[i], i);
+    }
+    TernaryTriePrimitive trie = build(builder);
+    assertEquals(entries(expected), entries(trie));
+    assertEquals(3, trie.get("A C"));
+    assertEquals(5, trie.get("A B C"));
+    assertEquals(-1, trie.get("A B"));
+    assertEquals(1, builder.getSpilledRuns());
+
+    ExternalTrieBuilder empty = new ExternalTrieBuilder(1.0, ' ', 1 << 20, null);
+    assertEquals(-1, build(empty).get("A"));
+  }
+
+  @Test
+  public void testSpilledRuns() throws IOException {
+    ExternalTrieBuilder builder = new ExternalTrieBuilder(0.8, ' ', 4096, null);
+    TernaryTriePrimitive expected = new TernaryTriePrimitive(0.8);
+    List<String> keys = RandomKeys.randomKeys(new Random(7), 5000, 3, 6, "abcd");
+    for (int i = 0; i < keys.size(); i++) {
+      builder.put(keys.get(i), i);
+      expected.put(keys.get(i), i);
+    }
+    TernaryTriePrimitive trie = build(builder);
+    // Small runs, merged in several passes.
+    assertTrue(builder.getSpilledRuns() > 100);
+    assertEquals(entries(expected), entries(trie));
+    assertEquals(expected.getTotalNodes(), trie.getTotalNodes());
+
+    String[] text = "ab cd abc dabc a b c d aa bb cc dd".split(" ");
+    assertEquals(expected.getAllMatches(text).size(), trie.getAllMatches(text).size());
+    for (int i = 0; i < text.length; i++) {
+      Match e = expected.getLongestMatch(text, i);
+      Match m = trie.getLongestMatch(text, i);
+      assertEquals(e.getTokenCount(), m.getTokenCount());
+      assertEquals(e.getValue(), m.getValue());
+    }
+  }
+}
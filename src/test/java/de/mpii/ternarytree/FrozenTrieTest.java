@@ -0,0 +1,121 @@
+package de.mpii.ternarytree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FrozenTrieTest {
+
+  private String entries(TernaryTriePrimitive trie) {
+    final StringBuilder entries = new StringBuilder();
+    trie.visitEntries(new EntryVisitor() {
+      @Override
+      public void visit(String key, int value) {
+        entries.append(key).append('\t').append(value).append('\n');
+      }
+    });
+    return entries.toString();
+  }
+
+  @Test
+  public void testSmall() {
+    TernaryTriePrimitive t = new TernaryTriePrimitive(0.8);
+    t.put("barack obama", 0);
+    t.put("obama", 1);
+    t.put("angela merkel", 2);
+    FrozenTrie frozen = FrozenTrie.freeze(t);
+    assertEquals(0, frozen.get("barack obama"));
+    assertEquals(1, frozen.get("obamx"));
+    assertEquals(-1, frozen.get("angela"));
+    String[] text = "yesterday barack obama met angela merkel".split(" ");
+    assertEquals(t.getAllMatches(text), frozen.getAllMatches(text));
+    assertEquals(entries(t), frozen.getContent());
+    assertEquals(-1, FrozenTrie.freeze(new TernaryTriePrimitive()).get("a"));
+  }
+
+  @Test
+  public void testGroupKinds() {
+    TernaryTriePrimitive t = new TernaryTriePrimitive();
+    for (char c = 'a'; c <= 'z'; c++) {
+      // Dense ASCII below the root, sparse chars below "x", few below "y".
+      t.put(String.valueOf(c), c);
+      t.put("x" + (char) (0x400 + 97 * c), c);
+      t.put("y" + (char) ('a' + c % 3), c);
+    }
+    FrozenTrie frozen = FrozenTrie.freeze(t);
+    assertTrue(frozen.getGroupCount(FrozenTrie.DIRECT) >= 1);
+    assertTrue(frozen.getGroupCount(FrozenTrie.SORTED) >= 1);
+    assertTrue(frozen.getGroupCount(FrozenTrie.TST) >= 1);
+    assertEquals(entries(t), frozen.getContent());
+    for (char c = 'a'; c <= 'z'; c++) {
+      assertEquals(c, frozen.get(String.valueOf(c)));
+      assertEquals(c, frozen.get("x" + (char) (0x400 + 97 * c)));
+      assertEquals(-1, frozen.get("x" + (char) (0x401 + 97 * c)));
+    }
+  }
+
+  @Test
+  public void testRandom() {
+    // Latin letters and CJK punctuation, whose labels are far apart.
+    StringBuilder chars = new StringBuilder(RandomKeys.LOWERCASE);
+    for (char c = 0x3000; c < 0x3000 + 40; c++) {
+      chars.append(c);
+    }
+    String alphabet = chars.toString();
+    for (double threshold : new double[] { 0.5, 1.0 }) {
+      TernaryTriePrimitive t = new TernaryTriePrimitive(threshold);
+      Random random = new Random(11);
+      List<String> keys = RandomKeys.randomKeys(random, 3000, 3, 6, alphabet);
+      for (int k = 0; k < keys.size(); k++) {
+        t.put(keys.get(k), k % 50);
+      }
+      FrozenTrie frozen = FrozenTrie.freeze(t);
+      TernaryTriePrimitive minimized = t.fork();
+      minimized.minimize();
+      FrozenTrie frozenMinimized = FrozenTrie.freeze(minimized);
+      assertTrue(frozenMinimized.getEntryCount() < frozen.getEntryCount());
+      assertEquals(entries(t), frozen.getContent());
+      assertEquals(entries(t), frozenMinimized.getContent());
+      for (int q = 0; q < 1000; q++) {
+        String[] text = (keys.get(random.nextInt(keys.size())) + " " + keys.get(random.nextInt(keys.size())))
+            .split(" ");
+        assertEquals(t.getAllMatches(text), frozen.getAllMatches(text));
+        assertEquals(t.getAllMatches(text), frozenMinimized.getAllMatches(text));
+      }
+    }
+  }
+
+  @Test
+  public void testBuilder() {
+    TernaryTriePrimitive expected = new TernaryTriePrimitive(0.8);
+    FrozenTrieBuilder builder = new FrozenTrieBuilder(0.8, ' ');
+    assertEquals(-1, builder.freeze().get("a"));
+    String[] keys = { "A", "A C", "B", "A C", "AB", "A  B", "A ", "", "barack obama", "obama" };
+    for (int i = 0; i < keys.length; i++) {
+      expected.put(keys[i], i);
+      builder.put(keys[i], i);
+    }
+    Random random = new Random(13);
+    // Mostly a to c, for long shared prefixes.
+    List<String> randomKeys = RandomKeys.randomKeys(random, 3000, 3, 6, "abcabcabcabcabcabc" + RandomKeys.LOWERCASE);
+    for (int k = 0; k < randomKeys.size(); k++) {
+      expected.put(randomKeys.get(k), k);
+      builder.put(randomKeys.get(k), k);
+    }
+    FrozenTrie frozen = builder.freeze();
+    assertEquals(entries(expected), frozen.getContent());
+    assertEquals(entries(expected).split("\n").length, builder.size());
+    assertEquals(FrozenTrie.freeze(expected).getBytes(), frozen.getBytes());
+    assertEquals(3, frozen.get("A C"));
+    assertEquals(5, frozen.get("A  B"));
+    for (int q = 0; q < 1000; q++) {
+      String[] text = (randomKeys.get(random.nextInt(randomKeys.size())) + " x "
+          + randomKeys.get(random.nextInt(randomKeys.size()))).split(" ");
+      assertEquals(expected.getAllMatches(text), frozen.getAllMatches(text));
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package de.mpii.ternarytree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import gnu.trove.map.TObjectLongMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class HitCounterTest {
+
+  private TernaryTriePrimitive newTrie() {
+    TernaryTriePrimitive trie = new TernaryTriePrimitive();
+    trie.put("barack", 0);
+    trie.put("barack obama", 1);
+    trie.put("obama", 2);
+    trie.put("angela merkel", 3);
+    trie.put("merkel", 4);
+    return trie;
+  }
+
+  @Test
+  public void testCounts() {
+    TernaryTriePrimitive trie = newTrie();
+    trie.setCache(new LookupCache(16));
+    HitCounter counter = new HitCounter(trie);
+    trie.setHitCounter(counter);
+    String[] text = "barack obama met angela merkel and barack obama".split(" ");
+    trie.getAllMatches(text);
+    trie.getAllMatches(text);
+    assertEquals(4, counter.getCount("barack obama"));
+    assertEquals(2, counter.getCount("angela merkel"));
+    // Only the longest match is counted.
+    assertEquals(0, counter.getCount("barack"));
+    assertEquals(0, counter.getCount("merkel"));
+    assertEquals(0, counter.getCount("unknown"));
+    trie.get("barack");
+    assertEquals(1, counter.getCount("barack"));
+
+    counter.reset();
+    assertEquals(0, counter.getCount("barack obama"));
+    trie.setHitCounter(null);
+    trie.getAllMatches(text);
+    assertEquals(0, counter.getCount("barack obama"));
+  }
+
+  @Test
+  public void testSampling() {
+    TernaryTriePrimitive trie = newTrie();
+    HitCounter counter = new HitCounter(trie, 4);
+    trie.setHitCounter(counter);
+    for (int i = 0; i < 4000; i++) {
+      trie.get("obama");
+    }
+    long count = counter.getCount("obama");
+    assertEquals(0, count % 4);
+    assertEquals(4000, count, 800);
+    try {
+      new HitCounter(trie, 3);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Not a power of two.
+    }
+  }
+
+  @Test
+  public void testWriteAndReorder() throws IOException {
+    TernaryTriePrimitive trie = newTrie();
+    HitCounter counter = new HitCounter(trie);
+    trie.setHitCounter(counter);
+    for (int i = 0; i < 3; i++) {
+      trie.get("obama");
+    }
+    trie.get("merkel");
+    File file = writeCounts(counter);
+    assertEquals(Arrays.asList("angela merkel\t0", "barack\t0", "barack obama\t0", "merkel\t1", "obama\t3"),
+        Files.readAllLines(file.toPath(), Charset.forName("UTF-8")));
+
+    TObjectLongMap<String> counts = HitCounter.readCounts(file);
+    assertEquals(3, counts.get("obama"));
+    TernaryTriePrimitive reordered = HitCounter.reorder(trie, counts, 0);
+    assertEquals(trie.getContent(), reordered.getContent());
+    // The hottest key starts at the root.
+    assertEquals('o', reordered.getNodeKey(reordered.getRoot()));
+
+    TernaryTriePrimitive pruned = HitCounter.reorder(trie, counts, 1);
+    assertEquals("merkel\t4\nobama\t2\n", pruned.getContent());
+  }
+
+  @Test
+  public void testThreshold() throws IOException {
+    TernaryTriePrimitive trie = new TernaryTriePrimitive(0.5);
+    trie.put("barack obama", 1);
+    HitCounter counter = new HitCounter(trie);
+    trie.setHitCounter(counter);
+    assertEquals(1, trie.get("barley obaxx"));
+    assertEquals(1, counter.getCount("barack obama"));
+    TernaryTriePrimitive reordered = HitCounter.reorder(trie, HitCounter.readCounts(writeCounts(counter)), 1);
+    assertEquals(0.5, reordered.getThreshold(), 0.0);
+    assertEquals(1, reordered.get("barack obama"));
+  }
+
+  @Test
+  public void testMinimized() throws IOException {
+    TernaryTriePrimitive trie = new TernaryTriePrimitive();
+    trie.put("obama (film)", 1);
+    trie.put("smith (film)", 2);
+    trie.put("smith", 3);
+    trie.minimize();
+    HitCounter counter = new HitCounter(trie);
+    trie.setHitCounter(counter);
+    for (int i = 0; i < 5; i++) {
+      assertEquals(1, trie.get("obama (film)"));
+    }
+    assertEquals(3, trie.get("smith"));
+    // The keys share the nodes of " (film)" but are counted apart.
+    assertEquals(5, counter.getCount("obama (film)"));
+    assertEquals(0, counter.getCount("smith (film)"));
+    assertEquals(1, counter.getCount("smith"));
+    assertEquals(Arrays.asList("obama (film)\t5", "smith\t1", "smith (film)\t0"),
+        Files.readAllLines(writeCounts(counter).toPath(), Charset.forName("UTF-8")));
+  }
+
+  @Test
+  public void testBatches() {
+    TernaryTriePrimitive trie = newTrie();
+    HitCounter counter = new HitCounter(trie);
+    trie.setHitCounter(counter);
+    trie.getAllMatchesBatch(Arrays.asList("barack obama met angela merkel".split(" "), "obama".split(" ")));
+    int[] values = new int[2];
+    trie.getBatch(new String[][] { "merkel".split(" "), "nobody".split(" ") }, values);
+    assertEquals(1, counter.getCount("barack obama"));
+    assertEquals(1, counter.getCount("angela merkel"));
+    assertEquals(1, counter.getCount("obama"));
+    assertEquals(1, counter.getCount("merkel"));
+  }
+
+  private File writeCounts(HitCounter counter) throws IOException {
+    File file = File.createTempFile("hits", "tsv");
+    file.deleteOnExit();
+    counter.write(file);
+    return file;
+  }
+}
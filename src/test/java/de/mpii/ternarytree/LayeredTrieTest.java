@@ -0,0 +1,90 @@
+package de.mpii.ternarytree;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+public class LayeredTrieTest {
+
+  private TernaryTriePrimitive newBase(double threshold) {
+    TernaryTriePrimitive base = new TernaryTriePrimitive(threshold);
+    base.put("barack obama", 0);
+    base.put("barack", 1);
+    base.put("new york", 2);
+    base.put("new york city", 3);
+    return base;
+  }
+
+  @Test
+  public void testDeltaPrecedenceAndTombstones() {
+    LayeredTrie t = new LayeredTrie(newBase(1.0));
+    t.put("barack", 10);
+    t.put("germany", 4);
+    t.remove("new york city");
+
+    assertEquals(10, t.get("barack"));
+    assertEquals(0, t.get("barack obama"));
+    assertEquals(4, t.get("germany"));
+    assertEquals(2, t.get("new york"));
+    assertEquals(-1, t.get("new york city"));
+    t.close();
+  }
+
+  @Test
+  public void testLongestMatchSkipsTombstones() {
+    LayeredTrie t = new LayeredTrie(newBase(1.0));
+    t.remove("new york city");
+
+    String[] tokens = "in new york city today".split(" ");
+    Match m = t.getLongestMatch(tokens, 1);
+    assertEquals(new Match(1, 2, 2), m);
+
+    t.remove("new york");
+    m = t.getLongestMatch(tokens, 1);
+    assertEquals(0, m.getTokenCount());
+
+    List<Match> matches = t.getAllMatches("barack obama in germany".split(" "));
+    assertEquals(1, matches.size());
+    assertEquals(new Match(0, 2, 0), matches.get(0));
+    t.close();
+  }
+
+  @Test
+  public void testMerge() throws InterruptedException, ExecutionException {
+    LayeredTrie t = new LayeredTrie(newBase(0.8));
+    t.put("barack", 10);
+    t.put("germany", 4);
+    t.remove("new york city");
+    t.merge().get();
+
+    TernaryTriePrimitive base = t.getBase();
+    assertEquals(10, base.get("barack"));
+    assertEquals(0, base.get("barack obama"));
+    assertEquals(4, base.get("germany"));
+    assertEquals(2, base.get("new york"));
+    assertEquals(-1, base.get("new york city"));
+    assertEquals(base.getContent(), t.getContent());
+
+    t.put("france", 5);
+    assertEquals(5, t.get("france"));
+    assertEquals(4, t.get("germany"));
+    t.close();
+  }
+
+  @Test
+  public void testAutomaticMerge() throws InterruptedException, ExecutionException {
+    LayeredTrie t = new LayeredTrie(newBase(1.0), 16);
+    for (int i = 0; i < 100; i++) {
+      t.put("key " + i, i);
+    }
+    t.merge().get();
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, t.get("key " + i));
+      assertEquals(i, t.getBase().get("key " + i));
+    }
+    t.close();
+  }
+}
@@ -0,0 +1,65 @@
+package de.mpii.ternarytree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LookupCacheTest {
+
+  private TernaryTriePrimitive newTrie(double threshold) {
+    TernaryTriePrimitive ttp = new TernaryTriePrimitive(threshold);
+    ttp.put("Barack Obama", 1);
+    ttp.put("Obama", 2);
+    ttp.put("Germany", 3);
+    ttp.put("New York", 4);
+    ttp.put("New York City", 5);
+    return ttp;
+  }
+
+  @Test
+  public void testCachedResultsEqualUncached() {
+    for (double threshold : new double[] { 1.0, 0.8 }) {
+      TernaryTriePrimitive plain = newTrie(threshold);
+      TernaryTriePrimitive cached = newTrie(threshold);
+      LookupCache cache = new LookupCache(64);
+      cached.setCache(cache);
+
+      String[] vocabulary = { "Barack", "Obama", "Germany", "New", "York", "City", "visited", "Obamas", "." };
+      Random r = new Random(1);
+      for (int doc = 0; doc < 500; doc++) {
+        String[] tokens = new String[r.nextInt(8)];
+        for (int i = 0; i < tokens.length; i++) {
+          tokens[i] = vocabulary[r.nextInt(vocabulary.length)];
+        }
+        assertEquals(plain.getAllMatches(tokens), cached.getAllMatches(tokens));
+        assertEquals(plain.get(tokens), cached.get(tokens));
+      }
+      assertTrue(cache.getHitRate() > 0.5);
+    }
+  }
+
+  @Test
+  public void testInvalidationOnPut() {
+    TernaryTriePrimitive ttp = newTrie(1.0);
+    LookupCache cache = new LookupCache(64);
+    ttp.setCache(cache);
+
+    assertEquals(4, ttp.get("New York"));
+    assertEquals(4, ttp.get("New York"));
+    assertEquals(1, cache.getHits());
+
+    ttp.put("New York", 6);
+    assertEquals(6, ttp.get("New York"));
+    ttp.remove("New York");
+    assertEquals(-1, ttp.get("New York"));
+    assertEquals(5, ttp.get("New York City"));
+
+    String[] tokens = "in New York today".split(" ");
+    assertEquals(0, ttp.getLongestMatch(tokens, 1).getTokenCount());
+    ttp.put("New York", 7);
+    assertEquals(new Match(1, 2, 7), ttp.getLongestMatch(tokens, 1));
+  }
+}
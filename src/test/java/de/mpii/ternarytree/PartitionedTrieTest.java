@@ -0,0 +1,82 @@
+package de.mpii.ternarytree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PartitionedTrieTest {
+
+  private File write(TernaryTriePrimitive trie, int partitions) throws IOException {
+    File file = File.createTempFile("trie", "tmp");
+    file.deleteOnExit();
+    PartitionedTrie.write(trie, file, partitions, TrieCodec.SNAPPY);
+    return file;
+  }
+
+  @Test
+  public void testLazyLoading() throws IOException {
+    TernaryTriePrimitive t = new TernaryTriePrimitive(0.8);
+    Random random = new Random(17);
+    List<String> keys = RandomKeys.randomKeys(random, 3000, 3, 6, RandomKeys.LOWERCASE);
+    for (int k = 0; k < keys.size(); k++) {
+      t.put(keys.get(k), k);
+    }
+    t.put(" a", 3000);
+    PartitionedTrie partitioned = new PartitionedTrie(write(t, 8));
+    try {
+      assertTrue(partitioned.getPartitionCount() > 4 && partitioned.getPartitionCount() <= 8);
+      assertEquals(t.withThreshold(1.0).getContent().split("\n").length, partitioned.getKeyCount());
+      assertEquals(0, partitioned.getLoadedPartitionCount());
+      assertEquals(t.get("a"), partitioned.get("a"));
+      assertEquals(1, partitioned.getLoadedPartitionCount());
+      assertEquals(t.get(" a"), partitioned.get(" a"));
+      assertEquals(-1, partitioned.get("一"));
+      for (int q = 0; q < 1000; q++) {
+        String[] text = (keys.get(random.nextInt(keys.size())) + " x "
+            + keys.get(random.nextInt(keys.size()))).split(" ");
+        assertEquals(t.getAllMatches(text), partitioned.getAllMatches(text));
+      }
+    } finally {
+      partitioned.close();
+    }
+
+    partitioned = new PartitionedTrie(write(t, 3));
+    try {
+      partitioned.loadInBackground();
+      assertEquals(t.get("barack obama"), partitioned.get("barack obama"));
+      for (String key : keys) {
+        assertEquals(t.get(key), partitioned.get(key));
+      }
+      assertEquals(partitioned.getPartitionCount(), partitioned.getLoadedPartitionCount());
+    } finally {
+      partitioned.close();
+    }
+  }
+
+  @Test
+  public void testEmptyAndInvalid() throws IOException {
+    PartitionedTrie empty = new PartitionedTrie(write(new TernaryTriePrimitive(), 4));
+    assertEquals(0, empty.getPartitionCount());
+    assertEquals(-1, empty.get("a"));
+    empty.close();
+
+    File file = File.createTempFile("trie", "tmp");
+    file.deleteOnExit();
+    TernaryTriePrimitive t = new TernaryTriePrimitive();
+    t.put("a", 1);
+    new TrieBuilder().write(t, file);
+    try {
+      new PartitionedTrie(file);
+      fail();
+    } catch (IOException e) {
+      // Not partitioned.
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package de.mpii.ternarytree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates random multi-token keys for tests.
+ */
+final class RandomKeys {
+
+  static final String LOWERCASE = "abcdefghijklmnopqrstuvwxyz";
+
+  private RandomKeys() {
+  }
+
+  /**
+   * Returns count keys of 1 to maxTokens tokens separated by spaces, each
+   * of 1 to maxLength chars drawn from the alphabet, in which chars may
+   * repeat to be drawn more often. Keys may repeat too.
+   */
+  static List<String> randomKeys(Random random, int count, int maxTokens, int maxLength, String alphabet) {
+    List<String> keys = new ArrayList<String>(count);
+    for (int k = 0; k < count; k++) {
+      StringBuilder key = new StringBuilder();
+      int tokens = 1 + random.nextInt(maxTokens);
+      for (int t = 0; t < tokens; t++) {
+        if (t > 0) {
+          key.append(' ');
+        }
+        int length = 1 + random.nextInt(maxLength);
+        for (int c = 0; c < length; c++) {
+          key.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+      }
+      keys.add(key.toString());
+    }
+    return keys;
+  }
+}
@@ -2,7 +2,12 @@ package de.mpii.ternarytree;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 
@@ -200,6 +205,503 @@ public class TernaryTriePrimitiveTest {
     assertEquals(new Match(36, 1, 7), matchedMatchs.get(6));
   }
 
+  @Test
+  public void testGetBatch() {
+    TernaryTriePrimitive ttp = new TernaryTriePrimitive();
+    ttp.put("the red dog", 0);
+    ttp.put("the red", 1);
+    ttp.put("red king", 2);
+    ttp.put("a", 3);
+
+    String[][] keys = new String[3000][];
+    Random r = new Random(42);
+    String[] candidates = { "the red dog", "the red", "red king", "a", "the", "red", "an", "the red dog house" };
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = candidates[r.nextInt(candidates.length)].split(" ");
+    }
+    int[] out = new int[keys.length];
+    ttp.getBatch(keys, out);
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(ttp.get(keys[i]), out[i]);
+    }
+
+    int[] parallelOut = new int[keys.length];
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      ttp.getBatch(keys, parallelOut, pool);
+    } finally {
+      pool.shutdown();
+    }
+    assertArrayEquals(out, parallelOut);
+  }
+
+  @Test
+  public void testGetAllMatchesBatch() {
+    TernaryTriePrimitive ttp = new TernaryTriePrimitive();
+    ttp.put("Napoleon", 1);
+    ttp.put("First French Empire", 2);
+    ttp.put("Waterloo", 3);
+    ttp.put("Saint Helena", 6);
+
+    List<String[]> documents = new ArrayList<>();
+    documents.add("Napoleon was the emperor of the First French Empire .".split(" "));
+    documents.add(new String[0]);
+    documents.add("He was defeated at Waterloo".split(" "));
+    documents.add("Saint Helena Saint First French".split(" "));
+    for (int i = 0; i < 2000; i++) {
+      documents.add(documents.get(i % 4));
+    }
+
+    List<List<Match>> matches = ttp.getAllMatchesBatch(documents);
+    List<List<Match>> parallelMatches;
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      parallelMatches = ttp.getAllMatchesBatch(documents, pool);
+    } finally {
+      pool.shutdown();
+    }
+    assertEquals(documents.size(), matches.size());
+    for (int i = 0; i < documents.size(); i++) {
+      assertEquals(ttp.getAllMatches(documents.get(i)), matches.get(i));
+      assertEquals(ttp.getAllMatches(documents.get(i)), parallelMatches.get(i));
+    }
+
+    // Batches start at the root table and skip starts the filter rules out.
+    ttp.put("Na", 4);
+    ttp.put("N", 5);
+    TernaryTriePrimitive minimized = ttp.fork();
+    minimized.minimize();
+    for (TernaryTriePrimitive trie : new TernaryTriePrimitive[] { ttp, minimized }) {
+      trie.buildRootTable();
+      trie.buildStartFilter();
+      matches = trie.getAllMatchesBatch(documents);
+      for (int i = 0; i < documents.size(); i++) {
+        assertEquals(trie.getAllMatches(documents.get(i)), matches.get(i));
+      }
+      String[][] keys = { "Na".split(" "), "N".split(" "), "Nap".split(" "), "Saint Helena".split(" "), {} };
+      int[] out = new int[keys.length];
+      trie.getBatch(keys, out);
+      assertArrayEquals(new int[] { 4, 5, -1, 6, -1 }, out);
+    }
+  }
+
+  @Test
+  public void testRemove() {
+    TernaryTriePrimitive t = new TernaryTriePrimitive();
+    t.put("the red dog", 0);
+    t.put("the red", 1);
+    t.put("the new kid", 2);
+    t.put("a", 3);
+    t.put("b", 4);
+    t.put("c", 5);
+    int nodes = t.getTotalNodes();
+
+    t.remove("the red dog");
+    t.remove("b");
+    t.remove("not there");
+    assertEquals(-1, t.get("the red dog"));
+    assertEquals(-1, t.get("b"));
+    assertEquals(1, t.get("the red"));
+    assertEquals(2, t.get("the new kid"));
+    assertEquals(3, t.get("a"));
+    assertEquals(5, t.get("c"));
+    assertEquals(nodes - 5, t.getTotalNodes());
+
+    t.remove("the red");
+    t.remove("the new kid");
+    assertEquals(2, t.getTotalNodes());
+    assertEquals("a\t3\nc\t5\n", t.getContent());
+  }
+
+  @Test
+  public void testRemoveReusesNodes() {
+    TernaryTriePrimitive t = new TernaryTriePrimitive();
+    t.put("barack obama", 0);
+    t.put("angela merkel", 1);
+    int slots = t.getNodeSlots();
+    for (int i = 0; i < 10; i++) {
+      t.remove("angela merkel");
+      t.put("angela merkel", 1);
+    }
+    assertEquals(slots, t.getNodeSlots());
+    assertEquals(0, t.get("barack obama"));
+    assertEquals(1, t.get("angela merkel"));
+  }
+
+  @Test
+  public void testCompact() {
+    TernaryTriePrimitive t = new TernaryTriePrimitive();
+    for (int i = 0; i < 100; i++) {
+      t.put("key " + i, i);
+    }
+    for (int i = 0; i < 100; i += 2) {
+      t.remove("key " + i);
+    }
+    String content = t.getContent();
+    int nodes = t.getTotalNodes();
+    t.compact();
+    assertEquals(nodes, t.getNodeSlots());
+    assertEquals(content, t.getContent());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i % 2 == 0 ? -1 : i, t.get("key " + i));
+    }
+    t.put("key 0", 0);
+    assertEquals(0, t.get("key 0"));
+  }
+
+  @Test
+  public void testMinimize() throws IOException {
+    TernaryTriePrimitive t = new TernaryTriePrimitive();
+    String[] names = { "abbey road", "help", "revolver", "let it be" };
+    for (int i = 0; i < names.length; i++) {
+      t.put(names[i], i);
+      t.put("the beatles " + names[i], i);
+    }
+    t.put("rubber soul (album)", 4);
+    String content = t.getContent();
+    int nodes = t.getTotalNodes();
+
+    int saved = t.minimize();
+    assertTrue(saved > 0);
+    assertEquals(nodes - saved, t.getTotalNodes());
+    assertEquals(content, t.getContent());
+    for (int i = 0; i < names.length; i++) {
+      assertEquals(i, t.get(names[i]));
+      assertEquals(i, t.get("the beatles " + names[i]));
+    }
+    assertEquals(4, t.get("rubber soul (album)"));
+    assertEquals(-1, t.get("rubber soul"));
+    List<Match> matches = t.getAllMatches("i like the beatles help and revolver".split(" "));
+    assertEquals(2, matches.size());
+    assertEquals(3, matches.get(0).getTokenCount());
+    assertEquals(1, matches.get(0).getValue());
+    assertEquals(2, matches.get(1).getValue());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    t.serialize(out);
+    TernaryTriePrimitive loaded = new TernaryTriePrimitive();
+    loaded.deserialize(new ByteArrayInputStream(out.toByteArray()));
+    assertTrue(loaded.isMinimized());
+    assertEquals(content, loaded.getContent());
+    try {
+      loaded.put("yesterday", 5);
+      fail();
+    } catch (IllegalStateException e) {
+      // Expected, a minimized trie is read-only.
+    }
+  }
+
+  @Test
+  public void testMinimizeDistinctValues() throws IOException {
+    TernaryTriePrimitive t = new TernaryTriePrimitive();
+    Random random = new Random(5);
+    String[] kinds = { " (album)", " (film)", " (band)", " (song)" };
+    for (int i = 0; i < 2000; i++) {
+      StringBuilder name = new StringBuilder();
+      for (int c = 3 + random.nextInt(6); c > 0; c--) {
+        name.append((char) ('a' + random.nextInt(26)));
+      }
+      t.put(name.toString(), i);
+      t.put(name + kinds[i % kinds.length], 2000 + i);
+      t.put("the " + name + kinds[i % kinds.length], 4000 + i);
+    }
+    TernaryTriePrimitive exact = t.fork();
+    String content = t.getContent();
+    int nodes = t.getTotalNodes();
+
+    // Every suffix has a different value, so only the value table lets
+    // them be shared.
+    int saved = t.minimize();
+    assertTrue(saved > nodes / 4);
+    assertEquals(0, t.minimize());
+    assertEquals(content, t.getContent());
+    List<TrieEntry> entries = exact.entries().collect(Collectors.toList());
+    assertEquals(entries, t.entries().parallel().collect(Collectors.toList()));
+    assertEquals(matches(exact, "the * (film)", 100), matches(t, "the * (film)", 100));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    t.serialize(out);
+    TernaryTriePrimitive loaded = new TernaryTriePrimitive();
+    loaded.deserialize(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(content, loaded.getContent());
+    loaded.buildRootTable();
+
+    List<String[]> documents = new ArrayList<String[]>();
+    for (int q = 0; q < 200; q++) {
+      String key = entries.get(random.nextInt(entries.size())).getKey();
+      String[] text = ("i heard " + key + " by the band").split(" ");
+      documents.add(text);
+      assertEquals(exact.getAllMatches(text), t.getAllMatches(text));
+      assertEquals(exact.getAllMatches(text), loaded.getAllMatches(text));
+      assertEquals(exact.getAllMatches(text, 0.8), t.getAllMatches(text, 0.8));
+    }
+    assertEquals(exact.getAllMatchesBatch(documents), loaded.getAllMatchesBatch(documents));
+    assertEquals(FrozenTrie.freeze(exact).getContent(), FrozenTrie.freeze(loaded).getContent());
+  }
+
+  @Test
+  public void testReverseIndex() throws IOException {
+    TernaryTriePrimitive t = new TernaryTriePrimitive(0.8);
+    t.put("barack obama", 0);
+    t.put("obama", 0);
+    t.put("president obama", 0);
+    t.put("angela merkel", 1);
+    t.put("merkel", 1);
+    t.put("obamacare", 2);
+    t.buildReverseIndex();
+
+    assertEquals(new HashSet<String>(Arrays.asList("barac obam", "obam", "presiden obam")),
+        new HashSet<String>(t.getKeys(0)));
+    assertEquals(new HashSet<String>(Arrays.asList("angel merke", "merke")), new HashSet<String>(t.getKeys(1)));
+    assertEquals(Arrays.asList("obamacar"), t.getKeys(2));
+    assertTrue(t.getKeys(3).isEmpty());
+    for (String key : t.getKeys(0)) {
+      assertEquals(0, t.withThreshold(1.0).get(key));
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    t.serialize(out);
+    TernaryTriePrimitive loaded = new TernaryTriePrimitive();
+    loaded.deserialize(new ByteArrayInputStream(out.toByteArray()));
+    assertTrue(loaded.hasReverseIndex());
+    assertEquals(t.getKeys(1), loaded.getKeys(1));
+
+    loaded.put("kanzlerin merkel", 1);
+    assertFalse(loaded.hasReverseIndex());
+    loaded.buildReverseIndex();
+    assertEquals(3, loaded.getKeys(1).size());
+  }
+
+  private List<String> matches(TernaryTriePrimitive t, String pattern, int limit) {
+    final List<String> keys = new ArrayList<String>();
+    int count = t.visitMatches(pattern, new EntryVisitor() {
+      @Override
+      public void visit(String key, int value) {
+        keys.add(key + "=" + value);
+      }
+    }, limit);
+    assertEquals(keys.size(), count);
+    return keys;
+  }
+
+  @Test
+  public void testVisitMatches() {
+    TernaryTriePrimitive t = new TernaryTriePrimitive();
+    String[] keys = { "barack obama", "barack hussein obama", "obama", "osama", "obamacare",
+        "new york", "new york city", "new york yankees stadium", "york", "new jersey" };
+    for (int i = 0; i < keys.length; i++) {
+      t.put(keys[i], i);
+    }
+    assertEquals(Arrays.asList("barack obama=0"), matches(t, "barack *", 10));
+    assertEquals(Arrays.asList("barack hussein obama=1", "barack obama=0"), matches(t, "barack **", 10));
+    assertEquals(Arrays.asList("obama=2", "osama=3"), matches(t, "o?ama", 10));
+    assertEquals(Arrays.asList("obama=2", "obamacare=4", "osama=3"), matches(t, "o*a*", 10));
+    assertEquals(Arrays.asList("new york=5", "new york city=6", "new york yankees stadium=7"),
+        matches(t, "new york **", 10));
+    assertEquals(Arrays.asList("new york city=6"), matches(t, "new york *", 10));
+    assertEquals(Arrays.asList("new jersey=9", "new york=5"), matches(t, "new *", 10));
+    assertEquals(Arrays.asList("barack hussein obama=1", "barack obama=0", "obama=2"),
+        matches(t, "** obama", 10));
+    assertEquals(Arrays.asList("barack hussein obama=1", "barack obama=0"), matches(t, "barack ** obama", 10));
+    assertEquals(Arrays.asList("new york yankees stadium=7"), matches(t, "** yankees **", 10));
+    assertEquals(Arrays.asList("new york=5", "new york city=6"), matches(t, "new york **", 2));
+    assertEquals(keys.length, matches(t, "**", 100).size());
+    assertTrue(matches(t, "obama *", 10).isEmpty());
+
+    TernaryTriePrimitive thresholded = new TernaryTriePrimitive(0.8);
+    thresholded.put("barack obama", 0);
+    assertEquals(Arrays.asList("barac obam=0"), matches(thresholded, "barack o*", 10));
+  }
+
+  @Test
+  public void testEntries() {
+    TernaryTriePrimitive t = new TernaryTriePrimitive();
+    final List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 20000; i++) {
+      t.put("key " + Integer.toString(i, 7), i);
+    }
+    t.visitEntries(new EntryVisitor() {
+      @Override
+      public void visit(String key, int value) {
+        expected.add(key + "\t" + value);
+      }
+    });
+
+    List<String> sequential = t.entries().map(TrieEntry::toString).collect(Collectors.toList());
+    assertEquals(expected, sequential);
+    List<String> parallel = t.entries().parallel().map(TrieEntry::toString).collect(Collectors.toList());
+    assertEquals(expected, parallel);
+    assertEquals(expected.size(), t.entries().parallel().filter(e -> e.getValue() % 2 == 0).count() * 2);
+
+    Spliterator<TrieEntry> first = t.entries().spliterator();
+    Spliterator<TrieEntry> second = first.trySplit();
+    assertNotNull(second);
+    List<String> joined = new ArrayList<String>();
+    second.forEachRemaining(e -> joined.add(e.toString()));
+    while (first.tryAdvance(e -> joined.add(e.toString()))) {
+      // Collects one entry at a time.
+    }
+    assertEquals(expected, joined);
+    assertEquals(0, new TernaryTriePrimitive().entries().count());
+  }
+
+  @Test
+  public void testPerCallThreshold() {
+    TernaryTriePrimitive full = new TernaryTriePrimitive(1.0);
+    double[] thresholds = { 0.5, 0.8, 1.0 };
+    TernaryTriePrimitive[] fixed = new TernaryTriePrimitive[thresholds.length];
+    for (int i = 0; i < thresholds.length; i++) {
+      fixed[i] = new TernaryTriePrimitive(thresholds[i]);
+    }
+    Random random = new Random(3);
+    List<String> keys = RandomKeys.randomKeys(random, 3000, 3, 8, "abc");
+    for (String key : keys) {
+      full.put(key, 1);
+      for (TernaryTriePrimitive t : fixed) {
+        t.put(key, 1);
+      }
+    }
+    for (int q = 0; q < 2000; q++) {
+      String[] text = (keys.get(random.nextInt(keys.size())) + " " + keys.get(random.nextInt(keys.size())))
+          .split(" ");
+      for (int i = 0; i < thresholds.length; i++) {
+        assertEquals(fixed[i].getAllMatches(text), full.getAllMatches(text, thresholds[i]));
+      }
+    }
+    TernaryTriePrimitive names = new TernaryTriePrimitive();
+    names.put("barack obama", 5);
+    String[] text = "barach obamx visit".split(" ");
+    assertEquals(new Match(0, 2, 5), names.getLongestMatch(text, 0, 0.8));
+    assertEquals(new Match(0, 0, -1), names.getLongestMatch(text, 0, 1.0));
+    assertEquals(-1, names.get("barach obamx"));
+    try {
+      fixed[1].getLongestMatch(new String[] { "a" }, 0, 0.8);
+      fail();
+    } catch (IllegalStateException e) {
+      // Expected, the keys of the trie are truncated.
+    }
+  }
+
+  @Test
+  public void testStartFilter() throws IOException {
+    TernaryTriePrimitive t = new TernaryTriePrimitive(0.8);
+    Random random = new Random(5);
+    List<String[]> documents = new ArrayList<String[]>();
+    List<String> keys = RandomKeys.randomKeys(random, 2000, 3, 6, "abcd");
+    for (int k = 0; k < keys.size(); k++) {
+      t.put(keys.get(k), k);
+      documents.add(("xyz " + keys.get(k) + " b " + keys.get(k)).split(" "));
+    }
+    List<List<Match>> expected = new ArrayList<List<Match>>();
+    for (String[] document : documents) {
+      expected.add(t.getAllMatches(document));
+    }
+    t.buildStartFilter();
+    assertTrue(t.hasStartFilter());
+    for (int d = 0; d < documents.size(); d++) {
+      assertEquals(expected.get(d), t.getAllMatches(documents.get(d)));
+    }
+    assertEquals(expected, t.getAllMatchesBatch(documents));
+
+    t.put("zz top", 7);
+    String[] text = "the band zz top".split(" ");
+    assertEquals(Arrays.asList(new Match(2, 2, 7)), t.getAllMatches(text));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    t.serialize(out);
+    TernaryTriePrimitive loaded = new TernaryTriePrimitive();
+    loaded.deserialize(new ByteArrayInputStream(out.toByteArray()));
+    assertTrue(loaded.hasStartFilter());
+    assertEquals(Arrays.asList(new Match(2, 2, 7)), loaded.getAllMatches(text));
+    assertEquals(expected, loaded.getAllMatchesBatch(documents));
+    loaded.removeStartFilter();
+    assertFalse(loaded.hasStartFilter());
+    assertEquals(expected, loaded.getAllMatchesBatch(documents));
+  }
+
+  @Test
+  public void testRootTable() {
+    TernaryTriePrimitive t = new TernaryTriePrimitive(0.5);
+    Random random = new Random(7);
+    List<String> keys = RandomKeys.randomKeys(random, 2000, 2, 5, "abz\u00e9\u0416");
+    for (int k = 0; k < keys.size(); k++) {
+      t.put(keys.get(k), k);
+    }
+    List<String[]> texts = new ArrayList<String[]>();
+    List<List<Match>> expected = new ArrayList<List<Match>>();
+    List<Integer> expectedIds = new ArrayList<Integer>();
+    for (int q = 0; q < 1000; q++) {
+      String[] text = (keys.get(random.nextInt(keys.size())) + " " + keys.get(random.nextInt(keys.size())))
+          .split(" ");
+      texts.add(text);
+      expected.add(t.getAllMatches(text));
+      expectedIds.add(t.getPrefixId(text));
+    }
+    t.buildRootTable();
+    assertTrue(t.hasRootTable());
+    assertEquals(4 * (256 + 128 * 128), t.getRootTableBytes());
+    for (int q = 0; q < texts.size(); q++) {
+      assertEquals(expected.get(q), t.getAllMatches(texts.get(q)));
+      assertEquals(expectedIds.get(q).intValue(), t.getPrefixId(texts.get(q)));
+    }
+    assertEquals(-1, t.get("q"));
+
+    t.put("q", 1);
+    assertFalse(t.hasRootTable());
+    assertEquals(1, t.get("q"));
+  }
+
+  @Test
+  public void testRootTableMissingPair() {
+    TernaryTriePrimitive t = new TernaryTriePrimitive();
+    t.put("abc", 0);
+    t.put("b", 1);
+    String[] prefixes = { "ax", "abx", "a", "bx", "xa" };
+    int[] ids = new int[prefixes.length];
+    for (int i = 0; i < prefixes.length; i++) {
+      ids[i] = t.getPrefixId(prefixes[i]);
+    }
+    assertNotEquals(-1, ids[0]);
+    t.buildRootTable();
+    for (int i = 0; i < prefixes.length; i++) {
+      assertEquals(prefixes[i], ids[i], t.getPrefixId(prefixes[i]));
+    }
+  }
+
+  @Test
+  public void testParallelGetAllMatches() throws IOException {
+    TernaryTriePrimitive t = new TernaryTriePrimitive();
+    // Overlapping keys make scans that start at different offsets diverge.
+    t.put("a a a", 1);
+    t.put("a b", 2);
+    t.put("b a a a", 3);
+    t.put("c", 4);
+    assertEquals(4, t.getMaxKeyTokens());
+    Random random = new Random(19);
+    String[] tokens = new String[100000];
+    for (int i = 0; i < tokens.length; i++) {
+      tokens[i] = String.valueOf((char) ('a' + random.nextInt(random.nextInt(10) == 0 ? 4 : 2)));
+    }
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      List<Match> expected = t.getAllMatches(tokens);
+      assertEquals(expected, t.getAllMatches(tokens, pool));
+      t.buildStartFilter();
+      assertEquals(expected, t.getAllMatches(tokens, pool));
+      String[] shortText = "x a b c".split(" ");
+      assertEquals(t.getAllMatches(shortText), t.getAllMatches(shortText, pool));
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      t.serialize(out);
+      TernaryTriePrimitive loaded = new TernaryTriePrimitive();
+      loaded.deserialize(new ByteArrayInputStream(out.toByteArray()));
+      assertEquals(4, loaded.getMaxKeyTokens());
+      assertEquals(expected, loaded.getAllMatches(tokens, pool));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
   @Test
   public void testAggregatedValuesVisitor() {
     TernaryTriePrimitive ttp = new TernaryTriePrimitive();
@@ -252,4 +754,39 @@ public class TernaryTriePrimitiveTest {
 
     ttp.visitAggregateValues(avv);
   }
+
+  @Test
+  public void testFork() throws IOException {
+    TernaryTriePrimitive parent = new TernaryTriePrimitive();
+    for (int i = 0; i < 5000; i++) {
+      parent.put("key " + i, i);
+    }
+    parent.buildStartFilter();
+    String content = parent.getContent();
+    TernaryTriePrimitive fork = parent.fork();
+    assertEquals(content, fork.getContent());
+
+    fork.put("key 42", 99);
+    fork.put("new key", 7);
+    fork.remove("key 7");
+    assertEquals(content, parent.getContent());
+    assertEquals(42, parent.get("key 42"));
+    assertEquals(99, fork.get("key 42"));
+    assertEquals(7, fork.get("new key"));
+    assertEquals(-1, fork.get("key 7"));
+    assertEquals(1, fork.getAllMatches("a new key".split(" ")).size());
+    assertEquals(0, parent.getAllMatches("a new key".split(" ")).size());
+
+    // Changes to the parent do not show in the fork either.
+    parent.put("other key", 8);
+    assertEquals(-1, fork.get("other key"));
+    assertEquals(7, fork.get("new key"));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    fork.serialize(bytes);
+    TernaryTriePrimitive loaded = new TernaryTriePrimitive();
+    loaded.deserialize(new ByteArrayInputStream(bytes.toByteArray()));
+    assertEquals(fork.getContent(), loaded.getContent());
+    assertTrue(loaded.hasStartFilter());
+  }
 }
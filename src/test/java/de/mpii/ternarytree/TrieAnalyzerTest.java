@@ -0,0 +1,63 @@
+package de.mpii.ternarytree;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TrieAnalyzerTest {
+
+  private Map<String, String> analyze(TernaryTriePrimitive trie) {
+    return analyze(trie, true);
+  }
+
+  private Map<String, String> analyze(TernaryTriePrimitive trie, boolean projections) {
+    Map<String, String> report = new HashMap<>();
+    for (String line : new TrieAnalyzer(trie).analyze(projections).split("\n")) {
+      report.put(line.split("\t")[0], line.split("\t")[1]);
+    }
+    return report;
+  }
+
+  @Test
+  public void testReport() {
+    TernaryTriePrimitive trie = new TernaryTriePrimitive();
+    trie.put("b", 0);
+    trie.put("a", 1);
+    trie.put("c", 2);
+    trie.put("ab", 3);
+
+    Map<String, String> report = analyze(trie);
+    assertEquals("4", report.get("keys"));
+    assertEquals("4", report.get("nodes"));
+    assertEquals("2", report.get("nodes at depth 1"));
+    assertEquals("2.0", report.get("average lookup path length"));
+    assertEquals("3", report.get("max lookup path length"));
+    assertEquals("1", report.get("nodes with less and greater child"));
+    assertEquals("2", report.get("sibling sets"));
+    assertEquals("0", report.get("hops over balanced sibling sets"));
+    // The arrays grow by whole chunks.
+    assertEquals(String.valueOf(4 * ChunkedIntList.CHUNK_SIZE), report.get("bytes nodes array"));
+    assertEquals(String.valueOf(6 * ChunkedIntList.CHUNK_SIZE), report.get("bytes total"));
+    assertEquals(String.valueOf(6 * ChunkedIntList.CHUNK_SIZE - 72), report.get("bytes in unused chunk capacity"));
+    assertEquals("4", report.get("projected nodes minimized"));
+    assertEquals(null, analyze(trie, false).get("projected nodes minimized"));
+    assertEquals(String.valueOf(4 * (256 + 128 * 128)), analyze(trie, false).get("bytes root table"));
+
+    trie.remove("ab");
+    report = analyze(trie);
+    assertEquals("1", report.get("free node slots"));
+    assertEquals("18", report.get("bytes in free node slots"));
+
+    trie.put("ab", 1);
+    trie.put("cb", 1);
+    report = analyze(trie);
+    assertEquals("5", report.get("nodes"));
+    assertEquals("4", report.get("projected nodes minimized"));
+    assertEquals("90", report.get("projected bytes compacted"));
+    // Minimizing moves the 5 values to a table of 4 bytes each.
+    assertEquals("92", report.get("projected bytes minimized"));
+  }
+}
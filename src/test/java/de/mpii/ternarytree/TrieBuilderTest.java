@@ -1,9 +1,24 @@
 package de.mpii.ternarytree;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Test;
 
@@ -31,4 +46,226 @@ public class TrieBuilderTest {
     assertEquals(3, readTrie.get("A C"));
     assertEquals(4, readTrie.get("B"));
   }  
+
+  private TernaryTriePrimitive newTrie() {
+    TernaryTriePrimitive trie = new TernaryTriePrimitive();
+    trie.put("A", 1);
+    trie.put("A C", 2);
+    trie.put("A C", 3);
+    trie.put("B", 4);
+    return trie;
+  }
+
+  private void assertContent(TernaryTriePrimitive trie) {
+    assertEquals(1, trie.get("A"));
+    assertEquals(3, trie.get("A C"));
+    assertEquals(4, trie.get("B"));
+  }
+
+  @Test
+  public void putAfterLoadTest() throws IOException {
+    File tmpFile = File.createTempFile("trie", "tmp");
+    tmpFile.deleteOnExit();
+    TrieBuilder tb = new TrieBuilder();
+    tb.write(newTrie(), tmpFile);
+    TernaryTriePrimitive readTrie = tb.loadTernaryTriePrimitive(tmpFile);
+    // Enough keys for the node arrays to grow several times.
+    for (int i = 0; i < 10000; i++) {
+      readTrie.put("key " + i, i);
+    }
+    assertContent(readTrie);
+    assertEquals(9999, readTrie.get("key 9999"));
+  }
+
+  @Test
+  public void magicTest() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    newTrie().serialize(bytes);
+    byte[] serialized = bytes.toByteArray();
+    assertEquals(TernaryTriePrimitive.MAGIC, ByteBuffer.wrap(serialized).getInt());
+
+    // Version 2 had no magic.
+    byte[] version2 = Arrays.copyOfRange(serialized, 4, serialized.length);
+    ByteBuffer.wrap(version2).putInt(2);
+    TernaryTriePrimitive trie = new TernaryTriePrimitive();
+    trie.deserialize(new ByteArrayInputStream(version2));
+    assertContent(trie);
+
+    try {
+      new TernaryTriePrimitive().deserialize(new ByteArrayInputStream(new byte[] { 'n', 'o', 'p', 'e' }));
+      fail("Unknown data was loaded");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void failedLoadTest() throws IOException {
+    TernaryTriePrimitive other = new TernaryTriePrimitive(0.5);
+    other.put("xyz", 7);
+    other.put("wxyz", 8);
+    other.minimize();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    other.serialize(bytes);
+    byte[] serialized = bytes.toByteArray();
+    byte[] corrupt = serialized.clone();
+    // The last byte is in the value table, which is read last.
+    corrupt[corrupt.length - 1] ^= 1;
+    byte[] truncated = Arrays.copyOf(serialized, serialized.length - 3);
+
+    TernaryTriePrimitive trie = new TernaryTriePrimitive();
+    trie.put("abcd", 1);
+    for (byte[] data : new byte[][] { corrupt, truncated }) {
+      try {
+        trie.deserialize(new ByteArrayInputStream(data));
+        fail("Corrupt trie was loaded");
+      } catch (IOException e) {
+        // expected
+      }
+      assertEquals(1, trie.get("abcd"));
+      assertEquals(-1, trie.get("xyz"));
+      assertEquals(1.0, trie.getThreshold(), 0.0);
+      assertFalse(trie.isMinimized());
+    }
+    trie.put("efgh", 2);
+    assertEquals(2, trie.get("efgh"));
+
+    trie.deserialize(new ByteArrayInputStream(serialized));
+    assertEquals(8, trie.get("wxyz"));
+    assertEquals(0.5, trie.getThreshold(), 0.0);
+    assertTrue(trie.isMinimized());
+  }
+
+  @Test
+  public void codecTest() throws IOException {
+    TrieBuilder tb = new TrieBuilder();
+    for (TrieCodec codec : TrieCodec.values()) {
+      File tmpFile = File.createTempFile("trie", "tmp");
+      tmpFile.deleteOnExit();
+      tb.write(newTrie(), tmpFile, codec);
+      assertContent(tb.loadTernaryTriePrimitive(tmpFile));
+    }
+  }
+
+  @Test
+  public void multipleBlocksTest() throws IOException {
+    TernaryTriePrimitive trie = new TernaryTriePrimitive();
+    Random r = new Random(7);
+    for (int i = 0; i < 50000; i++) {
+      trie.put(Integer.toString(r.nextInt(), 36) + " " + i, i);
+    }
+    for (TrieCodec codec : TrieCodec.values()) {
+      File tmpFile = File.createTempFile("trie", "tmp");
+      tmpFile.deleteOnExit();
+      new TrieBuilder(3).write(trie, tmpFile, codec);
+      TernaryTriePrimitive readTrie = new TrieBuilder(2).loadTernaryTriePrimitive(tmpFile);
+      assertEquals(trie.getContent(), readTrie.getContent());
+    }
+  }
+
+  @Test
+  public void legacyFormatTest() throws IOException {
+    TrieBuilder tb = new TrieBuilder();
+    // Serialized trie written through GZIP by App, without file header.
+    File gzipFile = File.createTempFile("trie", "gz");
+    gzipFile.deleteOnExit();
+    newTrie().serialize(new GZIPOutputStream(new FileOutputStream(gzipFile)));
+    assertContent(tb.loadTernaryTriePrimitive(gzipFile));
+
+    // Trie with the single key "A" -> 1 in the initial serialization format.
+    File v1File = File.createTempFile("trie", "v1");
+    v1File.deleteOnExit();
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(v1File));
+    out.writeInt(1);
+    out.writeDouble(1.0);
+    out.writeChar(' ');
+    out.writeInt(0);
+    out.writeInt(4);
+    out.writeInt(-1);
+    out.writeInt(-1);
+    out.writeInt(-1);
+    out.writeInt(1);
+    out.writeInt(1);
+    out.writeChar('A');
+    out.close();
+    TernaryTriePrimitive v1Trie = tb.loadTernaryTriePrimitive(v1File);
+    assertEquals(1, v1Trie.get("A"));
+    assertEquals(-1, v1Trie.get("B"));
+  }
+
+  @Test
+  public void corruptionTest() throws IOException {
+    TrieBuilder tb = new TrieBuilder();
+    File tmpFile = File.createTempFile("trie", "tmp");
+    tmpFile.deleteOnExit();
+    tb.write(newTrie(), tmpFile, TrieCodec.NONE);
+
+    RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+    raf.seek(raf.length() - 20);
+    int b = raf.read();
+    raf.seek(raf.length() - 20);
+    raf.write(b ^ 1);
+    raf.close();
+    try {
+      tb.loadTernaryTriePrimitive(tmpFile);
+      fail("Corrupt file was loaded");
+    } catch (IOException e) {
+      // expected
+    }
+    // Without verification the corrupt file loads.
+    tb.loadTernaryTriePrimitive(tmpFile, false);
+
+    raf = new RandomAccessFile(tmpFile, "rw");
+    raf.setLength(raf.length() - 3);
+    raf.close();
+    try {
+      tb.loadTernaryTriePrimitive(tmpFile);
+      fail("Truncated file was loaded");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void corruptBlockSizesTest() throws IOException {
+    TrieBuilder tb = new TrieBuilder();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    newTrie().serialize(tb.create(bytes, TrieCodec.SNAPPY, pool));
+    pool.shutdown();
+    byte[] file = bytes.toByteArray();
+    // Block size in the file header, then the raw and compressed length
+    // of the first block, none of which may be trusted for allocations.
+    int[] offsets = { 6, 10, 14 };
+    int[] sizes = { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE - 1 };
+    for (int i = 0; i < offsets.length; i++) {
+      byte[] corrupt = file.clone();
+      ByteBuffer.wrap(corrupt).putInt(offsets[i], sizes[i]);
+      try {
+        tb.load(new ByteArrayInputStream(corrupt), true);
+        fail("Corrupt block sizes were accepted");
+      } catch (IOException e) {
+        // expected
+      }
+    }
+    assertContent(tb.load(new ByteArrayInputStream(file), true));
+  }
+
+  @Test
+  public void loadClosesStreamTest() throws IOException {
+    final boolean[] closed = new boolean[1];
+    InputStream in = new ByteArrayInputStream(new byte[] { 'T', 'T', 'R', 'I', 9, 9 }) {
+      @Override
+      public void close() {
+        closed[0] = true;
+      }
+    };
+    try {
+      new TrieBuilder().load(in, true);
+      fail("Unknown header version was accepted");
+    } catch (IOException e) {
+      // expected
+    }
+    assertTrue(closed[0]);
+  }
 }
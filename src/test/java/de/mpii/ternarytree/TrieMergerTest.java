@@ -0,0 +1,99 @@
+package de.mpii.ternarytree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TrieMergerTest {
+
+  private String entries(TernaryTriePrimitive trie) {
+    final StringBuilder entries = new StringBuilder();
+    trie.visitEntries(new EntryVisitor() {
+      @Override
+      public void visit(String key, int value) {
+        entries.append(key).append('\t').append(value).append('\n');
+      }
+    });
+    return entries.toString();
+  }
+
+  private File tempFile() throws IOException {
+    File file = File.createTempFile("trie", "tmp");
+    file.deleteOnExit();
+    return file;
+  }
+
+  @Test
+  public void testPolicies() throws IOException {
+    TernaryTriePrimitive titles = new TernaryTriePrimitive(0.8);
+    titles.put("barack obama", 1);
+    titles.put("angela merkel", 2);
+    TernaryTriePrimitive redirects = new TernaryTriePrimitive(0.8);
+    redirects.put("obama", 1);
+    redirects.put("barack obama", 3);
+    redirects.put("merkel", 2);
+    List<TernaryTriePrimitive> tries = Arrays.asList(titles, redirects);
+
+    File file = tempFile();
+    assertEquals(4, new TrieMerger(ConflictPolicy.FIRST).merge(tries, file, TrieCodec.SNAPPY));
+    TernaryTriePrimitive merged = new TrieBuilder().loadTernaryTriePrimitive(file);
+    assertEquals(0.8, merged.getThreshold(), 0.0);
+    assertEquals(1, merged.get("barack obama"));
+    assertEquals(1, merged.get("obama"));
+    assertEquals(2, merged.get("merkel"));
+    assertEquals(2, merged.get("angela merkel"));
+
+    new TrieMerger(ConflictPolicy.LAST).merge(tries, file, TrieCodec.SNAPPY);
+    assertEquals(3, new TrieBuilder().loadTernaryTriePrimitive(file).get("barack obama"));
+    new TrieMerger(ConflictPolicy.MIN).merge(tries, file, TrieCodec.SNAPPY);
+    assertEquals(1, new TrieBuilder().loadTernaryTriePrimitive(file).get("barack obama"));
+    try {
+      new TrieMerger(ConflictPolicy.FAIL).merge(tries, file, TrieCodec.SNAPPY);
+      fail();
+    } catch (IllegalStateException e) {
+      // Different values for "barack obama".
+    }
+    try {
+      new TrieMerger(ConflictPolicy.FIRST).merge(Arrays.asList(titles, new TernaryTriePrimitive(1.0)), file,
+          TrieCodec.SNAPPY);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Different thresholds.
+    }
+  }
+
+  @Test
+  public void testMergeFiles() throws IOException {
+    Random random = new Random(23);
+    TernaryTriePrimitive expected = new TernaryTriePrimitive();
+    List<File> inputs = new ArrayList<File>();
+    for (int t = 0; t < 3; t++) {
+      TernaryTriePrimitive trie = new TernaryTriePrimitive();
+      for (String key : RandomKeys.randomKeys(random, 1000, 3, 2, "abcd")) {
+        trie.put(key, random.nextInt(100));
+      }
+      // With LAST, later tries win, as with put.
+      final TernaryTriePrimitive target = expected;
+      trie.visitEntries(new EntryVisitor() {
+        @Override
+        public void visit(String key, int value) {
+          target.put(key, value);
+        }
+      });
+      File input = tempFile();
+      new TrieBuilder().write(trie, input);
+      inputs.add(input);
+    }
+    File output = tempFile();
+    new TrieMerger(ConflictPolicy.LAST).mergeFiles(inputs, output, TrieCodec.GZIP);
+    assertEquals(entries(expected), entries(new TrieBuilder().loadTernaryTriePrimitive(output)));
+  }
+}
@@ -0,0 +1,147 @@
+package de.mpii.ternarytree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class TrieMetricsTest {
+
+  @Test
+  public void testHistogramPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentile(99.0));
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000L);
+    }
+    assertEquals(1000, histogram.getCount());
+    long p50 = histogram.getPercentile(50.0);
+    long p99 = histogram.getPercentile(99.0);
+    assertTrue(p50 >= 500000 && p50 <= 500000 * 1.07);
+    assertTrue(p99 >= 990000 && p99 <= 990000 * 1.07);
+    assertEquals(histogram.getPercentile(100.0), histogram.getPercentile(99.99));
+  }
+
+  @Test
+  public void testHistogramConcurrentRecords() throws InterruptedException {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      final long nanos = (t + 1) * 100L;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 10000; i++) {
+            histogram.record(nanos);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(80000, histogram.getCount());
+    assertEquals(3600L * 10000, histogram.getTotalNanos());
+    long p50 = histogram.getPercentile(50.0);
+    assertTrue(p50 >= 400 && p50 <= 400 * 1.07);
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+  }
+
+  @Test
+  public void testSnapshot() {
+    TrieMetrics metrics = new TrieMetrics();
+    metrics.recordLookup(true);
+    metrics.recordLookup(false);
+    metrics.recordLookup(true);
+    metrics.recordLongestMatch(10, 100);
+    metrics.recordLongestMatch(20, 200);
+    metrics.recordAllMatches(3, 1000);
+
+    TrieMetrics.Snapshot snapshot = metrics.snapshot();
+    assertEquals(3, snapshot.getLookups());
+    assertEquals(1, snapshot.getMisses());
+    assertEquals(15.0, snapshot.getAverageNodeHops(), 0.0);
+    assertEquals(3.0, snapshot.getMatchesPerDocument(), 0.0);
+    assertEquals(300, snapshot.getLongestMatchTotalNanos());
+
+    metrics.reset();
+    assertEquals(0, metrics.snapshot().getLookups());
+  }
+
+  @Test
+  public void testTrieRecording() {
+    assertTrue("Run with -Dternarytree.metrics=true, as the pom does", TrieMetrics.ENABLED);
+    TernaryTriePrimitive trie = new TernaryTriePrimitive();
+    trie.put("barack obama", 1);
+    trie.put("berlin", 3);
+    TrieMetrics metrics = new TrieMetrics();
+    trie.setMetrics(metrics);
+    // b, then a and its great sibling e, then r l i n.
+    assertEquals(3, trie.get("berlin"));
+    // b, then a and e, which has no great sibling o.
+    assertEquals(-1, trie.get("bonn"));
+    TrieMetrics.Snapshot snapshot = metrics.snapshot();
+    assertEquals(2, snapshot.getLookups());
+    assertEquals(1, snapshot.getHits());
+    assertEquals(1, snapshot.getMisses());
+    assertEquals(2, snapshot.getLongestMatchCalls());
+    assertEquals(5.0, snapshot.getAverageNodeHops(), 0.0);
+
+    trie.getAllMatches("barack obama in berlin".split(" "));
+    snapshot = metrics.snapshot();
+    assertEquals(1, snapshot.getDocuments());
+    assertEquals(2.0, snapshot.getMatchesPerDocument(), 0.0);
+
+    // Cached matches are not walked and not recorded.
+    metrics.reset();
+    trie.setCache(new LookupCache(16));
+    String[] tokens = "berlin".split(" ");
+    trie.getLongestMatch(tokens, 0);
+    trie.getLongestMatch(tokens, 0);
+    assertEquals(1, metrics.snapshot().getLongestMatchCalls());
+    trie.setMetrics(null);
+    trie.getAllMatches(tokens);
+    assertEquals(0, metrics.snapshot().getDocuments());
+  }
+
+  @Test
+  public void testParallelAllMatches() {
+    assertTrue("Run with -Dternarytree.metrics=true, as the pom does", TrieMetrics.ENABLED);
+    TernaryTriePrimitive trie = new TernaryTriePrimitive();
+    trie.put("a b", 1);
+    trie.put("c", 2);
+    TrieMetrics metrics = new TrieMetrics();
+    trie.setMetrics(metrics);
+    String[] tokens = new String[20000];
+    for (int i = 0; i < tokens.length; i++) {
+      tokens[i] = String.valueOf((char) ('a' + i % 3));
+    }
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      assertEquals(trie.getAllMatches(tokens), trie.getAllMatches(tokens, pool));
+    } finally {
+      pool.shutdown();
+    }
+    TrieMetrics.Snapshot snapshot = metrics.snapshot();
+    assertEquals(2, snapshot.getDocuments());
+    assertEquals(trie.getAllMatches(tokens).size(), snapshot.getMatchesPerDocument(), 0.0);
+  }
+
+  @Test
+  public void testJmx() throws JMException {
+    TrieMetrics metrics = new TrieMetrics();
+    metrics.recordLookup(true);
+    metrics.register("test");
+    ObjectName name = new ObjectName("de.mpii.ternarytree:type=TrieMetrics,name=test");
+    assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Lookups"));
+    ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+  }
+}
@@ -0,0 +1,108 @@
+package de.mpii.ternarytree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TrieServerTest {
+
+  private TrieServer server;
+
+  @Before
+  public void start() throws IOException {
+    TernaryTriePrimitive trie = new TernaryTriePrimitive();
+    trie.put("barack obama", 1);
+    trie.put("angela merkel", 2);
+    trie.put("berlin", 3);
+    server = new TrieServer(trie, new InetSocketAddress("localhost", 0), 4, 16);
+    server.start();
+  }
+
+  @After
+  public void stop() {
+    server.stop(0);
+  }
+
+  private String request(String path, String body) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(
+        "http://localhost:" + server.getPort() + path).openConnection();
+    if (body != null) {
+      connection.setDoOutput(true);
+      connection.setRequestMethod("POST");
+      OutputStream out = connection.getOutputStream();
+      out.write(body.getBytes("UTF-8"));
+      out.close();
+    }
+    InputStream in = connection.getResponseCode() == 200 ? connection.getInputStream()
+        : connection.getErrorStream();
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int n;
+    while ((n = in.read(buffer)) > 0) {
+      response.write(buffer, 0, n);
+    }
+    in.close();
+    return connection.getResponseCode() + " " + response.toString("UTF-8");
+  }
+
+  @Test
+  public void testEndpoints() throws IOException {
+    assertEquals("200 1", request("/get?key=" + URLEncoder.encode("barack obama", "UTF-8"), null));
+    assertEquals("200 -1", request("/get?key=barack", null));
+    assertEquals("200 1\t2\t2\n", request("/longest?text=met+angela+merkel+in+berlin&start=1", null));
+    assertEquals("200 1\t2\t2\n4\t1\t3\n", request("/matches?text=met+angela+merkel+in+berlin", null));
+    assertEquals("200 1\t2\t2\n4\t1\t3\n", request("/matches", "met angela merkel in berlin"));
+    assertTrue(request("/get", null).startsWith("400"));
+  }
+
+  @Test
+  public void testErrors() throws IOException {
+    assertEquals("200 0\t0\t-1\n", request("/longest?text=met+angela&start=0", null));
+    assertTrue(request("/longest?text=met+angela&start=2", null).startsWith("400 Parameter start 2"));
+    assertTrue(request("/longest?text=met+angela&start=-1", null).startsWith("400 Parameter start -1"));
+    assertTrue(request("/longest?text=met+angela&start=x", null).startsWith("400 Invalid parameter start"));
+    assertTrue(request("/longest", null).startsWith("400 Missing parameter text"));
+
+    TernaryTriePrimitive failing = new TernaryTriePrimitive() {
+      @Override
+      public List<List<Match>> getAllMatchesBatch(List<String[]> documents) {
+        throw new IllegalStateException("broken");
+      }
+    };
+    TrieServer working = server;
+    server = new TrieServer(failing, new InetSocketAddress("localhost", 0), 4, 16);
+    server.start();
+    try {
+      String response = request("/matches?text=berlin", null);
+      assertTrue(response, response.startsWith("500 Internal error: "));
+      assertTrue(response, response.contains("broken"));
+    } finally {
+      server.stop(0);
+      server = working;
+    }
+  }
+
+  @Test
+  public void testLoadClient() throws InterruptedException {
+    TrieLoadClient client = new TrieLoadClient("http://localhost:" + server.getPort(), "matches",
+        Arrays.asList("barack obama met angela merkel", "in berlin", "nothing here"));
+    client.run(8, 1);
+    assertTrue(client.getRequests() > 0);
+    assertEquals(0, client.getErrors());
+    assertTrue(client.getLatencyNanos(99.0) >= client.getLatencyNanos(50.0));
+  }
+}